@@ -0,0 +1,127 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import org.apache.lucene.analysis.Analyzer;
+
+/**
+ * A bounded, least recently used cache of analyzer output for search tokens,
+ * keyed on the <code>Analyzer</code> instance, the field and the raw token.
+ * Each entry holds the terms, their position increments and whether several
+ * terms share a position, so a hit skips the analyzer entirely. Useful when
+ * expensive stemming or synonym analyzers see the same tokens in query after
+ * query.
+ * <p>
+ * A cache may be shared by any number of parsers and threads. An analyzer
+ * whose output can change (for example, reloadable synonyms) should be given
+ * a new cache, or the cache cleared, when it changes.
+ *
+ * @see QsolParser#setAnalysisCache(AnalysisCache)
+ * @since 1.0
+ */
+public class AnalysisCache {
+  private final LruCache<Key, AnalyzedTerms> cache;
+
+  /**
+   * @param maxSize
+   *          maximum number of tokens to keep
+   */
+  public AnalysisCache(int maxSize) {
+    this.cache = new LruCache<Key, AnalyzedTerms>(maxSize);
+  }
+
+  AnalyzedTerms get(Analyzer analyzer, String field, String token) {
+    return cache.get(new Key(analyzer, field, token));
+  }
+
+  void put(Analyzer analyzer, String field, String token, AnalyzedTerms terms) {
+    cache.put(new Key(analyzer, field, token), terms);
+  }
+
+  /**
+   * Removes all cached tokens. The counters are left as they are.
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public int getMaxSize() {
+    return cache.getMaxSize();
+  }
+
+  public long getHits() {
+    return cache.getStats().getHits();
+  }
+
+  public long getMisses() {
+    return cache.getStats().getMisses();
+  }
+
+  public long getEvictions() {
+    return cache.getStats().getEvictions();
+  }
+
+  /**
+   * @return hits divided by lookups, or 0 if there have been no lookups
+   */
+  public double getHitRate() {
+    return cache.getStats().getHitRate();
+  }
+
+  public String toString() {
+    return "AnalysisCache(size=" + cache.size() + ", maxSize="
+        + cache.getMaxSize() + ", " + cache.getStats() + ")";
+  }
+
+  private static final class Key {
+    private final Analyzer analyzer;
+    private final String field;
+    private final String token;
+    private final int hash;
+
+    Key(Analyzer analyzer, String field, String token) {
+      this.analyzer = analyzer;
+      this.field = field;
+      this.token = token;
+
+      int h = token.hashCode();
+      h = (31 * h) + ((field == null) ? 0 : field.hashCode());
+      h = (31 * h) + System.identityHashCode(analyzer);
+      this.hash = h;
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+
+      return (analyzer == other.analyzer)
+          && token.equals(other.token)
+          && ((field == null) ? (other.field == null) : field
+              .equals(other.field));
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+/**
+ * A reusable buffer for the terms an <code>Analyzer</code> produces for one
+ * search token. Term text is packed into a single char slab with parallel int
+ * arrays for term offsets and position increments, and the analyzer's
+ * reusable token stream is fed through a reusable reader, so analyzing a
+ * token allocates nothing once the buffer has grown to size. Not thread safe;
+ * each visitor keeps its own.
+ * <p>
+ * If an <code>AnalysisCache</code> is set, <code>analyze</code> returns the
+ * cached terms for tokens that have been analyzed before, and caches a copy
+ * of the terms for those that have not.
+ */
+public final class AnalyzedTerms {
+  private CharSequenceReader reader;
+  private AnalysisCache cache;
+  private Map<String, AnalyzedTerms> preAnalyzed;
+  private char[] slab = new char[64];
+  private int[] starts = new int[9];
+  private int[] posIncs = new int[8];
+  private int size;
+  private int positionCount;
+  private boolean severalTokensAtSamePosition;
+
+  public AnalyzedTerms() {
+  }
+
+  /**
+   * Creates a read-only copy of <code>terms</code>.
+   */
+  AnalyzedTerms(AnalyzedTerms terms) {
+    this.slab = new char[terms.starts[terms.size]];
+    this.starts = new int[terms.size + 1];
+    this.posIncs = new int[terms.size];
+    this.size = terms.size;
+    this.positionCount = terms.positionCount;
+    this.severalTokensAtSamePosition = terms.severalTokensAtSamePosition;
+    System.arraycopy(terms.slab, 0, slab, 0, slab.length);
+    System.arraycopy(terms.starts, 0, starts, 0, starts.length);
+    System.arraycopy(terms.posIncs, 0, posIncs, 0, posIncs.length);
+  }
+
+  /**
+   * Sets the cache to consult before running the analyzer.
+   *
+   * @param cache
+   *          cache to use, or <code>null</code>
+   */
+  public void setCache(AnalysisCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Sets the terms already analyzed for the query being built, to consult
+   * before the cache.
+   *
+   * @param preAnalyzed
+   *          read-only terms keyed on field and token, or <code>null</code>
+   * @see LeafTokenCollector
+   */
+  void setPreAnalyzed(Map<String, AnalyzedTerms> preAnalyzed) {
+    this.preAnalyzed = preAnalyzed;
+  }
+
+  /**
+   * Returns the terms <code>analyzer</code> produces for <code>text</code>.
+   * The result is either this buffer, refilled, or a read-only entry from the
+   * pre-analyzed terms or the cache. If the token stream throws an
+   * <code>IOException</code>, it is rethrown as a
+   * <code>RuntimeException</code> and nothing is cached.
+   *
+   * @param analyzer
+   *          analyzer to run
+   * @param field
+   *          field the terms are for
+   * @param text
+   *          text to analyze
+   * @return the analyzed terms
+   */
+  public AnalyzedTerms analyze(Analyzer analyzer, String field, String text) {
+    if (preAnalyzed != null) {
+      AnalyzedTerms analyzed = preAnalyzed.get(LeafTokenCollector.key(field,
+          text));
+
+      if (analyzed != null) {
+        return analyzed;
+      }
+    }
+
+    if (cache != null) {
+      AnalyzedTerms cached = cache.get(analyzer, field, text);
+
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    if (reader == null) {
+      reader = new CharSequenceReader();
+    }
+
+    size = 0;
+    positionCount = 0;
+    severalTokensAtSamePosition = false;
+    reader.reset(text);
+
+    TokenStream source;
+
+    try {
+      source = analyzer.reusableTokenStream(field, reader);
+      source.reset();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    CharTermAttribute termAtt = source.addAttribute(CharTermAttribute.class);
+    PositionIncrementAttribute posIncAtt = source
+        .addAttribute(PositionIncrementAttribute.class);
+
+    try {
+      while (source.incrementToken()) {
+        add(termAtt.buffer(), termAtt.length(), posIncAtt.getPositionIncrement());
+      }
+
+      source.end();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      try {
+        source.close();
+      } catch (IOException e) {
+        // ignore
+      }
+
+      reader.reset("");
+    }
+
+    if (cache != null) {
+      cache.put(analyzer, field, text, new AnalyzedTerms(this));
+    }
+
+    return this;
+  }
+
+  private void add(char[] buffer, int length, int posInc) {
+    if (size == posIncs.length) {
+      int[] newPosIncs = new int[size * 2];
+      System.arraycopy(posIncs, 0, newPosIncs, 0, size);
+      posIncs = newPosIncs;
+
+      int[] newStarts = new int[(size * 2) + 1];
+      System.arraycopy(starts, 0, newStarts, 0, size + 1);
+      starts = newStarts;
+    }
+
+    int start = starts[size];
+
+    if ((start + length) > slab.length) {
+      char[] newSlab = new char[Math.max(slab.length * 2, start + length)];
+      System.arraycopy(slab, 0, newSlab, 0, start);
+      slab = newSlab;
+    }
+
+    System.arraycopy(buffer, 0, slab, start, length);
+    posIncs[size] = posInc;
+    starts[++size] = start + length;
+
+    if (posInc != 0) {
+      positionCount += posInc;
+    } else {
+      severalTokensAtSamePosition = true;
+    }
+  }
+
+  /**
+   * @return number of terms produced
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param i
+   *          term number
+   * @return text of term <code>i</code>
+   */
+  public String term(int i) {
+    return new String(slab, starts[i], starts[i + 1] - starts[i]);
+  }
+
+  /**
+   * @param i
+   *          term number
+   * @return position increment of term <code>i</code>
+   */
+  public int positionIncrement(int i) {
+    return posIncs[i];
+  }
+
+  /**
+   * @return sum of the position increments
+   */
+  public int getPositionCount() {
+    return positionCount;
+  }
+
+  /**
+   * @return true if any term has a position increment of 0
+   */
+  public boolean hasSeveralTokensAtSamePosition() {
+    return severalTokensAtSamePosition;
+  }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+/**
+ * One query of a batch: Qsol syntax and the default field to parse it
+ * against.
+ *
+ * @see QsolParser#parseAll(java.util.Collection,
+ *      org.apache.lucene.analysis.Analyzer, java.util.concurrent.Executor, int)
+ * @since 1.0
+ */
+public class BatchQuery {
+  private final String field;
+  private final String text;
+
+  /**
+   * @param field
+   *          default search field
+   * @param text
+   *          Qsol syntax query
+   */
+  public BatchQuery(String field, String text) {
+    this.field = field;
+    this.text = text;
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  public String toString() {
+    return field + ":" + text;
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * The outcome of parsing one query of a batch: either the Lucene
+ * <code>Query</code> or the exception <code>parse</code> threw for it.
+ *
+ * @see QsolParser#parseAll(java.util.Collection,
+ *      org.apache.lucene.analysis.Analyzer, java.util.concurrent.Executor, int)
+ * @since 1.0
+ */
+public class BatchResult {
+  private final BatchQuery batchQuery;
+  private final Query query;
+  private final Exception error;
+
+  BatchResult(BatchQuery batchQuery, Query query, Exception error) {
+    this.batchQuery = batchQuery;
+    this.query = query;
+    this.error = error;
+  }
+
+  /**
+   * @return the query this is the result of
+   */
+  public BatchQuery getBatchQuery() {
+    return batchQuery;
+  }
+
+  /**
+   * @return whether the query parsed
+   */
+  public boolean isParsed() {
+    return error == null;
+  }
+
+  /**
+   * @return the Lucene query, or <code>null</code> if the query did not parse
+   */
+  public Query getQuery() {
+    return query;
+  }
+
+  /**
+   * @return the <code>QsolSyntaxException</code>,
+   *         <code>EmptyQueryException</code> or runtime exception thrown while
+   *         parsing, or <code>null</code> if the query parsed
+   */
+  public Exception getError() {
+    return error;
+  }
+
+  public String toString() {
+    return batchQuery + " => " + (isParsed() ? query : error);
+  }
+}
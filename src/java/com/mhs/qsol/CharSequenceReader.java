@@ -0,0 +1,74 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.io.Reader;
+
+/**
+ * A <code>Reader</code> over a <code>CharSequence</code> that can be pointed
+ * at a new sequence with <code>reset(CharSequence)</code>, so one instance
+ * can feed any number of queries to the lexer. Not thread safe.
+ */
+final class CharSequenceReader extends Reader {
+  private CharSequence text;
+  private int pos;
+
+  void reset(CharSequence text) {
+    this.text = text;
+    this.pos = 0;
+  }
+
+  public int read(char[] cbuf, int off, int len) {
+    int remaining = text.length() - pos;
+
+    if (remaining <= 0) {
+      return -1;
+    }
+
+    if (len > remaining) {
+      len = remaining;
+    }
+
+    if (text instanceof String) {
+      ((String) text).getChars(pos, pos + len, cbuf, off);
+    } else if (text instanceof StringBuilder) {
+      ((StringBuilder) text).getChars(pos, pos + len, cbuf, off);
+    } else {
+      for (int i = 0; i < len; i++) {
+        cbuf[off + i] = text.charAt(pos + i);
+      }
+    }
+
+    pos += len;
+
+    return len;
+  }
+
+  public int read() {
+    if (pos >= text.length()) {
+      return -1;
+    }
+
+    return text.charAt(pos++);
+  }
+
+  /**
+   * Does nothing. The lexer closes its reader when it reaches the end of the
+   * input but may still ask for more characters afterwards.
+   */
+  public void close() {
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.mhs.qsol.QsolParser.Operator;
+import com.mhs.qsol.spans.MultiTermSpanRewrite;
+import com.mhs.qsol.spans.SpanRewriteCache;
+
+/**
+ * An immutable snapshot of a <code>QsolConfiguration</code>. The snapshot is
+ * built once by <code>QsolConfiguration.compile()</code> and shared by
+ * reference by every <code>QsolParser</code> that inherits from it, so
+ * creating a parser does not copy any settings. A parser only takes its own
+ * copy of a table when one of its setters changes it.
+ *
+ * @see QsolConfiguration#compile()
+ * @since 1.0
+ */
+@SuppressWarnings("unchecked")
+public final class CompiledConfiguration {
+  final Set<String> dateFields;
+  final Map<String, FindReplace> findReplace;
+  final Set<FindReplaceRegEx> findReplaceRegEx;
+  final FindReplaceMatcher findReplaceMatcher;
+  final Map<Operator, Integer> orderOfOpsMap;
+  final List<Operator> opsList;
+  final Map<String, String> fieldMapping;
+  final Map<String, Integer> zeroPadFields;
+  final DateParser dateParser;
+  final String paragraphMarker;
+  final String sentenceMarker;
+  final String fieldBreakMarker;
+  final boolean useHide;
+  final boolean hideOr;
+  final boolean hideAnd;
+  final boolean hideAndNot;
+  final boolean hideProximity;
+  final boolean rewriteInPlace;
+  final boolean decodeUnicodeEscapes;
+  final QueryCache queryCache;
+  final AnalysisCache analysisCache;
+  final Thesaurus thesaurus;
+  final int maxProximityClauses;
+  final boolean factorProximityOrs;
+  final boolean optimizeQueries;
+  final boolean ordinalProximity;
+  final int sentenceWindow;
+  final int paragraphWindow;
+  final MultiTermSpanRewrite multiTermSpanRewrite;
+  final SpanRewriteCache spanRewriteCache;
+
+  CompiledConfiguration(QsolConfiguration config) {
+    Map<String, FindReplace> findReplace = new HashMap<String, FindReplace>(
+        config.thesaurusFindReplace);
+    findReplace.putAll(config.findReplace);
+
+    Set<FindReplaceRegEx> findReplaceRegEx = new LinkedHashSet<FindReplaceRegEx>(
+        config.findReplaceRegEx);
+
+    Map<String, Integer> zeroPadFields = Collections.EMPTY_MAP;
+
+    if (config.zeroPadFields != null) {
+      zeroPadFields = new HashMap<String, Integer>(config.zeroPadFields);
+    }
+
+    this.dateFields = Collections.unmodifiableSet(new HashSet<String>(
+        config.dateFields));
+    this.findReplace = Collections.unmodifiableMap(findReplace);
+    this.findReplaceRegEx = Collections.unmodifiableSet(findReplaceRegEx);
+    this.findReplaceMatcher = new FindReplaceMatcher(findReplace,
+        findReplaceRegEx);
+    this.orderOfOpsMap = Collections
+        .unmodifiableMap(new HashMap<Operator, Integer>(config.orderOfOpsMap));
+    this.opsList = Collections.unmodifiableList(new ArrayList<Operator>(
+        config.opsList));
+    this.fieldMapping = Collections.unmodifiableMap(new HashMap<String, String>(
+        config.fieldMapping));
+    this.zeroPadFields = Collections.unmodifiableMap(zeroPadFields);
+    this.dateParser = config.dateParser;
+    this.paragraphMarker = config.paragraphMarker;
+    this.sentenceMarker = config.sentenceMarker;
+    this.fieldBreakMarker = config.fieldBreakMarker;
+    this.useHide = config.useHide;
+    this.hideOr = config.hideOr;
+    this.hideAnd = config.hideAnd;
+    this.hideAndNot = config.hideAndNot;
+    this.hideProximity = config.hideProximity;
+    this.rewriteInPlace = config.rewriteInPlace;
+    this.decodeUnicodeEscapes = config.decodeUnicodeEscapes;
+    this.queryCache = config.queryCache;
+    this.analysisCache = config.analysisCache;
+    this.thesaurus = config.thesaurus;
+    this.maxProximityClauses = config.maxProximityClauses;
+    this.factorProximityOrs = config.factorProximityOrs;
+    this.optimizeQueries = config.optimizeQueries;
+    this.ordinalProximity = config.ordinalProximity;
+    this.sentenceWindow = config.sentenceWindow;
+    this.paragraphWindow = config.paragraphWindow;
+    this.multiTermSpanRewrite = config.multiTermSpanRewrite;
+    this.spanRewriteCache = config.spanRewriteCache;
+  }
+}
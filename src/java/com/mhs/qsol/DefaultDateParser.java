@@ -26,21 +26,52 @@ import org.apache.lucene.search.TermRangeFilter;
 
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Parses dates with the short date format of the locale, leniently, so
+ * <code>6/34/02</code> is July 4th. The format of each locale is looked up
+ * once and kept: dates made of three numbers in the order and with the
+ * separator of the locale's format (<code>3/23/2004</code> in the US,
+ * <code>23.03.2004</code> in Germany), and ISO dates (<code>2004-03-23</code>)
+ * in any locale, are read directly, without a <code>DateFormat</code>. Other
+ * dates go through a copy of the locale's <code>DateFormat</code>.
+ * <p>
+ * Two digit years are read as <code>SimpleDateFormat</code> reads them, into
+ * the century starting 80 years ago. Ranges of ISO dates are written
+ * <code>2004-03-23 - 2004-06-01</code>.
+ * <p>
+ * Holds no per-call state, so one instance may be shared by any number of
+ * parsers and threads.
+ */
 public class DefaultDateParser implements DateParser {
   private static final Pattern DATE_TO_DATE = Pattern
       .compile("(.*)\\s?-\\s?(.*)");
   private static final Pattern BEFORE_DATE = Pattern.compile("<(.*)");
   private static final Pattern AFTER_DATE = Pattern.compile(">(.*)");
+  private static final Pattern ISO_DATE = Pattern
+      .compile("\\s*\\d{4}-\\d{1,2}-\\d{1,2}\\s*");
+  private static final Pattern ISO_DATE_TO_DATE = Pattern
+      .compile("\\s*(\\d{4}-\\d{1,2}-\\d{1,2})\\s*-\\s*"
+          + "(\\d{4}-\\d{1,2}-\\d{1,2})\\s*");
+
+  private static final ConcurrentMap<Locale, LocaleDates> localeDates =
+      new ConcurrentHashMap<Locale, LocaleDates>();
 
   public Query buildDateQuery(String field, String date, Locale locale) {
-    DateFormat df = DateFormat.getDateInstance(DateFormat.SHORT, locale);
-    df.setLenient(true);
+    LocaleDates dates = getLocaleDates(locale);
 
     Matcher m;
 
@@ -48,7 +79,7 @@ public class DefaultDateParser implements DateParser {
       Date date1 = null;
 
       try {
-        date1 = df.parse(m.group(1).trim());
+        date1 = dates.parse(m.group(1).trim());
       } catch (ParseException e) {
         throw new QsolParseException(e);
       }
@@ -61,7 +92,7 @@ public class DefaultDateParser implements DateParser {
       Date date1 = null;
 
       try {
-        date1 = df.parse(m.group(1).trim());
+        date1 = dates.parse(m.group(1).trim());
       } catch (ParseException e) {
         throw new QsolParseException("Could not parse date", e);
       }
@@ -70,20 +101,19 @@ public class DefaultDateParser implements DateParser {
           date1, Resolution.DAY));
 
       return new ConstantScoreQuery(filter);
-    } else if ((m = DATE_TO_DATE.matcher(date)).find()) {
+    } else if (!ISO_DATE.matcher(date).matches()
+        && ((m = ISO_DATE_TO_DATE.matcher(date)).matches() || (m = DATE_TO_DATE
+            .matcher(date)).find())) {
       Date date1 = null;
       Date date2 = null;
 
       try {
-        date1 = df.parse(m.group(1).trim());
-        date2 = df.parse(m.group(2).trim());
+        date1 = dates.parse(m.group(1).trim());
+        date2 = dates.parse(m.group(2).trim());
       } catch (ParseException e) {
         throw new QsolParseException(e);
       }
 
-      if ((date1 != null) && (date2 != null)) {
-      }
-
       return new ConstantScoreQuery(new TermRangeFilter(field, DateTools
           .dateToString(date1, Resolution.DAY), DateTools.dateToString(date2,
           Resolution.DAY), true, true));
@@ -91,7 +121,7 @@ public class DefaultDateParser implements DateParser {
       Date date1 = null;
 
       try {
-        date1 = df.parse(date.toString());
+        date1 = dates.parse(date.toString());
       } catch (ParseException e) {
         throw new QsolParseException(e);
       }
@@ -100,4 +130,214 @@ public class DefaultDateParser implements DateParser {
           Resolution.DAY)));
     }
   }
+
+  private static LocaleDates getLocaleDates(Locale locale) {
+    LocaleDates dates = localeDates.get(locale);
+
+    if (dates == null) {
+      // two threads may both build it; either result will do
+      dates = new LocaleDates(locale);
+      localeDates.put(locale, dates);
+    }
+
+    return dates;
+  }
+
+  /**
+   * The short date format of a locale, read apart once. Never modified after
+   * it is built.
+   */
+  private static final class LocaleDates {
+    private static final int YEAR = 0;
+    private static final int MONTH = 1;
+    private static final int DAY = 2;
+
+    private final DateFormat format;
+
+    /** which of YEAR, MONTH and DAY each number is, or null */
+    private final int[] order;
+    private final char separator;
+    private final boolean twoDigitYears;
+
+    LocaleDates(Locale locale) {
+      format = DateFormat.getDateInstance(DateFormat.SHORT, locale);
+      format.setLenient(true);
+
+      int[] order = null;
+      char separator = 0;
+      int yearLetters = 0;
+
+      // only a pattern of three numbers between two equal separators, on the
+      // Gregorian calendar, is read directly
+      if ((format instanceof SimpleDateFormat)
+          && (format.getCalendar().getClass() == GregorianCalendar.class)) {
+        List<String> runs = splitRuns(((SimpleDateFormat) format).toPattern());
+
+        if ((runs.size() == 5) && (runs.get(1).length() == 1)
+            && runs.get(1).equals(runs.get(3))) {
+          separator = runs.get(1).charAt(0);
+          order = new int[3];
+
+          for (int i = 0; (i < 3) && (order != null); i++) {
+            String run = runs.get(i * 2);
+
+            if (run.charAt(0) == 'y') {
+              order[i] = YEAR;
+              yearLetters = run.length();
+            } else if ((run.charAt(0) == 'M') && (run.length() <= 2)) {
+              order[i] = MONTH;
+            } else if (run.charAt(0) == 'd') {
+              order[i] = DAY;
+            } else {
+              order = null;
+            }
+          }
+
+          if (Character.isLetterOrDigit(separator) || (separator == '\'')
+              || ((order != null) && ((order[0] == order[1])
+                  || (order[1] == order[2]) || (order[0] == order[2])))) {
+            order = null;
+          }
+        }
+      }
+
+      this.order = order;
+      this.separator = separator;
+      this.twoDigitYears = yearLetters <= 2;
+    }
+
+    /**
+     * Splits a pattern into runs of the same character.
+     */
+    private static List<String> splitRuns(String pattern) {
+      List<String> runs = new ArrayList<String>();
+      int i = 0;
+
+      while (i < pattern.length()) {
+        int start = i;
+        char c = pattern.charAt(i);
+
+        while ((i < pattern.length()) && (pattern.charAt(i) == c)) {
+          i++;
+        }
+
+        runs.add(pattern.substring(start, i));
+      }
+
+      return runs;
+    }
+
+    Date parse(String text) throws ParseException {
+      Date date = parseNumbers(text);
+
+      if (date != null) {
+        return date;
+      }
+
+      DateFormat df = (DateFormat) format.clone();
+      df.setTimeZone(TimeZone.getDefault());
+
+      return df.parse(text);
+    }
+
+    /**
+     * @return the date, or null if <code>text</code> is not an ISO date or
+     *         three numbers in the order of the locale's format
+     */
+    private Date parseNumbers(String text) {
+      int[] numbers = new int[3];
+      int[] digits = new int[3];
+      String trimmed = text.trim();
+
+      if ((trimmed.length() > 4) && (trimmed.charAt(4) == '-')
+          && readNumbers(trimmed, '-', numbers, digits) && (digits[0] == 4)) {
+        return toDate(numbers[0], numbers[1], numbers[2], false);
+      }
+
+      if ((order == null) || !readNumbers(text, separator, numbers, digits)) {
+        return null;
+      }
+
+      int year = 0;
+      int month = 0;
+      int day = 0;
+      boolean ambiguousYear = false;
+
+      for (int i = 0; i < 3; i++) {
+        if (order[i] == YEAR) {
+          year = numbers[i];
+          ambiguousYear = twoDigitYears && (digits[i] == 2);
+        } else if (order[i] == MONTH) {
+          month = numbers[i];
+        } else {
+          day = numbers[i];
+        }
+      }
+
+      return toDate(year, month, day, ambiguousYear);
+    }
+
+    private static boolean readNumbers(String text, char separator,
+        int[] numbers, int[] digits) {
+      int pos = 0;
+
+      for (int i = 0; i < 3; i++) {
+        int start = pos;
+        int number = 0;
+
+        while ((pos < text.length()) && (pos - start < 9)
+            && (text.charAt(pos) >= '0') && (text.charAt(pos) <= '9')) {
+          number = (number * 10) + (text.charAt(pos++) - '0');
+        }
+
+        if (pos == start) {
+          return false;
+        }
+
+        numbers[i] = number;
+        digits[i] = pos - start;
+
+        if (i < 2) {
+          if ((pos == text.length()) || (text.charAt(pos) != separator)) {
+            return false;
+          }
+
+          pos++;
+        }
+      }
+
+      return pos == text.length();
+    }
+
+    /**
+     * Builds the date as a lenient <code>SimpleDateFormat</code> would, in the
+     * default time zone.
+     */
+    private static Date toDate(int year, int month, int day,
+        boolean ambiguousYear) {
+      Calendar calendar = new GregorianCalendar();
+      Date centuryStart = null;
+
+      if (ambiguousYear) {
+        calendar.add(Calendar.YEAR, -80);
+        centuryStart = calendar.getTime();
+
+        int startYear = calendar.get(Calendar.YEAR);
+        year += ((startYear / 100) * 100)
+            + ((year < (startYear % 100)) ? 100 : 0);
+      }
+
+      calendar.clear();
+      calendar.set(year, month - 1, day);
+
+      Date date = calendar.getTime();
+
+      if ((centuryStart != null) && date.before(centuryStart)) {
+        calendar.add(Calendar.YEAR, 100);
+        date = calendar.getTime();
+      }
+
+      return date;
+    }
+  }
 }
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The find/replace expanders of a configuration, compiled for matching.
+ * <p>
+ * Regex expanders are combined into a single alternation with one capturing
+ * group per expander, so one match attempt finds the first expander that
+ * matches a token and reports which one it was. Each alternative is guarded
+ * by a lookbehind on a character placed before the token, which lets the
+ * search resume after a given expander without a second pattern. Guard
+ * characters come from the private use area, so a word boundary at the start
+ * of a pattern sees the same non-word character for every expander.
+ * <p>
+ * Entries whose find String is several words (for example, a thesaurus entry
+ * for "new york") are held in a word trie keyed on the lowercase words, and
+ * are matched against runs of search tokens. Single word entries are looked
+ * up in the find/replace map as before.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+final class FindReplaceMatcher {
+  private static final Pattern BACK_REFERENCE = Pattern
+      .compile("\\\\(\\d|k<)");
+  private static final Pattern LOOKBEHIND = Pattern.compile("\\(\\?<[=!]");
+  private static final Pattern NAMED_GROUP = Pattern
+      .compile("\\(\\?<[a-zA-Z]");
+  private static final Pattern QUOTE = Pattern.compile("\\\\Q");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  /** Guard character for the first expander; never a word character. */
+  private static final char FIRST_GUARD = '\ue000';
+  private static final char LAST_GUARD = '\uf8ff';
+
+  private final FindReplaceRegEx[] rules;
+  private final Pattern combined;
+  private final int[] ruleGroups;
+  private final Map<String, PhraseNode> phrases = new HashMap<String, PhraseNode>();
+  private int maxPhraseWords;
+
+  /**
+   * @param findReplace
+   *          find/replace entries keyed on their lowercase find String
+   * @param findReplaceRegEx
+   *          regex expanders, in the order they are to be tried
+   */
+  FindReplaceMatcher(Map<String, FindReplace> findReplace,
+      Collection<FindReplaceRegEx> findReplaceRegEx) {
+    this.rules = findReplaceRegEx.toArray(new FindReplaceRegEx[findReplaceRegEx
+        .size()]);
+    this.ruleGroups = new int[rules.length];
+    this.combined = combine(rules, ruleGroups);
+
+    for (Map.Entry<String, FindReplace> entry : findReplace.entrySet()) {
+      String[] words = WHITESPACE.split(entry.getKey().trim());
+
+      if (words.length > 1) {
+        addPhrase(words, entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Builds an alternation with one group per expander, each preceded by a
+   * lookbehind that only accepts a guard character no greater than the
+   * expander's guard. Returns <code>null</code> if the patterns cannot be
+   * safely combined (more expanders than guard characters, flags other than
+   * case insensitivity, back references that
+   * would be renumbered, lookbehinds that would see the guard character,
+   * named groups that could clash, or quoting that could run past the end of
+   * a pattern), in which case each expander is matched on its own.
+   */
+  private static Pattern combine(FindReplaceRegEx[] rules, int[] ruleGroups) {
+    if ((rules.length == 0) || (rules.length > (LAST_GUARD - FIRST_GUARD + 1))) {
+      return null;
+    }
+
+    StringBuilder combined = new StringBuilder();
+    int groups = 0;
+
+    for (int i = 0; i < rules.length; i++) {
+      Pattern pattern = rules[i].getPattern();
+      int flags = pattern.flags();
+
+      if (((flags & ~Pattern.CASE_INSENSITIVE) != 0)
+          || BACK_REFERENCE.matcher(pattern.pattern()).find()
+          || LOOKBEHIND.matcher(pattern.pattern()).find()
+          || NAMED_GROUP.matcher(pattern.pattern()).find()
+          || QUOTE.matcher(pattern.pattern()).find()) {
+        return null;
+      }
+
+      if (i > 0) {
+        combined.append('|');
+      }
+
+      combined.append("(?<=[").append(
+          String.format("\\u%04x-\\u%04x", Integer.valueOf(FIRST_GUARD),
+              Integer.valueOf(FIRST_GUARD + i))).append("])(");
+      combined.append((flags == Pattern.CASE_INSENSITIVE) ? "(?i:" : "(?:");
+      combined.append(pattern.pattern()).append("))");
+
+      ruleGroups[i] = ++groups;
+      groups += pattern.matcher("").groupCount();
+    }
+
+    try {
+      return Pattern.compile(combined.toString());
+    } catch (PatternSyntaxException e) {
+      return null;
+    }
+  }
+
+  private void addPhrase(String[] words, FindReplace findReplace) {
+    PhraseNode node = phrases.get(words[0]);
+
+    if (node == null) {
+      node = new PhraseNode();
+      phrases.put(words[0], node);
+    }
+
+    for (int i = 1; i < words.length; i++) {
+      node = node.child(words[i]);
+    }
+
+    node.entry = findReplace;
+    node.find = join(WHITESPACE.split(findReplace.getFind().trim()), 0,
+        words.length);
+    maxPhraseWords = Math.max(maxPhraseWords, words.length);
+  }
+
+  /**
+   * Returns the index of the first regex expander, at or after
+   * <code>from</code>, whose pattern matches all of <code>token</code>.
+   *
+   * @param token
+   *          token to match
+   * @param from
+   *          index of the first expander to try
+   * @return expander index, or -1 if none match
+   */
+  int matchRegEx(String token, int from) {
+    if (from >= rules.length) {
+      return -1;
+    }
+
+    if (combined == null) {
+      for (int i = from; i < rules.length; i++) {
+        if (rules[i].getPattern().matcher(token).matches()) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+
+    String input = ((char) (FIRST_GUARD + from)) + token;
+    Matcher m = combined.matcher(input);
+    m.useTransparentBounds(true);
+    m.region(1, input.length());
+
+    if (!m.matches()) {
+      return -1;
+    }
+
+    for (int i = from; i < rules.length; i++) {
+      if (m.start(ruleGroups[i]) != -1) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * @param i
+   *          index returned by <code>matchRegEx</code>
+   * @return the regex expander
+   */
+  FindReplaceRegEx getRegEx(int i) {
+    return rules[i];
+  }
+
+  /**
+   * @return true if any entry has a find String of more than one word
+   */
+  boolean hasPhrases() {
+    return maxPhraseWords > 0;
+  }
+
+  /**
+   * Finds the longest multiple word entry that matches the words starting at
+   * <code>start</code>. A <code>null</code> word ends the run of words that
+   * can be matched.
+   *
+   * @param words
+   *          search tokens, or <code>null</code> for nodes that are not plain
+   *          search tokens
+   * @param start
+   *          index of the first word
+   * @param fields
+   *          fields currently being searched, for field specific entries
+   * @param found
+   *          receives the matched entry in element 0
+   * @return number of words matched, or 0 if no entry matched
+   */
+  int matchPhrase(String[] words, int start, Set<String> fields,
+      FindReplace[] found) {
+    if (words[start] == null) {
+      return 0;
+    }
+
+    PhraseNode node = phrases.get(words[start].toLowerCase());
+    int end = Math.min(words.length, start + maxPhraseWords);
+    int length = 0;
+
+    for (int i = start + 1; (node != null) && (i < end) && (words[i] != null); i++) {
+      node = (node.children == null) ? null : node.children.get(words[i]
+          .toLowerCase());
+
+      if ((node != null) && (node.entry != null)) {
+        FindReplace entry = node.entry;
+
+        if (((entry.getField() == null) || fields.contains(entry.getField()))
+            && (!entry.isCaseSensitive() || node.find.equals(join(words,
+                start, i + 1)))) {
+          length = i - start + 1;
+          found[0] = entry;
+        }
+      }
+    }
+
+    return length;
+  }
+
+  private static String join(String[] words, int start, int end) {
+    StringBuilder sb = new StringBuilder();
+
+    for (int i = start; i < end; i++) {
+      if (i > start) {
+        sb.append(' ');
+      }
+
+      sb.append(words[i]);
+    }
+
+    return sb.toString();
+  }
+
+  private static final class PhraseNode {
+    Map<String, PhraseNode> children;
+    FindReplace entry;
+    String find;
+
+    PhraseNode child(String word) {
+      if (children == null) {
+        children = new HashMap<String, PhraseNode>(4);
+      }
+
+      PhraseNode child = children.get(word);
+
+      if (child == null) {
+        child = new PhraseNode();
+        children.put(word, child);
+      }
+
+      return child;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+
+import org.apache.lucene.analysis.Analyzer;
+
+import com.mhs.qsol.syntaxtree.FieldSearch;
+import com.mhs.qsol.syntaxtree.NodeChoice;
+import com.mhs.qsol.syntaxtree.SearchToken;
+import com.mhs.qsol.visitor.DepthFirstVisitor;
+
+/**
+ * Collects the tokens of a parse tree that <code>QsolToQueryVisitor</code>
+ * will run through the analyzer, each with the field it will be analyzed for,
+ * so that they can be analyzed ahead of time on several threads. Each distinct
+ * (field, token) pair is collected once.
+ * <p>
+ * Only plain, quoted and boosted tokens (and the thesaurus synonyms of plain
+ * tokens) are collected; wildcard, fuzzy, range and date tokens are not
+ * analyzed. A token the query builder asks for that was not collected is
+ * simply analyzed when it is reached.
+ */
+final class LeafTokenCollector extends DepthFirstVisitor {
+  private final Map<String, String> fieldMap;
+  private final Set<String> dateFields;
+  private final Thesaurus thesaurus;
+  private final Set<String> seen = new HashSet<String>();
+  private final List<String> fields = new ArrayList<String>();
+  private final List<String> tokens = new ArrayList<String>();
+  private String field;
+
+  LeafTokenCollector(String field, Map<String, String> fieldMap,
+      Set<String> dateFields, Thesaurus thesaurus) {
+    this.field = field;
+    this.fieldMap = fieldMap;
+    this.dateFields = dateFields;
+    this.thesaurus = thesaurus;
+  }
+
+  /**
+   * @return number of distinct tokens collected
+   */
+  int size() {
+    return tokens.size();
+  }
+
+  /**
+   * Analyzes the collected tokens with up to <code>workers</code> threads:
+   * the calling thread and <code>workers - 1</code> tasks on
+   * <code>executor</code>. Each worker fills its own term buffer, and the
+   * analyzer hands each thread its own reusable token stream.
+   *
+   * @param analyzer
+   *          analyzer the query builder will use
+   * @param cache
+   *          cache to consult and fill, or <code>null</code>
+   * @param executor
+   *          runs the other workers
+   * @param workers
+   *          number of threads to analyze in, counting the calling thread
+   * @return read-only terms keyed on <code>key(field, token)</code>
+   */
+  Map<String, AnalyzedTerms> analyze(final Analyzer analyzer,
+      final AnalysisCache cache, Executor executor, int workers) {
+    final int size = tokens.size();
+    final AnalyzedTerms[] results = new AnalyzedTerms[size];
+    final AtomicInteger next = new AtomicInteger();
+
+    Util.runWorkers(new Runnable() {
+      public void run() {
+        AnalyzedTerms buffer = new AnalyzedTerms();
+        buffer.setCache(cache);
+
+        int i;
+
+        while ((i = next.getAndIncrement()) < size) {
+          AnalyzedTerms terms = buffer.analyze(analyzer, fields.get(i), tokens
+              .get(i));
+          // cache entries are already read-only copies
+          results[i] = (terms == buffer) ? new AnalyzedTerms(terms) : terms;
+        }
+      }
+    }, executor, Math.min(workers, size) - 1);
+
+    Map<String, AnalyzedTerms> analyzed = new HashMap<String, AnalyzedTerms>(
+        (size * 4 / 3) + 1);
+
+    for (int i = 0; i < size; i++) {
+      analyzed.put(key(fields.get(i), tokens.get(i)), results[i]);
+    }
+
+    return analyzed;
+  }
+
+  static String key(String field, String token) {
+    return field + '\u0000' + token;
+  }
+
+  private void add(String token) {
+    token = QsolToQueryVisitor.removeEscapeChars(token);
+
+    if (seen.add(key(field, token))) {
+      fields.add(field);
+      tokens.add(token);
+    }
+  }
+
+  /**
+   * f0 -> <FIELDSTART> f1 -> CheckOrd1Search() f2 -> ")"
+   */
+  public void visit(FieldSearch n) {
+    String oldField = field;
+
+    for (String name : n.f0.toString().split(",")) {
+      String mapTo = fieldMap.get(name);
+      field = (mapTo == null) ? name : mapTo;
+
+      if (!dateFields.contains(field)) {
+        n.f1.accept(this);
+      }
+    }
+
+    field = oldField;
+  }
+
+  /**
+   * f0 -> <MATCHALL> | <QUOTED> | <BOOSTEDQUOTED> | <RANGE> | <WILDCARD> |
+   * <FUZZY> | <BOOSTEDSEARCHTOKEN> | <SEARCHTOKEN>
+   */
+  public void visit(SearchToken n) {
+    NodeChoice choice = (NodeChoice) n.f0;
+    String image = choice.choice.toString();
+    Matcher m;
+
+    switch (choice.which) {
+    case 1:
+      m = QsolToQueryVisitor.GET_SLOP.matcher(image);
+      add(m.matches() ? m.group(1) : image.substring(1, image.length() - 1));
+
+      break;
+    case 2:
+      m = QsolToQueryVisitor.GET_SLOP_AND_BOOST.matcher(image);
+
+      if (m.matches()) {
+        add(m.group(1));
+      }
+
+      break;
+    case 6:
+      m = QsolToQueryVisitor.BOOST_EXTRACTOR.matcher(image);
+
+      if (m.matches()) {
+        add(m.group(1));
+      }
+
+      break;
+    case 7:
+      String[] synonyms = (thesaurus == null) ? null : thesaurus
+          .getSynonyms(QsolToQueryVisitor.removeEscapeChars(image));
+
+      if (synonyms == null) {
+        add(image);
+      } else {
+        for (String synonym : synonyms) {
+          add(synonym);
+        }
+      }
+
+      break;
+    default:
+      break;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used map with hit, miss and eviction counters,
+ * safe for use by any number of threads. It holds the entries of
+ * <code>QueryCache</code>, <code>AnalysisCache</code> and
+ * <code>SpanRewriteCache</code>, which add only their keys; it is public so
+ * that the spans package can use it, and is not meant to be used directly.
+ * <p>
+ * Several caches may count into one <code>Stats</code>, as the per-reader
+ * caches of a <code>SpanRewriteCache</code> do.
+ *
+ * @since 1.0
+ */
+public final class LruCache<K, V> {
+  private final int maxSize;
+  private final Stats stats;
+  private final Map<K, V> map;
+
+  /**
+   * @param maxSize
+   *          maximum number of entries to keep
+   */
+  public LruCache(int maxSize) {
+    this(maxSize, new Stats());
+  }
+
+  /**
+   * @param maxSize
+   *          maximum number of entries to keep
+   * @param stats
+   *          counters to count lookups and evictions into
+   */
+  public LruCache(int maxSize, Stats stats) {
+    checkMaxSize(maxSize);
+    this.maxSize = maxSize;
+    this.stats = stats;
+    this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        if (size() > LruCache.this.maxSize) {
+          LruCache.this.stats.evicted();
+
+          return true;
+        }
+
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @throws IllegalArgumentException
+   *           if <code>maxSize</code> is less than 1
+   */
+  public static void checkMaxSize(int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be at least 1: "
+          + maxSize);
+    }
+  }
+
+  /**
+   * @return the entry for <code>key</code>, or <code>null</code>; counted as
+   *         a hit or a miss
+   */
+  public synchronized V get(K key) {
+    V value = map.get(key);
+
+    if (value == null) {
+      stats.miss();
+    } else {
+      stats.hit();
+    }
+
+    return value;
+  }
+
+  public synchronized void put(K key, V value) {
+    map.put(key, value);
+  }
+
+  /**
+   * Removes all entries. The counters are left as they are.
+   */
+  public synchronized void clear() {
+    map.clear();
+  }
+
+  public synchronized int size() {
+    return map.size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  /**
+   * Lookup and eviction counts.
+   */
+  public static final class Stats {
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    synchronized void hit() {
+      hits++;
+    }
+
+    synchronized void miss() {
+      misses++;
+    }
+
+    synchronized void evicted() {
+      evictions++;
+    }
+
+    public synchronized long getHits() {
+      return hits;
+    }
+
+    public synchronized long getMisses() {
+      return misses;
+    }
+
+    public synchronized long getEvictions() {
+      return evictions;
+    }
+
+    /**
+     * @return hits divided by lookups, or 0 if there have been no lookups
+     */
+    public synchronized double getHitRate() {
+      long lookups = hits + misses;
+
+      return (lookups == 0) ? 0 : ((double) hits / lookups);
+    }
+
+    public synchronized String toString() {
+      return "hits=" + hits + ", misses=" + misses + ", evictions="
+          + evictions;
+    }
+  }
+}
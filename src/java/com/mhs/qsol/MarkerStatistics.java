@@ -0,0 +1,178 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermPositions;
+
+/**
+ * The lengths, in positions, of the sentences or paragraphs of a field, read
+ * from the postings of its marker token. A sentence runs from the position
+ * after one marker up to and including the next, so each length counts the
+ * marker. Text after the last marker of a document, or in a document with no
+ * marker, is measured as one more sentence, so the longest length is a safe
+ * window.
+ * <p>
+ * Used to pick a sentence or paragraph window for the parser:
+ *
+ * <pre>
+ * MarkerStatistics stats = MarkerStatistics.measure(reader, &quot;body&quot;, &quot;/s&quot;);
+ * parser.setSentenceWindow(stats.getMaxLength());
+ * </pre>
+ *
+ * @see QsolParser#setSentenceWindow(int)
+ * @see QsolParser#setParagraphWindow(int)
+ * @since 1.0
+ */
+public class MarkerStatistics {
+  private final int count;
+  private final long totalLength;
+  private final int maxLength;
+
+  private MarkerStatistics(int count, long totalLength, int maxLength) {
+    this.count = count;
+    this.totalLength = totalLength;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Reads every position of <code>marker</code> in <code>field</code>, and
+   * the last position of every document, which takes a pass over the postings
+   * of every term in <code>field</code>.
+   *
+   * @param reader
+   *          index to measure
+   * @param field
+   *          field the markers are in
+   * @param marker
+   *          sentence or paragraph marker token
+   * @return the lengths found
+   * @throws IOException
+   *           if the postings cannot be read
+   */
+  public static MarkerStatistics measure(IndexReader reader, String field,
+      String marker) throws IOException {
+    TermPositions positions = reader.termPositions(new Term(field, marker));
+    int count = 0;
+    long totalLength = 0;
+    int maxLength = 0;
+    // per document, the last marker position and the last position
+    int[] lastMarker = new int[reader.maxDoc()];
+    int[] lastPosition = new int[reader.maxDoc()];
+    Arrays.fill(lastMarker, -1);
+    Arrays.fill(lastPosition, -1);
+
+    try {
+      while (positions.next()) {
+        int freq = positions.freq();
+        int last = -1;
+
+        for (int i = 0; i < freq; i++) {
+          int position = positions.nextPosition();
+          int length = position - last;
+
+          count++;
+          totalLength += length;
+          maxLength = Math.max(maxLength, length);
+          last = position;
+        }
+
+        lastMarker[positions.doc()] = last;
+      }
+    } finally {
+      positions.close();
+    }
+
+    readLastPositions(reader, field, lastPosition);
+
+    for (int doc = 0; doc < lastPosition.length; doc++) {
+      int length = lastPosition[doc] - lastMarker[doc];
+
+      if (length > 0) {
+        count++;
+        totalLength += length;
+        maxLength = Math.max(maxLength, length);
+      }
+    }
+
+    return new MarkerStatistics(count, totalLength, maxLength);
+  }
+
+  private static void readLastPositions(IndexReader reader, String field,
+      int[] lastPosition) throws IOException {
+    TermEnum terms = reader.terms(new Term(field, ""));
+    TermPositions positions = reader.termPositions();
+
+    try {
+      do {
+        Term term = terms.term();
+
+        if ((term == null) || !term.field().equals(field)) {
+          break;
+        }
+
+        positions.seek(terms);
+
+        while (positions.next()) {
+          int freq = positions.freq();
+          int position = -1;
+
+          // positions come in order, so the last is the greatest
+          for (int i = 0; i < freq; i++) {
+            position = positions.nextPosition();
+          }
+
+          int doc = positions.doc();
+          lastPosition[doc] = Math.max(lastPosition[doc], position);
+        }
+      } while (terms.next());
+    } finally {
+      positions.close();
+      terms.close();
+    }
+  }
+
+  /**
+   * @return number of sentences or paragraphs measured
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return mean length, or 0 if there were no markers
+   */
+  public double getAverageLength() {
+    return (count == 0) ? 0 : ((double) totalLength / count);
+  }
+
+  /**
+   * @return longest length, or 0 if there were no markers
+   */
+  public int getMaxLength() {
+    return maxLength;
+  }
+
+  public String toString() {
+    return "MarkerStatistics(count=" + count + ", averageLength="
+        + getAverageLength() + ", maxLength=" + maxLength + ")";
+  }
+}
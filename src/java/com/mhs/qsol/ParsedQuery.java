@@ -0,0 +1,139 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * A parsed query and a handle on its suggested search. Spellings are not
+ * looked up while the query is parsed: if the parser has a suggest executor
+ * they are looked up there, otherwise the first time the suggested search is
+ * asked for, in the asking thread. A caller that only wants a suggestion when
+ * the search finds nothing pays for it only then.
+ *
+ * @see QsolParser#parseWithSuggestion(String, String, org.apache.lucene.analysis.Analyzer)
+ * @since 1.0
+ */
+public class ParsedQuery {
+  private final Query query;
+  private final SuggestionTask suggestedSearch;
+
+  ParsedQuery(Query query, final SuggestedSearch suggestion) {
+    this.query = query;
+
+    if (suggestion == null) {
+      this.suggestedSearch = null;
+    } else {
+      this.suggestedSearch = new SuggestionTask(new Callable<String>() {
+        public String call() {
+          return suggestion.getSuggestion();
+        }
+      });
+    }
+  }
+
+  /**
+   * Starts looking up the suggested search on <code>executor</code>.
+   */
+  void submit(Executor executor) {
+    if (suggestedSearch != null) {
+      executor.execute(suggestedSearch);
+    }
+  }
+
+  public Query getQuery() {
+    return query;
+  }
+
+  /**
+   * @return whether the parser had suggestions turned on
+   */
+  public boolean hasSuggestedSearch() {
+    return suggestedSearch != null;
+  }
+
+  /**
+   * Returns the suggested search, looking it up in the calling thread if no
+   * executor has started on it, or waiting for the executor if it has.
+   *
+   * @return suggested search, or an empty String if no suitable suggestion is
+   *         found
+   */
+  public String getSuggestedSearch() {
+    Future<String> future = getSuggestedSearchFuture();
+
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the suggested search as a <code>Future</code>. Unless the parser
+   * has a suggest executor, nothing looks the suggestion up until
+   * <code>get</code> is called on the <code>Future</code>, or
+   * <code>getSuggestedSearch</code> is called; the lookup then runs in the
+   * calling thread.
+   *
+   * @return the suggested search to come
+   */
+  public Future<String> getSuggestedSearchFuture() {
+    if (suggestedSearch == null) {
+      throw new IllegalStateException("No Suggest index has been set");
+    }
+
+    return suggestedSearch;
+  }
+
+  /**
+   * Runs in the thread that asks for the result if no executor has started on
+   * it.
+   */
+  private static final class SuggestionTask extends FutureTask<String> {
+    SuggestionTask(Callable<String> callable) {
+      super(callable);
+    }
+
+    public String get() throws InterruptedException, ExecutionException {
+      run(); // does nothing if already started
+
+      return super.get();
+    }
+
+    public String get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      run();
+
+      return super.get(timeout, unit);
+    }
+  }
+}
@@ -80,32 +80,15 @@ public class ParserFactory {
    * Creates and returns a new <code>QsolParser</code>. If
    * <code>inheritSettings</code> is <code>true</code> the the returned parser
    * will inherit all of the settings that have been applied to this
-   * ParserFactory.
+   * ParserFactory. The parser shares the configuration's compiled snapshot
+   * rather than copying its settings.
    * 
    * @param inheritSettings
    * @return new <code>QsolParser</code>
    * @since 1.0
    */
   public QsolParser getParser(boolean inheritSettings) {
-    QsolParser parser = null;
-
-    if (inheritSettings) {
-      parser = new QsolParser(config, true);
-
-      if (config.useHide) {
-        parser.hideOperators(config.hideOr, config.hideAnd, config.hideAndNot,
-            config.hideProximity);
-      }
-
-      parser.setParagraphMarker(config.paragraphMarker);
-      parser.setSentenceMarker(config.sentenceMarker);
-
-      return parser;
-    }
-
-    parser = new QsolParser(config, false);
-
-    return parser;
+    return new QsolParser(config.compile(), inheritSettings);
   }
 
   Map<String, FindReplace> getThesaurusFindReplace() {
@@ -1,9 +1,11 @@
 package com.mhs.qsol;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -11,8 +13,12 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.store.Directory;
 
+import com.mhs.qsol.QsolParser.Operator;
+import com.mhs.qsol.queryparser.ParseException;
+import com.mhs.qsol.queryparser.QueryParserConstants;
+import com.mhs.qsol.queryparser.Token;
+import com.mhs.qsol.queryparser.TokenMgrError;
 import com.mhs.qsol.syntaxtree.BasicSearch;
 import com.mhs.qsol.syntaxtree.BasicSearchType;
 import com.mhs.qsol.syntaxtree.CheckOrd1Search;
@@ -21,7 +27,10 @@ import com.mhs.qsol.syntaxtree.CheckOrd3Search;
 import com.mhs.qsol.syntaxtree.CheckOrd4Search;
 import com.mhs.qsol.syntaxtree.FieldSearch;
 import com.mhs.qsol.syntaxtree.NodeChoice;
+import com.mhs.qsol.syntaxtree.Node;
 import com.mhs.qsol.syntaxtree.NodeList;
+import com.mhs.qsol.syntaxtree.NodeOptional;
+import com.mhs.qsol.syntaxtree.NodeToken;
 import com.mhs.qsol.syntaxtree.Ord1Search;
 import com.mhs.qsol.syntaxtree.Ord2Search;
 import com.mhs.qsol.syntaxtree.Ord3Search;
@@ -47,14 +56,15 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
   private String defaultOp = "&";
   private Map<String, FindReplace> findReplace = Collections.EMPTY_MAP;
   private Set<FindReplaceRegEx> findReplaceRegEx = Collections.EMPTY_SET;
+  private FindReplaceMatcher findReplaceMatcher;
   private boolean buildSuggestedSearch = false;
   private StringBuilder suggestedSearchPart;
   private SuggestedSearch suggestedSearch;
-  private Directory suggestedSearchDir;
+  private Suggester suggester;
   private Analyzer analyzer;
-  private boolean useFindReplaceRegEx;
   private boolean isDefaultOpOn = true;
   private Set<String> fields = new HashSet<String>();
+  private Map<Operator, Integer> orderOfOps;
 
   private Map<String, Integer> zeroPadFields;
 
@@ -78,11 +88,16 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
   }
 
   public String getSuggestedSearch() {
-    if (suggestedSearch.foundSuggestion()) {
-      return suggestedSearch.getSuggestedSearch();
-    } else {
-      return "";
-    }
+    return suggestedSearch.getSuggestion();
+  }
+
+  /**
+   * @return the suggested search built from the last query visited, with no
+   *         spelling looked up yet, or <code>null</code> if suggestions are
+   *         off
+   */
+  public SuggestedSearch getSuggestion() {
+    return suggestedSearch;
   }
 
   public void setAnalyzer(Analyzer analyzer) {
@@ -106,6 +121,7 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
 
   public void setFindReplace(Map<String, FindReplace> findReplace) {
     this.findReplace = findReplace;
+    this.findReplaceMatcher = null;
   }
 
   /**
@@ -113,9 +129,60 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
    *          the findReplaceRegEx to set
    */
   public void setFindReplaceRegEx(Set<FindReplaceRegEx> findReplaceRegEx) {
-    useFindReplaceRegEx = true;
-
     this.findReplaceRegEx = findReplaceRegEx;
+    this.findReplaceMatcher = null;
+  }
+
+  /**
+   * Sets the compiled form of the find/replace and regex expanders. It must
+   * have been built from the same tables as were passed to
+   * <code>setFindReplace</code> and <code>setFindReplaceRegEx</code>. If it is
+   * not set, it is built when the visitor is first used.
+   * 
+   * @param findReplaceMatcher
+   *          compiled expanders
+   */
+  void setFindReplaceMatcher(FindReplaceMatcher findReplaceMatcher) {
+    this.findReplaceMatcher = findReplaceMatcher;
+  }
+
+  private FindReplaceMatcher getFindReplaceMatcher() {
+    if (findReplaceMatcher == null) {
+      findReplaceMatcher = new FindReplaceMatcher(findReplace,
+          findReplaceRegEx);
+    }
+
+    return findReplaceMatcher;
+  }
+
+  /**
+   * Returns the search token images of <code>nodes</code>, with
+   * <code>null</code> for nodes that are not plain search tokens, or
+   * <code>null</code> if there are no multiple word find/replace entries to
+   * match against them.
+   */
+  private String[] phraseWords(NodeList nodes) {
+    int size = nodes.size();
+
+    if ((size < 2) || !getFindReplaceMatcher().hasPhrases()) {
+      return null;
+    }
+
+    String[] words = new String[size];
+
+    for (int i = 0; i < size; i++) {
+      Node choice = ((BasicSearchType) nodes.elementAt(i)).f0.choice;
+
+      if (choice instanceof SearchToken) {
+        NodeToken token = (NodeToken) ((SearchToken) choice).f0.choice;
+
+        if (token.kind == QueryParserConstants.SEARCHTOKEN) {
+          words[i] = token.tokenImage;
+        }
+      }
+    }
+
+    return words;
   }
 
   /**
@@ -126,9 +193,23 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
     defaultOp = "|";
   }
 
-  public void setSuggestedInfo(Directory dir) {
+  /**
+   * Sets the operator order used to lex replacement syntax and the default
+   * operator when rewriting a tree in place.
+   */
+  public void setOrderOfOps(Map<Operator, Integer> orderOfOps) {
+    this.orderOfOps = orderOfOps;
+  }
+
+  /**
+   * Builds a suggested search from the query, with suggestions from
+   * <code>suggester</code>.
+   * 
+   * @param suggester
+   */
+  public void setSuggester(Suggester suggester) {
     this.buildSuggestedSearch = true;
-    this.suggestedSearchDir = dir;
+    this.suggester = suggester;
   }
 
   /**
@@ -146,6 +227,8 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
     int size = basicSearchTypeNodes.size();
     String lastToken = null;
     boolean lastWasOp = false;
+    String[] words = phraseWords(basicSearchTypeNodes);
+    FindReplace[] phrase = new FindReplace[1];
 
     for (int i = 0; i < size; i++) {
       // I hate to repeat this control statement, but somehow it became
@@ -159,7 +242,16 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
         }
       }
 
-      String token = basicSearchTypeNodes.elementAt(i).accept(this, query);
+      int phraseLength = (words == null) ? 0 : findReplaceMatcher.matchPhrase(
+          words, i, fields, phrase);
+      String token;
+
+      if (phraseLength > 0) {
+        token = expandPhrase(phrase[0]);
+        i += (phraseLength - 1);
+      } else {
+        token = basicSearchTypeNodes.elementAt(i).accept(this, query);
+      }
 
       boolean useDefaultOp = isDefaultOpOn && !lastWasOp;
 
@@ -423,17 +515,12 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
 
     if (buildSuggestedSearch) {
       suggestedSearchPart = new StringBuilder();
-      suggestedSearch = new SuggestedSearch(suggestedSearchDir, analyzer);
+      suggestedSearch = new SuggestedSearch(suggester, analyzer);
     }
 
     // process replacement file
     returnString = n.f0.accept(this, query);
 
-    if (buildSuggestedSearch) {
-
-      suggestedSearch.getSuggestedSearch();
-
-    }
     if (logger.isLoggable(Level.FINE)) {
       logger.info("processed query:" + returnString);
 
@@ -454,21 +541,74 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
     // is wildcard etc.
     StringBuilder returnString = new StringBuilder();
 
-    String token = n.f0.choice.toString();
+    String token = expandToken(n.f0.choice.toString());
+
+    addSuggestedSearchToken(token);
+
+    NodeChoice choice = (NodeChoice) n.f0;
+
+    if (choice.which == 3) {
+      return padRange(choice.choice.toString());
+    }
+
+    token = checkZeroPad(token);
+
+    returnString.append(token);
+
+    return returnString.toString();
+  }
+
+  private void addSuggestedSearchToken(String token) {
+    if (buildSuggestedSearch) {
+      if (isDefaultOpOn == false) {
+        suggestedSearchPart.append(" " + token + " ");
+      } else {
+        suggestedSearch.addSlot(token);
+
+        suggestedSearch.addPart(suggestedSearchPart.toString());
+
+        suggestedSearchPart.setLength(0);
+      }
+    }
+  }
+
+  /**
+   * Replaces a run of search tokens matched by a multiple word find/replace
+   * entry. If the entry expands to an operator, the default operator is turned
+   * off.
+   */
+  private String expandPhrase(FindReplace phrase) {
+    String token = phrase.getReplacement();
+
+    if (phrase.isOperatorReplace()) {
+      isDefaultOpOn = false;
+    }
+
+    addSuggestedSearchToken(token);
+
+    return token;
+  }
+
+  /**
+   * Runs a token through the regex and plain find/replace expanders. If the
+   * token expands to an operator, the default operator is turned off.
+   */
+  private String expandToken(String token) {
     FindReplace replacment;
+    FindReplaceMatcher matcher = getFindReplaceMatcher();
+    String trimmed = token.trim();
 
-    if (useFindReplaceRegEx) {
-      for (FindReplaceRegEx fr : findReplaceRegEx) {
-        if ((fr.getField() == null) || fields.contains(fr.getField())) {
-          Matcher m = fr.getPattern().matcher(token.trim());
+    for (int i = matcher.matchRegEx(trimmed, 0); i != -1; i = matcher
+        .matchRegEx(trimmed, i + 1)) {
+      FindReplaceRegEx fr = matcher.getRegEx(i);
 
-          if (m.matches()) {
-            token = m.replaceFirst(fr.getReplacement());
+      if ((fr.getField() == null) || fields.contains(fr.getField())) {
+        token = fr.getPattern().matcher(trimmed).replaceFirst(
+            fr.getReplacement());
+        trimmed = token.trim();
 
-            if (fr.isOperatorReplace()) {
-              isDefaultOpOn = false;
-            }
-          }
+        if (fr.isOperatorReplace()) {
+          isDefaultOpOn = false;
         }
       }
     }
@@ -494,73 +634,469 @@ public class PreProcessVisitor extends GJDepthFirst<String, String> {
       }
     }
 
+    return token;
+  }
+
+  private String padRange(String range) {
+    Matcher m = QsolToQueryVisitor.RANGE_EXTRACTOR.matcher(range);
+
+    StringBuilder sb = new StringBuilder();
+
+    if (m.matches()) {
+      if (m.group(1) != null && m.group(1).equals("[")) {
+        sb.append(m.group(1));
+      }
+      String term1 = m.group(2);
+      String op = m.group(3);
+      String term2 = m.group(4);
+      sb.append(checkZeroPad(term1));
+      sb.append(" ");
+      sb.append(op);
+      sb.append(" ");
+      sb.append(checkZeroPad(term2));
+      if (m.group(1) != null && m.group(5).equals("]")) {
+        sb.append(m.group(5));
+      }
+      return sb.toString();
+    } else {
+
+      throw new RuntimeException(
+          "Range did not match in QsolToQueryVisitor but did with JavaCC parser");
+    }
+  }
+
+  private String checkZeroPad(String token) {
+    if (zeroPadFields == null) {
+      return token;
+    }
+
+    for (String field : fields) {
+      Integer pad = zeroPadFields.get(field);
+      if (pad != null) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pad; i++) {
+          sb.append("0");
+        }
+
+        DecimalFormat df = new DecimalFormat(sb.toString());
+        token = df.format(Double.parseDouble(token));
+      }
+    }
+    return token;
+  }
+
+  /**
+   * Performs the same pre-processing as visiting the tree (find/replace
+   * expansion, default operator insertion and zero padding), but rewrites the
+   * syntax tree in place instead of producing a String that has to be lexed
+   * and parsed a second time. If suggestions are enabled the tree is visited
+   * first, before it is changed, to build the suggested search.
+   * <p>
+   * Replacement syntax must be a complete Qsol expression or a run of
+   * operators.
+   * 
+   * @param n
+   *          root of the tree built by the <code>QueryParser</code>
+   * @throws ParseException
+   *           if the rewritten tree is not valid Qsol syntax
+   */
+  public void rewrite(Search n) throws ParseException {
     if (buildSuggestedSearch) {
-      if (isDefaultOpOn == false) {
-        suggestedSearchPart.append(" " + token + " ");
+      n.accept(this, null);
+    }
+
+    List<Node> items = new ArrayList<Node>();
+    flatten(n.f0, items, true);
+    n.f0 = new TreeBuilder(items).build();
+  }
+
+  /**
+   * Flattens a CheckOrd1Search into its operands (BasicSearchType nodes) and
+   * operators (NodeToken nodes), in order. If <code>process</code> is true,
+   * the operands are pre-processed on the way through.
+   */
+  private void flatten(CheckOrd1Search n, List<Node> items, boolean process)
+      throws ParseException {
+    flatten(n.f0, items, process);
+
+    if (n.f1.present()) {
+      flatten((Ord1Search) n.f1.node, items, process);
+    }
+  }
+
+  private void flatten(Ord1Search n, List<Node> items, boolean process)
+      throws ParseException {
+    items.add(n.f0);
+    flatten(n.f1, items, process);
+
+    if (n.f2.present()) {
+      flatten((Ord1Search) n.f2.node, items, process);
+    }
+  }
+
+  private void flatten(CheckOrd2Search n, List<Node> items, boolean process)
+      throws ParseException {
+    flatten(n.f0, items, process);
+
+    if (n.f1.present()) {
+      flatten((Ord2Search) n.f1.node, items, process);
+    }
+  }
+
+  private void flatten(Ord2Search n, List<Node> items, boolean process)
+      throws ParseException {
+    items.add(n.f0);
+    flatten(n.f1, items, process);
+
+    if (n.f2.present()) {
+      flatten((Ord2Search) n.f2.node, items, process);
+    }
+  }
+
+  private void flatten(CheckOrd3Search n, List<Node> items, boolean process)
+      throws ParseException {
+    flatten(n.f0, items, process);
+
+    if (n.f1.present()) {
+      flatten((Ord3Search) n.f1.node, items, process);
+    }
+  }
+
+  private void flatten(Ord3Search n, List<Node> items, boolean process)
+      throws ParseException {
+    items.add(n.f0);
+    flatten(n.f1, items, process);
+
+    if (n.f2.present()) {
+      flatten((Ord3Search) n.f2.node, items, process);
+    }
+  }
+
+  private void flatten(CheckOrd4Search n, List<Node> items, boolean process)
+      throws ParseException {
+    flatten(n.f0, items, process);
+
+    if (n.f1.present()) {
+      flatten((Ord4Search) n.f1.node, items, process);
+    }
+  }
+
+  private void flatten(Ord4Search n, List<Node> items, boolean process)
+      throws ParseException {
+    items.add(n.f0);
+    flatten(n.f1, items, process);
+
+    if (n.f2.present()) {
+      flatten((Ord4Search) n.f2.node, items, process);
+    }
+  }
+
+  /**
+   * Mirrors visit(BasicSearch): the default operator is placed between
+   * operands unless one side expanded to an operator.
+   */
+  private void flatten(BasicSearch n, List<Node> items, boolean process)
+      throws ParseException {
+    NodeList basicSearchTypeNodes = n.f0;
+    int size = basicSearchTypeNodes.size();
+
+    if (!process) {
+      for (int i = 0; i < size; i++) {
+        items.add(basicSearchTypeNodes.elementAt(i));
+      }
+
+      return;
+    }
+
+    boolean lastWasOp = false;
+    String[] words = phraseWords(basicSearchTypeNodes);
+    FindReplace[] phrase = new FindReplace[1];
+
+    for (int i = 0; i < size; i++) {
+      BasicSearchType type = (BasicSearchType) basicSearchTypeNodes
+          .elementAt(i);
+      List<Node> typeItems = new ArrayList<Node>(1);
+      int phraseLength = (words == null) ? 0 : findReplaceMatcher.matchPhrase(
+          words, i, fields, phrase);
+
+      if (phraseLength > 0) {
+        String replacement = phrase[0].getReplacement();
+
+        if (phrase[0].isOperatorReplace()) {
+          isDefaultOpOn = false;
+        }
+
+        splice(replacement, typeItems);
       } else {
-        suggestedSearch.addSlot(token);
+        rewrite(type, typeItems);
+      }
 
-        suggestedSearch.addPart(suggestedSearchPart.toString());
+      boolean useDefaultOp = isDefaultOpOn && !lastWasOp;
 
-        suggestedSearchPart.setLength(0);
+      if ((i > 0) && useDefaultOp) {
+        splice(defaultOp, items);
+      }
+
+      items.addAll(typeItems);
+
+      if (phraseLength > 0) {
+        i += (phraseLength - 1);
       }
+
+      lastWasOp = !isDefaultOpOn;
+      isDefaultOpOn = true;
     }
+  }
 
-    NodeChoice choice = (NodeChoice) n.f0;
+  private void rewrite(BasicSearchType n, List<Node> items)
+      throws ParseException {
+    Node choice = n.f0.choice;
+
+    if (choice instanceof SearchToken) {
+      rewrite(n, (SearchToken) choice, items);
+
+      return;
+    }
+
+    if (choice instanceof ParenthesisSearch) {
+      ParenthesisSearch parenthesisSearch = (ParenthesisSearch) choice;
+      List<Node> innerItems = new ArrayList<Node>();
+      flatten(parenthesisSearch.f1, innerItems, true);
+      parenthesisSearch.f1 = new TreeBuilder(innerItems).build();
+    } else {
+      FieldSearch fieldSearch = (FieldSearch) choice;
+      String fieldList = fieldSearch.f0.toString();
+
+      for (String field : fieldList.split(",")) {
+        this.fields.add(field);
+      }
+
+      // date searches are read token by token when the query is built
+      if (!dateFields.contains(fieldList)) {
+        List<Node> innerItems = new ArrayList<Node>();
+        flatten(fieldSearch.f1, innerItems, true);
+        fieldSearch.f1 = new TreeBuilder(innerItems).build();
+        this.fields.clear();
+      }
+    }
+
+    items.add(n);
+  }
+
+  private void rewrite(BasicSearchType n, SearchToken searchToken,
+      List<Node> items) throws ParseException {
+    NodeChoice choice = searchToken.f0;
+    NodeToken nodeToken = (NodeToken) choice.choice;
+    String original = nodeToken.tokenImage;
+    String token = expandToken(original);
 
     if (choice.which == 3) {
-      Matcher m = QsolToQueryVisitor.RANGE_EXTRACTOR.matcher(choice.choice
-          .toString());
+      nodeToken.tokenImage = padRange(original);
+      items.add(n);
 
-      StringBuilder sb = new StringBuilder();
+      return;
+    }
 
-      if (m.matches()) {
-        if (m.group(1) != null && m.group(1).equals("[")) {
-          sb.append(m.group(1));
-        }
-        String term1 = m.group(2);
-        String op = m.group(3);
-        String term2 = m.group(4);
-        sb.append(checkZeroPad(term1));
-        sb.append(" ");
-        sb.append(op);
-        sb.append(" ");
-        sb.append(checkZeroPad(term2));
-        if (m.group(1) != null && m.group(5).equals("]")) {
-          sb.append(m.group(5));
+    if (token.equals(original)) {
+      // same text lexes to the same token, so the node can stay
+      nodeToken.tokenImage = checkZeroPad(token);
+      items.add(n);
+
+      return;
+    }
+
+    splice(checkZeroPad(token), items);
+  }
+
+  /**
+   * Lexes and parses replacement syntax into operand and operator items, the
+   * tree equivalent of splicing the text into the query String.
+   */
+  private void splice(String syntax, List<Node> items) throws ParseException {
+    ReusableQueryParser parser = ReusableQueryParser.acquire(syntax,
+        orderOfOps);
+    List<Node> operators = new ArrayList<Node>(1);
+
+    try {
+      Token t;
+
+      while ((t = parser.getNextToken()).kind != QueryParserConstants.EOF) {
+        if ((t.kind < QueryParserConstants.OP1)
+            || (t.kind > QueryParserConstants.OP4)) {
+          operators = null;
+
+          break;
         }
-        return sb.toString();
-      } else {
 
-        throw new RuntimeException(
-            "Range did not match in QsolToQueryVisitor but did with JavaCC parser");
+        operators.add(new NodeToken(t.image, t.kind, t.beginLine,
+            t.beginColumn, t.endLine, t.endColumn));
       }
+    } catch (TokenMgrError e) {
+      throw new ParseException(e.getMessage());
+    } finally {
+      parser.release();
     }
 
-    token = checkZeroPad(token);
+    if (operators != null) {
+      items.addAll(operators);
 
-    returnString.append(token);
+      return;
+    }
 
-    return returnString.toString();
+    parser = ReusableQueryParser.acquire(syntax, orderOfOps);
+
+    Search replacement;
+
+    try {
+      replacement = parser.Search();
+    } catch (TokenMgrError e) {
+      throw new ParseException(e.getMessage());
+    } finally {
+      parser.release();
+    }
+
+    flatten(replacement.f0, items, false);
   }
 
-  private String checkZeroPad(String token) {
-    if (zeroPadFields == null) {
-      return token;
+  /**
+   * Rebuilds a CheckOrd1Search from flattened items following the same
+   * productions as the JavaCC grammar in qsol.jtb.
+   */
+  private static class TreeBuilder {
+    private List<Node> items;
+    private int pos;
+
+    TreeBuilder(List<Node> items) {
+      this.items = items;
     }
 
-    for (String field : fields) {
-      Integer pad = zeroPadFields.get(field);
-      if (pad != null) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < pad; i++) {
-          sb.append("0");
+    CheckOrd1Search build() throws ParseException {
+      CheckOrd1Search search = checkOrd1Search();
+
+      if (pos != items.size()) {
+        throw new ParseException("Unexpected operator: " + items.get(pos));
+      }
+
+      return search;
+    }
+
+    private int nextKind() {
+      if (pos < items.size()) {
+        Node node = items.get(pos);
+
+        if (node instanceof NodeToken) {
+          return ((NodeToken) node).kind;
         }
+      }
 
-        DecimalFormat df = new DecimalFormat(sb.toString());
-        token = df.format(Double.parseDouble(token));
+      return -1;
+    }
+
+    private CheckOrd1Search checkOrd1Search() throws ParseException {
+      CheckOrd2Search n0 = checkOrd2Search();
+      NodeOptional n1 = new NodeOptional();
+
+      if (nextKind() == QueryParserConstants.OP1) {
+        n1.addNode(ord1Search());
       }
+
+      return new CheckOrd1Search(n0, n1);
+    }
+
+    private Ord1Search ord1Search() throws ParseException {
+      NodeToken n0 = (NodeToken) items.get(pos++);
+      CheckOrd2Search n1 = checkOrd2Search();
+      NodeOptional n2 = new NodeOptional();
+
+      if (nextKind() == QueryParserConstants.OP1) {
+        n2.addNode(ord1Search());
+      }
+
+      return new Ord1Search(n0, n1, n2);
+    }
+
+    private CheckOrd2Search checkOrd2Search() throws ParseException {
+      CheckOrd3Search n0 = checkOrd3Search();
+      NodeOptional n1 = new NodeOptional();
+
+      if (nextKind() == QueryParserConstants.OP2) {
+        n1.addNode(ord2Search());
+      }
+
+      return new CheckOrd2Search(n0, n1);
+    }
+
+    private Ord2Search ord2Search() throws ParseException {
+      NodeToken n0 = (NodeToken) items.get(pos++);
+      CheckOrd3Search n1 = checkOrd3Search();
+      NodeOptional n2 = new NodeOptional();
+
+      if (nextKind() == QueryParserConstants.OP2) {
+        n2.addNode(ord2Search());
+      }
+
+      return new Ord2Search(n0, n1, n2);
+    }
+
+    private CheckOrd3Search checkOrd3Search() throws ParseException {
+      CheckOrd4Search n0 = checkOrd4Search();
+      NodeOptional n1 = new NodeOptional();
+
+      if (nextKind() == QueryParserConstants.OP3) {
+        n1.addNode(ord3Search());
+      }
+
+      return new CheckOrd3Search(n0, n1);
+    }
+
+    private Ord3Search ord3Search() throws ParseException {
+      NodeToken n0 = (NodeToken) items.get(pos++);
+      CheckOrd4Search n1 = checkOrd4Search();
+      NodeOptional n2 = new NodeOptional();
+
+      if (nextKind() == QueryParserConstants.OP3) {
+        n2.addNode(ord3Search());
+      }
+
+      return new Ord3Search(n0, n1, n2);
+    }
+
+    private CheckOrd4Search checkOrd4Search() throws ParseException {
+      BasicSearch n0 = basicSearch();
+      NodeOptional n1 = new NodeOptional();
+
+      if (nextKind() == QueryParserConstants.OP4) {
+        n1.addNode(ord4Search());
+      }
+
+      return new CheckOrd4Search(n0, n1);
+    }
+
+    private Ord4Search ord4Search() throws ParseException {
+      NodeToken n0 = (NodeToken) items.get(pos++);
+      BasicSearch n1 = basicSearch();
+      NodeOptional n2 = new NodeOptional();
+
+      if (nextKind() == QueryParserConstants.OP4) {
+        n2.addNode(ord4Search());
+      }
+
+      return new Ord4Search(n0, n1, n2);
+    }
+
+    private BasicSearch basicSearch() throws ParseException {
+      NodeList n0 = new NodeList();
+
+      while ((pos < items.size()) && !(items.get(pos) instanceof NodeToken)) {
+        n0.addNode(items.get(pos++));
+      }
+
+      if (n0.size() == 0) {
+        throw new ParseException("Expected a search term but found: "
+            + ((pos < items.size()) ? items.get(pos) : "<EOF>"));
+      }
+
+      return new BasicSearch(n0);
     }
-    return token;
   }
 }
@@ -9,7 +9,10 @@ import java.util.Set;
 import java.util.regex.Pattern;
 
 import com.mhs.qsol.QsolParser.Operator;
+import com.mhs.qsol.proximity.ProximityBuilder;
 import com.mhs.qsol.queryparser.QueryParserConstants;
+import com.mhs.qsol.spans.MultiTermSpanRewrite;
+import com.mhs.qsol.spans.SpanRewriteCache;
 
 public class QsolConfiguration {
   Set<String> dateFields = new HashSet<String>();
@@ -28,8 +31,22 @@ public class QsolConfiguration {
   String fieldBreakMarker;
   DateParser dateParser = new DefaultDateParser();
   boolean tightSpaceBind;
+  boolean rewriteInPlace;
+  boolean decodeUnicodeEscapes = true;
   Map<String, String> fieldMapping = new HashMap<String, String>();
   Map<String, Integer> zeroPadFields;
+  QueryCache queryCache;
+  AnalysisCache analysisCache;
+  Thesaurus thesaurus;
+  int maxProximityClauses = ProximityBuilder.DEFAULT_MAX_CLAUSES;
+  boolean factorProximityOrs;
+  boolean optimizeQueries;
+  boolean ordinalProximity;
+  int sentenceWindow;
+  int paragraphWindow;
+  MultiTermSpanRewrite multiTermSpanRewrite = MultiTermSpanRewrite.ALL;
+  SpanRewriteCache spanRewriteCache;
+  private CompiledConfiguration compiled;
 
   public QsolConfiguration() {
     opsList.add(Operator.OR);
@@ -54,6 +71,7 @@ public class QsolConfiguration {
    * @since 1.0
    */
   public void addFindReplace(FindReplace findReplace) {
+    compiled = null;
     this.findReplace.put(findReplace.getFind().toLowerCase(), findReplace);
   }
 
@@ -71,6 +89,7 @@ public class QsolConfiguration {
    * @since 1.0
    */
   public void addFindReplaceRegEx(FindReplaceRegEx findReplaceRegEx) {
+    compiled = null;
     this.findReplaceRegEx.add(findReplaceRegEx);
   }
 
@@ -84,6 +103,8 @@ public class QsolConfiguration {
    * @since 1.0
    */
   public void addOperator(Operator op, String newOp) {
+    compiled = null;
+
     switch (op) {
     case AND:
       findReplace.put(newOp.toLowerCase(), new FindReplace(newOp, "&", true,
@@ -113,15 +134,21 @@ public class QsolConfiguration {
    * When a search token of <code>word</code> is found it will be replaced with
    * <code>words</code>. This method is a convenience method that uses the
    * find/replace functionality.
+   * <p>
+   * <code>word</code> may be several words, such as "new york", in which case
+   * it matches the same words searched for next to each other with the default
+   * operator.
    * 
    * @param word
-   *          term to replace
+   *          term or words to replace
    * @param words
    *          replacement terms
    * @since 1.0
    */
   public void addThesaurusEntry(String word, Set<String> words,
       boolean caseSensitive) {
+    compiled = null;
+
     if (thesaurusFindReplace.isEmpty()) {
       thesaurusFindReplace = new HashMap<String, FindReplace>();
     }
@@ -143,6 +170,23 @@ public class QsolConfiguration {
         + wordsExpansion + ")", caseSensitive, false));
   }
 
+  /**
+   * Builds an immutable snapshot of this configuration for parsers to share.
+   * The snapshot is kept until one of the setters on this configuration is
+   * called, so repeated calls are free. Changes made directly to the
+   * <code>Set</code> returned by <code>getDateFields()</code> are not tracked.
+   * 
+   * @return snapshot of the current settings
+   * @since 1.0
+   */
+  public CompiledConfiguration compile() {
+    if (compiled == null) {
+      compiled = new CompiledConfiguration(this);
+    }
+
+    return compiled;
+  }
+
   public Set<String> getDateFields() {
     return dateFields;
   }
@@ -158,6 +202,7 @@ public class QsolConfiguration {
    */
   public void hideOperators(boolean or, boolean and, boolean andnot,
       boolean proximity) {
+    compiled = null;
     this.useHide = true;
     this.hideOr = or;
     this.hideAnd = and;
@@ -173,6 +218,7 @@ public class QsolConfiguration {
    * @since 1.0
    */
   public void markDateField(String field) {
+    compiled = null;
     dateFields.add(field);
   }
 
@@ -181,6 +227,7 @@ public class QsolConfiguration {
    *          the dateParser to set
    */
   public void setDateParser(DateParser dateParser) {
+    compiled = null;
     this.dateParser = dateParser;
   }
 
@@ -194,6 +241,7 @@ public class QsolConfiguration {
    * @since 1.0
    */
   public void setOpsOrder(List<Operator> opsList) {
+    compiled = null;
     this.opsList = opsList;
     orderOfOpsMap.put(opsList.get(0), QueryParserConstants.OP1);
     orderOfOpsMap.put(opsList.get(1), QueryParserConstants.OP2);
@@ -208,7 +256,7 @@ public class QsolConfiguration {
    * @since 1.0
    */
   public void setParagraphMarker(String marker) {
-
+    compiled = null;
     this.paragraphMarker = marker;
   }
 
@@ -219,6 +267,7 @@ public class QsolConfiguration {
    * @since 1.0
    */
   public void setSentenceMarker(String marker) {
+    compiled = null;
     this.sentenceMarker = marker;
   }
 
@@ -235,19 +284,174 @@ public class QsolConfiguration {
     this.tightSpaceBind = spaceBind;
   }
 
+  /**
+   * When set to true, parsers rewrite the parse tree in place during
+   * pre-processing instead of building and re-parsing a query String.
+   * 
+   * @param rewriteInPlace
+   * @see QsolParser#setRewriteInPlace(boolean)
+   */
+  public void setRewriteInPlace(boolean rewriteInPlace) {
+    compiled = null;
+    this.rewriteInPlace = rewriteInPlace;
+  }
+
+  /**
+   * When set to false, parsers lex queries with a <code>StringCharStream</code>
+   * and do not decode unicode escapes.
+   * 
+   * @param decodeUnicodeEscapes
+   * @see QsolParser#setDecodeUnicodeEscapes(boolean)
+   */
+  public void setDecodeUnicodeEscapes(boolean decodeUnicodeEscapes) {
+    compiled = null;
+    this.decodeUnicodeEscapes = decodeUnicodeEscapes;
+  }
+
+  /**
+   * Sets a cache of parsed queries to be shared by the parsers created from
+   * this configuration.
+   * 
+   * @param queryCache
+   * @see QsolParser#setQueryCache(QueryCache)
+   */
+  public void setQueryCache(QueryCache queryCache) {
+    compiled = null;
+    this.queryCache = queryCache;
+  }
+
+  /**
+   * Sets the number of span queries a proximity search may be distributed
+   * into.
+   * 
+   * @param maxProximityClauses
+   * @see QsolParser#setMaxProximityClauses(int)
+   */
+  public void setMaxProximityClauses(int maxProximityClauses) {
+    compiled = null;
+    this.maxProximityClauses = maxProximityClauses;
+  }
+
+  /**
+   * Sets whether runs of OR'd span queries in a proximity search are joined
+   * into one SpanOrQuery.
+   * 
+   * @param factorProximityOrs
+   * @see QsolParser#setFactorProximityOrs(boolean)
+   */
+  public void setFactorProximityOrs(boolean factorProximityOrs) {
+    compiled = null;
+    this.factorProximityOrs = factorProximityOrs;
+  }
+
+  /**
+   * Sets whether built queries are run through a <code>QueryOptimizer</code>.
+   * 
+   * @param optimizeQueries
+   * @see QsolParser#setOptimizeQueries(boolean)
+   */
+  public void setOptimizeQueries(boolean optimizeQueries) {
+    compiled = null;
+    this.optimizeQueries = optimizeQueries;
+  }
+
+  /**
+   * Sets whether sentence and paragraph proximity compare payload ordinals
+   * instead of counting marker terms.
+   * 
+   * @param ordinalProximity
+   * @see QsolParser#setOrdinalProximity(boolean)
+   */
+  public void setOrdinalProximity(boolean ordinalProximity) {
+    compiled = null;
+    this.ordinalProximity = ordinalProximity;
+  }
+
+  /**
+   * Sets the number of positions in the longest sentence.
+   * 
+   * @param sentenceWindow
+   * @see QsolParser#setSentenceWindow(int)
+   */
+  public void setSentenceWindow(int sentenceWindow) {
+    compiled = null;
+    this.sentenceWindow = sentenceWindow;
+  }
+
+  /**
+   * Sets the number of positions in the longest paragraph.
+   * 
+   * @param paragraphWindow
+   * @see QsolParser#setParagraphWindow(int)
+   */
+  public void setParagraphWindow(int paragraphWindow) {
+    compiled = null;
+    this.paragraphWindow = paragraphWindow;
+  }
+
+  /**
+   * Sets how wildcard and fuzzy terms in proximity searches expand.
+   * 
+   * @param multiTermSpanRewrite
+   * @see QsolParser#setMultiTermSpanRewrite(MultiTermSpanRewrite)
+   */
+  public void setMultiTermSpanRewrite(MultiTermSpanRewrite multiTermSpanRewrite) {
+    compiled = null;
+    this.multiTermSpanRewrite = multiTermSpanRewrite;
+  }
+
+  /**
+   * Sets a cache of wildcard and fuzzy expansions to be shared by the parsers
+   * created from this configuration.
+   * 
+   * @param spanRewriteCache
+   * @see QsolParser#setSpanRewriteCache(SpanRewriteCache)
+   */
+  public void setSpanRewriteCache(SpanRewriteCache spanRewriteCache) {
+    compiled = null;
+    this.spanRewriteCache = spanRewriteCache;
+  }
+
+  /**
+   * Sets a thesaurus to be expanded while queries are built by the parsers
+   * created from this configuration.
+   * 
+   * @param thesaurus
+   * @see QsolParser#setThesaurus(Thesaurus)
+   */
+  public void setThesaurus(Thesaurus thesaurus) {
+    compiled = null;
+    this.thesaurus = thesaurus;
+  }
+
+  /**
+   * Sets a cache of analyzed search tokens to be shared by the parsers
+   * created from this configuration.
+   * 
+   * @param analysisCache
+   * @see QsolParser#setAnalysisCache(AnalysisCache)
+   */
+  public void setAnalysisCache(AnalysisCache analysisCache) {
+    compiled = null;
+    this.analysisCache = analysisCache;
+  }
+
   public String getFieldBreakMarker() {
     return fieldBreakMarker;
   }
 
   public void setFieldBreakMarker(String fieldBreakMarker) {
+    compiled = null;
     this.fieldBreakMarker = fieldBreakMarker;
   }
 
   public void addFieldMapping(String field, String mapToField) {
+    compiled = null;
     this.fieldMapping.put(field, mapToField);
   }
 
   public void add0PadField(String field, int pad) {
+    compiled = null;
     if (zeroPadFields == null) {
       zeroPadFields = new HashMap<String, Integer>();
     }
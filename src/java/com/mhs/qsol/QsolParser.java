@@ -19,14 +19,19 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.LogManager;
 import java.util.regex.Pattern;
 
@@ -36,9 +41,12 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.Version;
 
-import com.mhs.qsol.queryparser.QueryParser;
+import com.mhs.qsol.proximity.ProximityBuilder;
 import com.mhs.qsol.queryparser.QueryParserConstants;
+import com.mhs.qsol.spans.MultiTermSpanRewrite;
+import com.mhs.qsol.spans.SpanRewriteCache;
 import com.mhs.qsol.syntaxtree.Node;
+import com.mhs.qsol.syntaxtree.Search;
 
 /**
  * Converts any valid Qsol syntax into an Apache Lucene Query object.
@@ -100,6 +108,11 @@ import com.mhs.qsol.syntaxtree.Node;
  * <p>
  * Find Replace: parser.addFindReplace(new FindReplace("NEAR", "~10", true,
  * true));
+ * <p>
+ * Threading: <code>parse</code> keeps all of its working state in visitors
+ * that are created for each call, so once a QsolParser has been configured it
+ * may be shared by any number of threads. The setters are not synchronized and
+ * should not be called while other threads are parsing.
  * 
  * @see ParserFactory
  * 
@@ -129,37 +142,101 @@ public class QsolParser {
   }
 
   private Locale locale = Locale.getDefault();
-  private PreProcessVisitor preProcessVisitor = new PreProcessVisitor();
-  private QsolToQueryVisitor buildQueryVisitor = new QsolToQueryVisitor();
-  private Map<String, FindReplace> findReplace = new HashMap<String, FindReplace>();
-  private Set<FindReplaceRegEx> findReplaceRegEx = new HashSet<FindReplaceRegEx>();
-  private Map<Operator, Integer> orderOfOpsMap = new HashMap<Operator, Integer>(
-      4);
-  private List<Operator> opsList = new ArrayList<Operator>(4);
-  private Set<String> dateFields = new HashSet<String>();
+  private Map<String, FindReplace> findReplace = Collections.EMPTY_MAP;
+  private Set<FindReplaceRegEx> findReplaceRegEx = Collections.EMPTY_SET;
+  private volatile FindReplaceMatcher findReplaceMatcher;
+  private Map<Operator, Integer> orderOfOpsMap;
+  private List<Operator> opsList;
+  private Set<String> dateFields = Collections.EMPTY_SET;
   private boolean hideOr;
   private boolean hideAnd;
   private boolean hideAndNot;
   private boolean hideProximity;
   private boolean useHide;
+  private boolean rewriteInPlace;
+  private boolean decodeUnicodeEscapes = true;
+  private DateParser dateParser;
+  private String defaultOp = "&";
+  private String paraMarker;
+  private String sentMarker;
+  private String fieldBreakMarker;
+  private boolean lowercaseExpandedTerms = true;
+  private Map<String, String> fieldMap = Collections.EMPTY_MAP;
+  private Map<String, Integer> zeroPadFields = Collections.EMPTY_MAP;
+  private boolean ownSettings;
+  private Object settingsKey;
+  private QueryCache queryCache;
+  private AnalysisCache analysisCache;
+  private Thesaurus thesaurus;
+  private int maxProximityClauses = ProximityBuilder.DEFAULT_MAX_CLAUSES;
+  private boolean factorProximityOrs;
+  private boolean optimizeQueries;
+  private boolean ordinalProximity;
+  private int sentenceWindow;
+  private int paragraphWindow;
+  private MultiTermSpanRewrite multiTermSpanRewrite = MultiTermSpanRewrite.ALL;
+  private SpanRewriteCache spanRewriteCache;
+  private Suggester suggester;
+  private SpellCheckerSuggester ownSuggester;
+  private Executor suggestExecutor;
+  private Executor analysisExecutor;
+  private int analysisWorkers;
+  private int minParallelTokens;
+  private ThreadLocal<SuggestedSearch> suggestedSearch =
+      new ThreadLocal<SuggestedSearch>();
 
   public QsolParser(QsolConfiguration config, boolean inherit) {
+    this(config.compile(), inherit);
+  }
+
+  /**
+   * Creates a parser that shares the tables of <code>config</code> by
+   * reference. The tables are only copied if a setter on this parser changes
+   * them.
+   * 
+   * @param config
+   *          compiled configuration
+   * @param inherit
+   *          if false, only the order of operations is taken from
+   *          <code>config</code>
+   * @since 1.0
+   */
+  public QsolParser(CompiledConfiguration config, boolean inherit) {
     if (inherit) {
-      this.dateFields.addAll(config.dateFields);
-      this.findReplace.putAll(config.findReplace);
-      this.findReplaceRegEx.addAll(config.findReplaceRegEx);
-      this.buildQueryVisitor.setDateParser(config.dateParser);
+      this.dateFields = config.dateFields;
+      this.findReplace = config.findReplace;
+      this.findReplaceRegEx = config.findReplaceRegEx;
+      this.findReplaceMatcher = config.findReplaceMatcher;
+      this.dateParser = config.dateParser;
       this.setParagraphMarker(config.paragraphMarker);
       this.setSentenceMarker(config.sentenceMarker);
       this.setFieldBreakMarker(config.fieldBreakMarker);
-      this.buildQueryVisitor.addFieldMappings(config.fieldMapping);
-      if (config.zeroPadFields != null) {
-        preProcessVisitor.setZeroPadFields(config.zeroPadFields);
+      this.fieldMap = config.fieldMapping;
+      this.zeroPadFields = config.zeroPadFields;
+      this.rewriteInPlace = config.rewriteInPlace;
+      this.decodeUnicodeEscapes = config.decodeUnicodeEscapes;
+      this.thesaurus = config.thesaurus;
+      this.maxProximityClauses = config.maxProximityClauses;
+      this.factorProximityOrs = config.factorProximityOrs;
+      this.optimizeQueries = config.optimizeQueries;
+      this.ordinalProximity = config.ordinalProximity;
+      this.sentenceWindow = config.sentenceWindow;
+      this.paragraphWindow = config.paragraphWindow;
+      this.multiTermSpanRewrite = config.multiTermSpanRewrite;
+      this.spanRewriteCache = config.spanRewriteCache;
+
+      if (config.useHide) {
+        hideOperators(config.hideOr, config.hideAnd, config.hideAndNot,
+            config.hideProximity);
       }
     }
 
-    this.opsList.addAll(config.opsList);
-    this.orderOfOpsMap.putAll(config.orderOfOpsMap);
+    this.opsList = config.opsList;
+    this.orderOfOpsMap = config.orderOfOpsMap;
+    this.queryCache = config.queryCache;
+    this.analysisCache = config.analysisCache;
+    // parsers that inherit the same snapshot can share cached queries
+    this.settingsKey = inherit ? config : new Object();
   }
 
   public static void main(String[] args) {
@@ -196,7 +273,8 @@ public class QsolParser {
   }
 
   public void addFieldMapping(String field, String mapToField) {
-    this.buildQueryVisitor.addFieldMapping(field, mapToField);
+    ownSettings();
+    this.fieldMap.put(field, mapToField);
   }
 
   /**
@@ -212,6 +290,7 @@ public class QsolParser {
    * @since 1.0
    */
   public void addFindReplace(FindReplace findReplace) {
+    ownSettings();
     this.findReplace.put(findReplace.getFind().toLowerCase(), findReplace);
   }
 
@@ -230,11 +309,13 @@ public class QsolParser {
    * @since 1.0
    */
   public void addFindReplaceRegEx(FindReplaceRegEx findReplaceRegEx) {
+    ownSettings();
     this.findReplaceRegEx.add(findReplaceRegEx);
   }
 
   public void add0PadField(String field, int pad) {
-    this.preProcessVisitor.add0PadField(field, pad);
+    ownSettings();
+    this.zeroPadFields.put(field, pad);
   }
 
   /**
@@ -247,6 +328,8 @@ public class QsolParser {
    * @since 1.0
    */
   public void addOperator(Operator op, String newOp, boolean caseSensitive) {
+    ownSettings();
+
     switch (op) {
     case AND:
       findReplace.put(newOp.toLowerCase(), new FindReplace(newOp, "&",
@@ -285,15 +368,21 @@ public class QsolParser {
    * When a search token of <code>word</code> is found it will be replaced with
    * <code>words</code>. This method is a convenience method that uses the
    * find/replace functionality.
+   * <p>
+   * <code>word</code> may be several words, such as "new york", in which case
+   * it matches the same words searched for next to each other with the default
+   * operator.
    * 
    * @param word
-   *          term to replace
+   *          term or words to replace
    * @param words
    *          replacement terms
    * @since 1.0
    */
   public void addThesaurusEntry(String word, Set<String> words,
       boolean caseSensitive) {
+    ownSettings();
+
     StringBuilder wordsExpansion = new StringBuilder();
     int count = 0;
 
@@ -317,6 +406,7 @@ public class QsolParser {
    * @since 1.0
    */
   public void clearSettings() {
+    ownSettings();
     orderOfOpsMap.clear();
     findReplace.clear();
     findReplaceRegEx.clear();
@@ -325,12 +415,21 @@ public class QsolParser {
     hideOr = false;
     hideProximity = false;
     dateFields.clear();
-    this.buildQueryVisitor.setParaMarker("");
-    this.buildQueryVisitor.setSentMarker("");
+    this.paraMarker = "";
+    this.sentMarker = "";
   }
 
+  /**
+   * Returns the find/replace expanders, keyed on their lowercase find String.
+   * The map cannot be modified; use <code>addFindReplace</code> or
+   * <code>addThesaurusEntry</code> to add expanders, so cached queries and the
+   * compiled expanders are kept up to date.
+   * 
+   * @return read-only view of the find/replace expanders
+   * @since 1.0
+   */
   public Map<String, FindReplace> getFindReplace() {
-    return findReplace;
+    return Collections.unmodifiableMap(findReplace);
   }
 
   /**
@@ -354,21 +453,27 @@ public class QsolParser {
   }
 
   /**
-   * Returns a suggested search for the last Query. Will return an empty String
-   * if no suitable suggestion is found. The majority of the work involved in
-   * generating the suggested query is not done unless this method is called.
+   * Returns a suggested search for the last Query parsed by the calling thread.
+   * Will return an empty String if no suitable suggestion is found. Spellings
+   * are looked up the first time this is called after a parse.
    * 
    * @return suggested search query for last submitted query
+   * @throws IllegalStateException
+   *           if the last Query parsed by the calling thread was parsed
+   *           without a suggester
+   * @deprecated the suggestion is held for the calling thread until its next
+   *             parse; use <code>parseWithSuggestion</code> and ask the
+   *             returned <code>ParsedQuery</code> instead
    * @since 1.0
    */
   public String getSuggestedSearch() {
-    String suggestedSearch = this.preProcessVisitor.getSuggestedSearch();
+    SuggestedSearch suggestedSearch = this.suggestedSearch.get();
 
     if (suggestedSearch == null) {
       throw new IllegalStateException("No Suggest index has been set");
     }
 
-    return suggestedSearch;
+    return suggestedSearch.getSuggestion();
   }
 
   /**
@@ -382,6 +487,7 @@ public class QsolParser {
    */
   public void hideOperators(boolean or, boolean and, boolean andnot,
       boolean proximity) {
+    settingsChanged();
     this.useHide = true;
     this.hideOr = or;
     this.hideAnd = and;
@@ -397,6 +503,7 @@ public class QsolParser {
    * @since 1.0
    */
   public void markDateField(String field) {
+    ownSettings();
     dateFields.add(field);
   }
 
@@ -416,14 +523,139 @@ public class QsolParser {
    */
   public Query parse(String field, String query, Analyzer analyzer)
       throws QsolSyntaxException, EmptyQueryException {
-    Node root = null;
-    // System.out.println("query:" + query);
-    preProcessVisitor.setAnalyzer(analyzer);
+    return parse(field, query, analyzer, newPreProcessVisitor(analyzer, true),
+        true);
+  }
 
-    buildQueryVisitor.setOrderOfOps(opsList);
+  /**
+   * Converts Qsol query syntax into a Lucene Query object, without looking up
+   * the suggested search. The suggested search is looked up on the suggest
+   * executor if there is one, otherwise when it is first asked for.
+   * The deprecated <code>getSuggestedSearch</code> on this parser also returns
+   * it.
+   * 
+   * @param field
+   *          default search field
+   * @param query
+   *          Qsol syntax query
+   * @param analyzer
+   *          lucene analyzer to use on terms
+   * @return the query and a handle on its suggested search
+   * @throws QsolSyntaxException
+   * @throws EmptyQueryException
+   * @see #setSuggestExecutor(Executor)
+   * @since 1.0
+   */
+  public ParsedQuery parseWithSuggestion(String field, String query,
+      Analyzer analyzer) throws QsolSyntaxException, EmptyQueryException {
+    PreProcessVisitor preProcessVisitor = newPreProcessVisitor(analyzer, true);
+    Query luceneQuery = parse(field, query, analyzer, preProcessVisitor, true);
+    ParsedQuery parsed = new ParsedQuery(luceneQuery, preProcessVisitor
+        .getSuggestion());
+    Executor executor = suggestExecutor;
+
+    if (executor != null) {
+      parsed.submit(executor);
+    }
 
-    preProcessVisitor.setDateFields(dateFields);
-    buildQueryVisitor.setDateFields(dateFields);
+    return parsed;
+  }
+
+  /**
+   * Converts a batch of Qsol queries into Lucene Query objects in the calling
+   * thread.
+   * 
+   * @param queries
+   *          queries to parse
+   * @param analyzer
+   *          lucene analyzer to use on terms
+   * @return a result for each query, in the order of <code>queries</code>
+   * @see #parseAll(Collection, Analyzer, Executor, int)
+   * @since 1.0
+   */
+  public List<BatchResult> parseAll(Collection<BatchQuery> queries,
+      Analyzer analyzer) {
+    return parseAll(queries, analyzer, null, 1);
+  }
+
+  /**
+   * Converts a batch of Qsol queries into Lucene Query objects, using up to
+   * <code>workers</code> threads: the calling thread and
+   * <code>workers - 1</code> tasks run on <code>executor</code>. Each worker
+   * takes the next unparsed query until none are left, reusing its thread's
+   * query parser, so a batch costs a handful of tasks rather than one per
+   * query. A worker task that the executor has not started by the time the
+   * calling thread runs out of queries is dropped, so a busy executor never
+   * holds up the batch.
+   * <p>
+   * A query that does not parse does not stop the batch; its result holds
+   * the exception instead. Suggested searches are not looked up.
+   * 
+   * @param queries
+   *          queries to parse
+   * @param analyzer
+   *          lucene analyzer to use on terms; it must be safe to share across
+   *          threads, as Lucene's analyzers are
+   * @param executor
+   *          runs the other workers, or <code>null</code> to parse in the
+   *          calling thread
+   * @param workers
+   *          number of threads to parse in, counting the calling thread
+   * @return a result for each query, in the order of <code>queries</code>
+   * @since 1.0
+   */
+  public List<BatchResult> parseAll(Collection<BatchQuery> queries,
+      final Analyzer analyzer, Executor executor, int workers) {
+    final BatchQuery[] batch = queries.toArray(new BatchQuery[queries.size()]);
+    final BatchResult[] results = new BatchResult[batch.length];
+    final AtomicInteger next = new AtomicInteger();
+    Runnable worker = new Runnable() {
+      public void run() {
+        int i;
+
+        while ((i = next.getAndIncrement()) < batch.length) {
+          results[i] = parse(batch[i], analyzer);
+        }
+      }
+    };
+
+    Util.runWorkers(worker, executor, Math.min(workers, batch.length) - 1);
+
+    return Arrays.asList(results);
+  }
+
+  private BatchResult parse(BatchQuery batchQuery, Analyzer analyzer) {
+    try {
+      Query query = parse(batchQuery.getField(), batchQuery.getText(),
+          analyzer, newPreProcessVisitor(analyzer, false), false);
+
+      return new BatchResult(batchQuery, query, null);
+    } catch (Exception e) {
+      return new BatchResult(batchQuery, null, e);
+    }
+  }
+
+  private Query parse(String field, String query, Analyzer analyzer,
+      PreProcessVisitor preProcessVisitor, boolean suggest)
+      throws QsolSyntaxException, EmptyQueryException {
+    // a suggestion from an earlier parse must not outlive this one
+    suggestedSearch.remove();
+
+    Object settings = settingsKey;
+    suggest = suggest && (suggester != null);
+    boolean useCache = (queryCache != null) && !suggest;
+
+    if (useCache) {
+      Query cached = queryCache.get(query, field, analyzer, settings);
+
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    Node root = null;
+    // System.out.println("query:" + query);
+    QsolToQueryVisitor buildQueryVisitor = newQueryVisitor(field, analyzer);
 
     // Two passes over the tree--the first handles the default space
     // operator,
@@ -431,14 +663,13 @@ public class QsolParser {
     // enabled.
     // The second builds the lucene query from the Qsol syntax parse tree.
   
-      QueryParser parser = new QueryParser(new StringReader(query));
+      ReusableQueryParser parser = ReusableQueryParser.acquire(query,
+          orderOfOpsMap, decodeUnicodeEscapes);
 
       if (useHide) {
         parser.setHideOps(hideOr, hideAnd, hideAndNot, hideProximity);
       }
 
-      parser.setOrderOfOps(orderOfOpsMap);
-      assert (parser != null);
       // build parse tree
       try {
         root = parser.Search();
@@ -448,30 +679,44 @@ public class QsolParser {
 //        query = escape(query).toString();
 //        System.out.println("new query:" + query);
 //        return parse(field, query, analyzer);
-      } 
+      } finally {
+        parser.release();
+      }
   
 
     // run over parse tree
+    if (rewriteInPlace) {
+      try {
+        preProcessVisitor.rewrite((Search) root);
+      } catch (com.mhs.qsol.queryparser.ParseException e) {
+        throw new QsolSyntaxException(e);
+      }
+    } else {
+      String processedQuery = root.accept(preProcessVisitor, null);
 
-    // this could be done more efficiently I'm sure
-    preProcessVisitor.setFindReplace(findReplace);
-    preProcessVisitor.setFindReplaceRegEx(findReplaceRegEx);
-
-    String processedQuery = root.accept(preProcessVisitor, null);
+      parser = ReusableQueryParser.acquire(processedQuery, orderOfOpsMap,
+          decodeUnicodeEscapes);
 
-    try {
-      parser = new QueryParser(new StringReader(processedQuery));
+      try {
+        // buildQueryVisitor.setQsolParser(parser);
+        // build 2nd parse tree from the pre-processed query
+        root = parser.Search();
+      } catch (Exception e) {
+        throw new QsolSyntaxException(e);
+      } finally {
+        parser.release();
+      }
+    }
 
-      parser.setOrderOfOps(orderOfOpsMap);
-      // buildQueryVisitor.setQsolParser(parser);
-      // build 2nd parse tree from the pre-processed query
-      root = parser.Search();
-    } catch (Exception e) {
-      throw new QsolSyntaxException(e);
+    if (suggest) {
+      // looked up only if asked for
+      suggestedSearch.set(preProcessVisitor.getSuggestion());
     }
 
-    buildQueryVisitor.setAnalyzer(analyzer);
-    buildQueryVisitor.setField(field);
+    if (analysisExecutor != null) {
+      buildQueryVisitor.preAnalyze(root, analysisExecutor, analysisWorkers,
+          minParallelTokens);
+    }
 
     // run over parse tree
     Query luceneQuery = root.accept(buildQueryVisitor, null);
@@ -480,9 +725,121 @@ public class QsolParser {
       throw new EmptyQueryException("Expanded query is empty");
     }
 
+    if (optimizeQueries) {
+      luceneQuery = new QueryOptimizer().optimize(luceneQuery);
+    }
+
+    if (useCache) {
+      queryCache.put(query, field, analyzer, settings, luceneQuery);
+    }
+
     return luceneQuery;
   }
 
+  /**
+   * Creates the pre-processor for a single call to <code>parse</code>. The
+   * visitor carries the per-query state, so each call gets its own.
+   */
+  private PreProcessVisitor newPreProcessVisitor(Analyzer analyzer,
+      boolean suggest) {
+    PreProcessVisitor visitor = new PreProcessVisitor();
+    visitor.setAnalyzer(analyzer);
+    visitor.setDateFields(dateFields);
+    visitor.setDefaultOp(defaultOp);
+    visitor.setFindReplace(findReplace);
+    visitor.setFindReplaceRegEx(findReplaceRegEx);
+    visitor.setFindReplaceMatcher(getFindReplaceMatcher());
+    visitor.setOrderOfOps(orderOfOpsMap);
+
+    if (!zeroPadFields.isEmpty()) {
+      visitor.setZeroPadFields(zeroPadFields);
+    }
+
+    if (suggest && (suggester != null)) {
+      visitor.setSuggester(suggester);
+    }
+
+    return visitor;
+  }
+
+  /**
+   * Returns the compiled find/replace expanders, building them after the
+   * tables have changed. Parsers racing to build them each get an equivalent
+   * matcher.
+   */
+  private FindReplaceMatcher getFindReplaceMatcher() {
+    FindReplaceMatcher matcher = findReplaceMatcher;
+
+    if (matcher == null) {
+      matcher = new FindReplaceMatcher(findReplace, findReplaceRegEx);
+      findReplaceMatcher = matcher;
+    }
+
+    return matcher;
+  }
+
+  /**
+   * Creates the query builder for a single call to <code>parse</code>. The
+   * visitor tracks the operator chain, slop and boost of the query being
+   * built, so each call gets its own.
+   */
+  private QsolToQueryVisitor newQueryVisitor(String field, Analyzer analyzer) {
+    QsolToQueryVisitor visitor = new QsolToQueryVisitor();
+    visitor.setAnalyzer(analyzer);
+    visitor.setField(field);
+    visitor.setOrderOfOps(opsList);
+    visitor.setDateFields(dateFields);
+    visitor.setDateParser(dateParser);
+    visitor.setLocale(locale);
+    visitor.setParaMarker(paraMarker);
+    visitor.setSentMarker(sentMarker);
+    visitor.setFieldBreakMarker(fieldBreakMarker);
+    visitor.setLowercaseExpandedTerms(lowercaseExpandedTerms);
+    visitor.setFieldMappings(fieldMap);
+    visitor.setAnalysisCache(analysisCache);
+    visitor.setThesaurus(thesaurus);
+    visitor.setMaxProximityClauses(maxProximityClauses);
+    visitor.setFactorProximityOrs(factorProximityOrs);
+    visitor.setOrdinalProximity(ordinalProximity);
+    visitor.setSentenceWindow(sentenceWindow);
+    visitor.setParagraphWindow(paragraphWindow);
+    visitor.setMultiTermSpanRewrite(multiTermSpanRewrite);
+    visitor.setSpanRewriteCache(spanRewriteCache);
+
+    return visitor;
+  }
+
+  /**
+   * Takes private copies of the tables shared with the
+   * <code>CompiledConfiguration</code> this parser was created from, before
+   * the first change to any of them.
+   */
+  private void ownSettings() {
+    settingsChanged();
+    findReplaceMatcher = null;
+
+    if (ownSettings) {
+      return;
+    }
+
+    findReplace = new HashMap<String, FindReplace>(findReplace);
+    findReplaceRegEx = new LinkedHashSet<FindReplaceRegEx>(findReplaceRegEx);
+    orderOfOpsMap = new HashMap<Operator, Integer>(orderOfOpsMap);
+    opsList = new ArrayList<Operator>(opsList);
+    dateFields = new HashSet<String>(dateFields);
+    fieldMap = new HashMap<String, String>(fieldMap);
+    zeroPadFields = new HashMap<String, Integer>(zeroPadFields);
+    ownSettings = true;
+  }
+
+  /**
+   * Gives this parser a new settings identity, so that queries cached under
+   * the old settings are no longer returned.
+   */
+  private void settingsChanged() {
+    settingsKey = new Object();
+  }
+
   private static CharSequence escape(CharSequence s) {
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < s.length(); i++) {
@@ -505,15 +862,18 @@ public class QsolParser {
    * @since 1.0
    */
   public void setDateParser(DateParser dateParser) {
-    buildQueryVisitor.setDateParser(dateParser);
+    settingsChanged();
+    this.dateParser = dateParser;
   }
 
   public void setDefaultOp(String op) {
-    this.preProcessVisitor.setDefaultOp(op);
+    settingsChanged();
+    this.defaultOp = op;
   }
 
   public void setFieldBreakMarker(String fieldBreakMarker) {
-    this.buildQueryVisitor.setFieldBreakMarker(fieldBreakMarker);
+    settingsChanged();
+    this.fieldBreakMarker = fieldBreakMarker;
   }
 
   /**
@@ -522,9 +882,360 @@ public class QsolParser {
    * @param findReplace
    */
   public void setFindReplace(Map<String, FindReplace> findReplace) {
+    ownSettings();
     this.findReplace = findReplace;
   }
 
+  /**
+   * When set to true, find/replace expansion, default operator insertion and
+   * zero padding rewrite the parse tree in place, and the query is built from
+   * that first tree. Otherwise the pre-processed query is turned back into a
+   * String and parsed a second time. Default is <code>false</code>.
+   * 
+   * @param rewriteInPlace
+   * @since 1.0
+   */
+  public void setRewriteInPlace(boolean rewriteInPlace) {
+    this.rewriteInPlace = rewriteInPlace;
+  }
+
+  /**
+   * When set to false, queries are lexed straight from the query String with a
+   * <code>StringCharStream</code>, which is cheaper than the default
+   * <code>JavaCharStream</code> but leaves java style unicode escapes (a
+   * backslash, u and four hex digits) undecoded. Default is <code>true</code>.
+   * 
+   * @param decodeUnicodeEscapes
+   * @since 1.0
+   */
+  public void setDecodeUnicodeEscapes(boolean decodeUnicodeEscapes) {
+    settingsChanged();
+    this.decodeUnicodeEscapes = decodeUnicodeEscapes;
+  }
+
+  /**
+   * Sets the cache used to return previously parsed queries without parsing
+   * them again. The cache may be shared with other parsers. Queries are not
+   * cached while suggested searches are enabled. Default is <code>null</code>
+   * (no caching).
+   * 
+   * @param queryCache
+   *          cache to use, or <code>null</code>
+   * @since 1.0
+   */
+  public void setQueryCache(QueryCache queryCache) {
+    this.queryCache = queryCache;
+  }
+
+  /**
+   * Returns the cache of parsed queries, or <code>null</code> if there is
+   * none.
+   * 
+   * @return the query cache
+   * @since 1.0
+   */
+  public QueryCache getQueryCache() {
+    return queryCache;
+  }
+
+  /**
+   * Sets the number of span queries a proximity search may be distributed
+   * into. <code>(a | b) ~5 (c | d)</code> distributes into four span queries,
+   * one for each pair of terms. Past the limit, a search with only OR'd terms
+   * on each side of the operator is built as the equivalent
+   * <code>SpanNear(SpanOr(a, b), SpanOr(c, d))</code>, and any other search
+   * is rejected with a <code>QsolParseException</code>. Default is
+   * <code>ProximityBuilder.DEFAULT_MAX_CLAUSES</code>.
+   * 
+   * @param maxProximityClauses
+   *          maximum number of span queries
+   * @since 1.0
+   */
+  public void setMaxProximityClauses(int maxProximityClauses) {
+    settingsChanged();
+    this.maxProximityClauses = maxProximityClauses;
+  }
+
+  /**
+   * Returns the number of span queries a proximity search may be distributed
+   * into.
+   * 
+   * @return maximum number of span queries
+   * @since 1.0
+   */
+  public int getMaxProximityClauses() {
+    return maxProximityClauses;
+  }
+
+  /**
+   * Sets whether a proximity search joins the span queries it distributes
+   * into. <code>(a | b | c) ~5 d</code> normally becomes a tree of
+   * two-clause SpanOrQuerys over <code>SpanNear(a, d)</code>,
+   * <code>SpanNear(b, d)</code> and <code>SpanNear(c, d)</code>. With this
+   * set, each run of OR'd span queries becomes one flat SpanOrQuery, nested
+   * SpanOrQuerys are merged into it, and a span query that occurs more than
+   * once in the run is kept only once, so its postings are read once. Matches
+   * are unchanged. Default is <code>false</code>.
+   * 
+   * @param factorProximityOrs
+   *          true to join runs of OR'd span queries
+   * @since 1.0
+   */
+  public void setFactorProximityOrs(boolean factorProximityOrs) {
+    settingsChanged();
+    this.factorProximityOrs = factorProximityOrs;
+  }
+
+  /**
+   * @return true if runs of OR'd span queries are joined into one
+   *         SpanOrQuery
+   * @since 1.0
+   */
+  public boolean isFactorProximityOrs() {
+    return factorProximityOrs;
+  }
+
+  /**
+   * Sets whether each query is run through a <code>QueryOptimizer</code>
+   * before it is returned (and cached). Equal sub-queries, common after
+   * proximity distribution and thesaurus expansion, become one shared
+   * instance, nested ORs and ANDs are flattened where scores allow it and
+   * repeated clauses are dropped. The documents matched are unchanged. Default
+   * is <code>false</code>.
+   * 
+   * @param optimizeQueries
+   *          true to optimize built queries
+   * @see QueryOptimizer
+   * @since 1.0
+   */
+  public void setOptimizeQueries(boolean optimizeQueries) {
+    settingsChanged();
+    this.optimizeQueries = optimizeQueries;
+  }
+
+  /**
+   * @return true if built queries are optimized
+   * @since 1.0
+   */
+  public boolean isOptimizeQueries() {
+    return optimizeQueries;
+  }
+
+  /**
+   * Sets whether sentence and paragraph proximity (<code>~3s</code>,
+   * <code>~1p</code>) read the sentence and paragraph numbers of terms from
+   * their payloads instead of counting marker terms. The field must have been
+   * indexed through an <code>OrdinalPayloadFilter</code>. Each such search
+   * becomes a <code>SpanOrdinalNearQuery</code>, which reads neither the
+   * marker postings nor a wide <code>SpanNearQuery</code>. Default is
+   * <code>false</code>.
+   * 
+   * @param ordinalProximity
+   *          true to compare payload ordinals
+   * @see com.mhs.qsol.spans.OrdinalPayloadFilter
+   * @since 1.0
+   */
+  public void setOrdinalProximity(boolean ordinalProximity) {
+    settingsChanged();
+    this.ordinalProximity = ordinalProximity;
+  }
+
+  /**
+   * @return true if sentence and paragraph proximity compare payload
+   *         ordinals
+   * @since 1.0
+   */
+  public boolean isOrdinalProximity() {
+    return ordinalProximity;
+  }
+
+  /**
+   * Sets the number of positions in the longest sentence. Sentence proximity
+   * finds its candidate spans with an unordered SpanNearQuery, then keeps
+   * those that cross few enough sentence markers; with a window, the near
+   * query's slop is <code>window * (distance + 1)</code> rather than
+   * unbounded, so long documents do not pair every occurrence with every
+   * other. Matches are unchanged as long as no sentence is longer than the
+   * window, counting text after the last marker of a document as a sentence.
+   * <code>MarkerStatistics</code> measures sentences in an index. Default is
+   * 0, no limit.
+   * 
+   * @param sentenceWindow
+   *          positions in the longest sentence, or 0 for no limit
+   * @see MarkerStatistics
+   * @since 1.0
+   */
+  public void setSentenceWindow(int sentenceWindow) {
+    settingsChanged();
+    this.sentenceWindow = sentenceWindow;
+  }
+
+  /**
+   * @return positions in the longest sentence, or 0 for no limit
+   * @since 1.0
+   */
+  public int getSentenceWindow() {
+    return sentenceWindow;
+  }
+
+  /**
+   * Sets the number of positions in the longest paragraph, which bounds the
+   * span search under paragraph proximity as
+   * <code>setSentenceWindow</code> does for sentences. Text after the last
+   * paragraph marker of a document counts as a paragraph. Default is 0, no
+   * limit.
+   * 
+   * @param paragraphWindow
+   *          positions in the longest paragraph, or 0 for no limit
+   * @see #setSentenceWindow(int)
+   * @since 1.0
+   */
+  public void setParagraphWindow(int paragraphWindow) {
+    settingsChanged();
+    this.paragraphWindow = paragraphWindow;
+  }
+
+  /**
+   * @return positions in the longest paragraph, or 0 for no limit
+   * @since 1.0
+   */
+  public int getParagraphWindow() {
+    return paragraphWindow;
+  }
+
+  /**
+   * Sets how a wildcard or fuzzy term inside a proximity search expands into
+   * the terms it matches. A short wildcard such as <code>c*</code> can match
+   * tens of thousands of terms, each of which becomes a span query. The
+   * default, <code>MultiTermSpanRewrite.ALL</code>, keeps every term; other
+   * modes fail the search, keep only the most frequent or best scoring terms,
+   * or collect the matching documents before reading any positions. Terms
+   * outside proximity searches are rewritten by Lucene as usual.
+   * 
+   * <pre>
+   * parser.setMultiTermSpanRewrite(new MultiTermSpanRewrite(
+   *     MultiTermSpanRewrite.Mode.TOP_DOC_FREQ, 256));
+   * </pre>
+   * 
+   * @param multiTermSpanRewrite
+   *          expansion strategy and term limit
+   * @see MultiTermSpanRewrite
+   * @since 1.0
+   */
+  public void setMultiTermSpanRewrite(MultiTermSpanRewrite multiTermSpanRewrite) {
+    settingsChanged();
+    this.multiTermSpanRewrite = multiTermSpanRewrite;
+  }
+
+  /**
+   * @return expansion strategy of wildcard and fuzzy terms in proximity
+   *         searches
+   * @since 1.0
+   */
+  public MultiTermSpanRewrite getMultiTermSpanRewrite() {
+    return multiTermSpanRewrite;
+  }
+
+  /**
+   * Sets the cache that wildcard and fuzzy terms in proximity searches look up
+   * their expansion in, per index reader, instead of enumerating the terms of
+   * the index again each time the query is rewritten. The cache may be shared
+   * with other parsers. Default is <code>null</code> (no caching).
+   * 
+   * @param spanRewriteCache
+   *          cache to use, or <code>null</code>
+   * @since 1.0
+   */
+  public void setSpanRewriteCache(SpanRewriteCache spanRewriteCache) {
+    this.spanRewriteCache = spanRewriteCache;
+  }
+
+  /**
+   * Returns the cache of wildcard and fuzzy expansions, or <code>null</code>
+   * if there is none.
+   * 
+   * @return the span rewrite cache
+   * @since 1.0
+   */
+  public SpanRewriteCache getSpanRewriteCache() {
+    return spanRewriteCache;
+  }
+
+  /**
+   * Sets a thesaurus whose synonyms are expanded while the query is built. A
+   * search token in the thesaurus becomes an OR of its synonyms, or a
+   * SpanOrQuery inside a proximity search, without the expansion being parsed
+   * as Qsol syntax. Entries added with <code>addThesaurusEntry</code> are
+   * still expanded as before. Default is <code>null</code>.
+   * 
+   * @param thesaurus
+   *          thesaurus to use, or <code>null</code>
+   * @since 1.0
+   */
+  public void setThesaurus(Thesaurus thesaurus) {
+    settingsChanged();
+    this.thesaurus = thesaurus;
+  }
+
+  /**
+   * Returns the thesaurus, or <code>null</code> if there is none.
+   * 
+   * @return the thesaurus
+   * @since 1.0
+   */
+  public Thesaurus getThesaurus() {
+    return thesaurus;
+  }
+
+  /**
+   * Sets the cache used to look up the analyzed terms of search tokens
+   * instead of running the analyzer on them again. The cache may be shared
+   * with other parsers. Default is <code>null</code> (no caching).
+   * 
+   * @param analysisCache
+   *          cache to use, or <code>null</code>
+   * @since 1.0
+   */
+  public void setAnalysisCache(AnalysisCache analysisCache) {
+    this.analysisCache = analysisCache;
+  }
+
+  /**
+   * Returns the cache of analyzed search tokens, or <code>null</code> if
+   * there is none.
+   * 
+   * @return the analysis cache
+   * @since 1.0
+   */
+  public AnalysisCache getAnalysisCache() {
+    return analysisCache;
+  }
+
+  /**
+   * Analyzes the search tokens of large queries on several threads before the
+   * query is built. When a query has at least <code>minTokens</code> distinct
+   * tokens to analyze, they are collected from the parse tree and analyzed by
+   * the calling thread and <code>workers - 1</code> tasks on
+   * <code>executor</code>; the query is then built from the analyzed terms.
+   * Queries with fewer tokens are analyzed as they are built. The analyzer
+   * must be safe to share across threads, as Lucene's analyzers are. Default
+   * is <code>null</code> (no parallel analysis).
+   * 
+   * @param executor
+   *          executor to analyze on, or <code>null</code>
+   * @param workers
+   *          number of threads to analyze a query in, counting the calling
+   *          thread
+   * @param minTokens
+   *          fewest distinct tokens worth analyzing in parallel
+   * @since 1.0
+   */
+  public void setParallelAnalysis(Executor executor, int workers, int minTokens) {
+    this.analysisExecutor = executor;
+    this.analysisWorkers = workers;
+    this.minParallelTokens = minTokens;
+  }
+
   /**
    * Sets the locale for date parsing.
    * 
@@ -532,6 +1243,7 @@ public class QsolParser {
    * @since 1.0
    */
   public void setLocale(Locale locale) {
+    settingsChanged();
     this.locale = locale;
   }
 
@@ -540,7 +1252,8 @@ public class QsolParser {
    * automatically lower-cased or not. Default is <code>true</code>.
    */
   public void setLowercaseExpandedTerms(boolean lowercaseExpandedTerms) {
-    this.buildQueryVisitor.setLowercaseExpandedTerms(lowercaseExpandedTerms);
+    settingsChanged();
+    this.lowercaseExpandedTerms = lowercaseExpandedTerms;
   }
 
   /**
@@ -564,6 +1277,7 @@ public class QsolParser {
    * @since 1.0
    */
   public void setOpsOrder(List<Operator> opsList) {
+    settingsChanged();
     this.opsList = opsList;
     orderOfOpsMap = new HashMap<Operator, Integer>(4);
     orderOfOpsMap.put(opsList.get(0), QueryParserConstants.OP1);
@@ -578,7 +1292,8 @@ public class QsolParser {
    * @since 1.0
    */
   public void setOrAsDefaultOp() {
-    preProcessVisitor.setOrAsDefaultOp();
+    settingsChanged();
+    this.defaultOp = "|";
   }
 
   /**
@@ -588,7 +1303,8 @@ public class QsolParser {
    * @since 1.0
    */
   public void setParagraphMarker(String marker) {
-    this.buildQueryVisitor.setParaMarker(marker);
+    settingsChanged();
+    this.paraMarker = marker;
   }
 
   /**
@@ -598,19 +1314,62 @@ public class QsolParser {
    * @since 1.0
    */
   public void setSentenceMarker(String marker) {
-    this.buildQueryVisitor.setSentMarker(marker);
+    settingsChanged();
+    this.sentMarker = marker;
   }
 
   /**
    * Enables the suggested search feature. Use the <code>SpellChecker</code> in
-   * contrib to make a spell index and pass it to this method.
+   * contrib to make a spell index and pass it to this method. The spell index
+   * is opened at the first lookup. The parser owns the suggester made for
+   * <code>dir</code> and closes it when another is set; suggestions not yet
+   * looked up from it will fail.
    * 
    * @param dir
    *          <code>SpellChecker</code> index to get suggestions from
+   * @deprecated use <code>useSuggest(Suggester)</code> with a
+   *             <code>SpellCheckerSuggester</code> that the caller closes
    * @since 1.0
    */
   public void useSuggest(Directory dir) {
-    this.preProcessVisitor.setSuggestedInfo(dir);
+    SpellCheckerSuggester created = (dir == null) ? null
+        : new SpellCheckerSuggester(dir);
+    useSuggest(created);
+    ownSuggester = created;
+  }
+
+  /**
+   * Enables the suggested search feature, with suggestions from
+   * <code>suggester</code>. The suggester may be shared with other parsers.
+   * 
+   * @param suggester
+   *          suggester to use, or <code>null</code> to turn suggestions off
+   * @since 1.0
+   */
+  public void useSuggest(Suggester suggester) {
+    if ((ownSuggester != null) && (ownSuggester != suggester)) {
+      try {
+        ownSuggester.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    ownSuggester = null;
+    this.suggester = suggester;
+  }
+
+  /**
+   * Sets the executor that <code>parseWithSuggestion</code> looks suggested
+   * searches up on. Default is <code>null</code>: the suggestion is looked up
+   * in the thread that first asks for it.
+   * 
+   * @param executor
+   *          executor to use, or <code>null</code>
+   * @since 1.0
+   */
+  public void setSuggestExecutor(Executor executor) {
+    this.suggestExecutor = executor;
   }
 
   public enum Operator {
@@ -15,8 +15,6 @@
  */
 package com.mhs.qsol;
 
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -24,17 +22,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.Token;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
-import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
@@ -62,7 +56,10 @@ import com.mhs.qsol.abstractnode.VisitOrd1;
 import com.mhs.qsol.abstractnode.VisitOrd2;
 import com.mhs.qsol.abstractnode.VisitOrd3;
 import com.mhs.qsol.abstractnode.VisitOrd4;
+import com.mhs.qsol.proximity.ProximityBuilder;
 import com.mhs.qsol.proximity.ProximityVisitor;
+import com.mhs.qsol.spans.MultiTermSpanRewrite;
+import com.mhs.qsol.spans.SpanRewriteCache;
 import com.mhs.qsol.syntaxtree.BasicSearch;
 import com.mhs.qsol.syntaxtree.BasicSearchType;
 import com.mhs.qsol.syntaxtree.CheckOrd1Search;
@@ -70,6 +67,7 @@ import com.mhs.qsol.syntaxtree.CheckOrd2Search;
 import com.mhs.qsol.syntaxtree.CheckOrd3Search;
 import com.mhs.qsol.syntaxtree.CheckOrd4Search;
 import com.mhs.qsol.syntaxtree.FieldSearch;
+import com.mhs.qsol.syntaxtree.Node;
 import com.mhs.qsol.syntaxtree.NodeChoice;
 import com.mhs.qsol.syntaxtree.Ord1Search;
 import com.mhs.qsol.syntaxtree.Ord2Search;
@@ -95,7 +93,7 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
   // "^(.+)\\srng\\s(.+)$", Pattern.CASE_INSENSITIVE);
   static final Pattern RANGE_EXTRACTOR = Pattern
       .compile("^([\\[{])?(.*?) (TO|RNG|rng) (.*?)([}\\]])?$");
-  private static final Pattern BOOST_EXTRACTOR = Pattern
+  static final Pattern BOOST_EXTRACTOR = Pattern
       .compile("^(.*?)\\^(\\d+(?:\\.\\d+)?)$");
   private final static Logger logger = Logger
       .getLogger(QsolToQueryVisitor.class.getPackage().getName());
@@ -145,6 +143,16 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
   private String fieldBreakMarker;
   private float boost = 1;
   private Map<String, String> fieldMap = new HashMap<String, String>(4);
+  private AnalyzedTerms analyzedTerms;
+  private AnalysisCache analysisCache;
+  private Thesaurus thesaurus;
+  private int maxProximityClauses = ProximityBuilder.DEFAULT_MAX_CLAUSES;
+  private boolean factorProximityOrs;
+  private boolean ordinalProximity;
+  private int sentenceWindow;
+  private int paragraphWindow;
+  private MultiTermSpanRewrite multiTermSpanRewrite = MultiTermSpanRewrite.ALL;
+  private SpanRewriteCache spanRewriteCache;
 
   public void setDateFields(Set<String> dateFields) {
     this.dateFields = dateFields;
@@ -480,7 +488,40 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
     }
 
     // must be search token
-    return tokenToQuery(choice.choice.toString());
+    return searchTokenToQuery(choice.choice.toString());
+  }
+
+  /**
+   * Builds the query for a plain search token, or an OR of the queries for
+   * its synonyms if it is in the thesaurus.
+   */
+  private Query searchTokenToQuery(String token) {
+    String[] synonyms = (thesaurus == null) ? null : thesaurus
+        .getSynonyms(removeEscapeChars(token));
+
+    if (synonyms == null) {
+      return tokenToQuery(token);
+    }
+
+    BooleanQuery q = new BooleanQuery();
+
+    for (String synonym : synonyms) {
+      Query synonymQuery = tokenToQuery(synonym);
+
+      if (synonymQuery != null) {
+        q.add(synonymQuery, BooleanClause.Occur.SHOULD);
+      }
+    }
+
+    BooleanClause[] clauses = q.getClauses();
+
+    if (clauses.length == 0) {
+      return null;
+    } else if (clauses.length == 1) {
+      return clauses[0].getQuery();
+    }
+
+    return q;
   }
 
   /**
@@ -524,13 +565,22 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
   private Query visitCheckForProx(VisitCheckOp op, Query query) {
     Query returnQuery = null;
 
-    ProximityVisitor proxVisitor = new ProximityVisitor(analyzer, field);
+    ProximityVisitor proxVisitor = new ProximityVisitor(analyzer, field,
+        getAnalyzedTerms());
     proxVisitor.setOrderOfOps(this.orderOfOps);
 
     proxVisitor.setParaMarker(paraMarker);
     proxVisitor.setSentMarker(sentMarker);
 
     proxVisitor.setFieldBreakMarker(fieldBreakMarker);
+    proxVisitor.setThesaurus(thesaurus);
+    proxVisitor.setMaxClauses(maxProximityClauses);
+    proxVisitor.setFactorOrs(factorProximityOrs);
+    proxVisitor.setOrdinalProximity(ordinalProximity);
+    proxVisitor.setSentenceWindow(sentenceWindow);
+    proxVisitor.setParagraphWindow(paragraphWindow);
+    proxVisitor.setMultiTermRewrite(multiTermSpanRewrite);
+    proxVisitor.setRewriteCache(spanRewriteCache);
 
     if (op.isF1Present()) {
       proxVisitor.startGroup();
@@ -633,7 +683,7 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
   /**
    * Removes escape characters.
    */
-  private String removeEscapeChars(String input) {
+  static String removeEscapeChars(String input) {
     char[] caSource = input.toCharArray();
     char[] caDest = new char[caSource.length];
     int j = 0;
@@ -658,68 +708,27 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
 
     token = removeEscapeChars(token);
 
-    TokenStream source = analyzer.tokenStream(field, new StringReader(token));
-    ArrayList<Token> v = new ArrayList<Token>();
-    Token t;
-    int positionCount = 0;
-    boolean severalTokensAtSamePosition = false;
-
-    CharTermAttribute charTermAtrib = source.getAttribute(CharTermAttribute.class);
-    OffsetAttribute offsetAtrib = source.getAttribute(OffsetAttribute.class);
-    PositionIncrementAttribute posIncAtt = source.addAttribute(PositionIncrementAttribute.class);
-    
-    while (true) {
-      try {
-        if (!source.incrementToken()) {
-          break;
-        }
-        t = new Token(charTermAtrib.buffer(), 0, charTermAtrib.length(), offsetAtrib.startOffset(), offsetAtrib.endOffset());
-        t.setPositionIncrement(posIncAtt.getPositionIncrement());
-      } catch (IOException e) {
-        t = null;
-      }
-
-      if (t == null) {
-        break;
-      }
+    AnalyzedTerms terms = getAnalyzedTerms().analyze(analyzer, field, token);
 
-      v.add(t);
-
-      if (t.getPositionIncrement() != 0) {
-        positionCount += t.getPositionIncrement();
-      } else {
-        severalTokensAtSamePosition = true;
-      }
-    }
-
-    try {
-      source.close();
-    } catch (IOException e) {
-      // ignore
-    }
+    int size = terms.size();
 
-    if (v.size() == 0) {
+    if (size == 0) {
       // null's will get cleaned up in visitBooleanOp
       return null;
-    } else if (v.size() == 1) {
-
-      t = v.get(0);
-
-      TermQuery termQuery = new TermQuery(new Term(field, new String(t.buffer(), 0, t.length())));
+    } else if (size == 1) {
+      TermQuery termQuery = new TermQuery(new Term(field, terms.term(0)));
       termQuery.setBoost(this.boost);
 
       return termQuery;
     } else {
-      if (severalTokensAtSamePosition) {
-        if (positionCount == 1) {
+      if (terms.hasSeveralTokensAtSamePosition()) {
+        if (terms.getPositionCount() == 1) {
           // no phrase query:
           BooleanQuery q = new BooleanQuery(true);
 
-          for (int i = 0; i < v.size(); i++) {
-            t = v.get(i);
-
+          for (int i = 0; i < size; i++) {
             TermQuery currentQuery = new TermQuery(
-                new Term(field, new String(t.buffer(), 0, t.length())));
+                new Term(field, terms.term(i)));
             currentQuery.setBoost(this.boost);
 
             q.add(currentQuery, BooleanClause.Occur.SHOULD);
@@ -727,49 +736,47 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
 
           return q;
         } else {
-            // All the Tokens in each sub-list are positioned at the the same location.
-            ArrayList<ArrayList<Token>> identicallyPositionedTokenLists =
-                    new ArrayList<ArrayList<Token>>();
-            for (int i = 0; i < v.size(); i++) {
-              if ((i == 0) || (v.get(i).getPositionIncrement() > 0)) {
-                identicallyPositionedTokenLists.add(new ArrayList<Token>());
-              }
-              ArrayList<Token> curList =
-                      identicallyPositionedTokenLists.get(identicallyPositionedTokenLists.size()-1);
-              curList.add(v.get(i));
+          // Terms with a position increment of 0 share a position with the
+          // term before them.
+          List<SpanQuery> spanNearSubclauses = new ArrayList<SpanQuery>();
+          int i = 0;
+
+          while (i < size) {
+            int end = i + 1;
+
+            while ((end < size) && (terms.positionIncrement(end) == 0)) {
+              end++;
             }
 
-            ArrayList<SpanQuery> spanNearSubclauses = new ArrayList<SpanQuery>();
-            for (int listNum = 0; listNum < identicallyPositionedTokenLists.size(); listNum++) {
-              ArrayList<Token> curTokens = identicallyPositionedTokenLists.get(listNum);
-
-              ArrayList<SpanTermQuery> curTermQueries = new ArrayList<SpanTermQuery>();
-              for (int tokenNum = 0; tokenNum < curTokens.size(); tokenNum++) {
-                SpanTermQuery termQuery = new SpanTermQuery(new Term(field, curTokens.get(tokenNum).term()));
-                termQuery.setBoost(this.boost);
-                curTermQueries.add(termQuery);
-              }
-
-              int size = curTermQueries.size();
-              if (size <= 0)
-                continue;
-              else if (size == 1)
-                spanNearSubclauses.add(curTermQueries.get(0));
-              else
-                spanNearSubclauses.add(new SpanOrQuery(curTermQueries.toArray(new SpanQuery[0])));
+            SpanQuery[] curTermQueries = new SpanQuery[end - i];
+
+            for (int j = i; j < end; j++) {
+              SpanTermQuery termQuery = new SpanTermQuery(new Term(field,
+                  terms.term(j)));
+              termQuery.setBoost(this.boost);
+              curTermQueries[j - i] = termQuery;
             }
-            
-            SpanNearQuery query = new SpanNearQuery((SpanQuery[]) spanNearSubclauses
-                    .toArray(new SpanQuery[0]), slop, true);
+
+            if (curTermQueries.length == 1) {
+              spanNearSubclauses.add(curTermQueries[0]);
+            } else {
+              spanNearSubclauses.add(new SpanOrQuery(curTermQueries));
+            }
+
+            i = end;
+          }
+
+          SpanNearQuery query = new SpanNearQuery(spanNearSubclauses
+              .toArray(new SpanQuery[spanNearSubclauses.size()]), slop, true);
 
           return query;
         }
       } else {
-        SpanTermQuery[] clauses = new SpanTermQuery[v.size()];
+        SpanTermQuery[] clauses = new SpanTermQuery[size];
 
-        for (int i = 0; i < v.size(); i++) {
-          Token t2 = v.get(i);
-          SpanTermQuery spanQuery = new SpanTermQuery(new Term(field, new String(t2.buffer(), 0, t2.length())));
+        for (int i = 0; i < size; i++) {
+          SpanTermQuery spanQuery = new SpanTermQuery(new Term(field, terms
+              .term(i)));
           spanQuery.setBoost(boost);
           clauses[i] = spanQuery;
         }
@@ -782,6 +789,46 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
     }
   }
 
+  /**
+   * Analyzes the search tokens under <code>root</code> on several threads, if
+   * there are at least <code>minTokens</code> of them, so that building the
+   * query finds them already analyzed.
+   * 
+   * @param root
+   *          parse tree this visitor is about to build a query from
+   * @param executor
+   *          runs the other workers
+   * @param workers
+   *          number of threads to analyze in, counting the calling thread
+   * @param minTokens
+   *          fewest distinct tokens worth analyzing in parallel
+   */
+  void preAnalyze(Node root, Executor executor, int workers, int minTokens) {
+    LeafTokenCollector collector = new LeafTokenCollector(field, fieldMap,
+        dateFields, thesaurus);
+    root.accept(collector);
+
+    if (collector.size() < minTokens) {
+      return;
+    }
+
+    getAnalyzedTerms().setPreAnalyzed(
+        collector.analyze(analyzer, analysisCache, executor, workers));
+  }
+
+  /**
+   * Returns the term buffer shared by this visitor and the proximity visitors
+   * it creates.
+   */
+  private AnalyzedTerms getAnalyzedTerms() {
+    if (analyzedTerms == null) {
+      analyzedTerms = new AnalyzedTerms();
+      analyzedTerms.setCache(analysisCache);
+    }
+
+    return analyzedTerms;
+  }
+
   public Locale getLocale() {
     return locale;
   }
@@ -884,4 +931,106 @@ public class QsolToQueryVisitor extends GJDepthFirst<Query, Query> {
   public void addFieldMappings(Map<String, String> fieldMap) {
     this.fieldMap.putAll(fieldMap);
   }
+
+  /**
+   * Sets the cache of analyzed search tokens, shared with the proximity
+   * visitors this visitor creates.
+   * 
+   * @param analysisCache
+   *          cache to use, or <code>null</code>
+   */
+  public void setAnalysisCache(AnalysisCache analysisCache) {
+    this.analysisCache = analysisCache;
+
+    if (analyzedTerms != null) {
+      analyzedTerms.setCache(analysisCache);
+    }
+  }
+
+  /**
+   * Sets the number of span queries a proximity search may distribute into.
+   * 
+   * @param maxProximityClauses
+   *          maximum number of span queries
+   */
+  public void setMaxProximityClauses(int maxProximityClauses) {
+    this.maxProximityClauses = maxProximityClauses;
+  }
+
+  /**
+   * Sets whether runs of OR'd span queries in a proximity search are joined
+   * into one SpanOrQuery.
+   * 
+   * @param factorProximityOrs
+   */
+  public void setFactorProximityOrs(boolean factorProximityOrs) {
+    this.factorProximityOrs = factorProximityOrs;
+  }
+
+  /**
+   * Sets whether sentence and paragraph proximity compare payload ordinals
+   * instead of counting marker terms.
+   * 
+   * @param ordinalProximity
+   */
+  public void setOrdinalProximity(boolean ordinalProximity) {
+    this.ordinalProximity = ordinalProximity;
+  }
+
+  /**
+   * Sets the number of positions in the longest sentence.
+   * 
+   * @param sentenceWindow
+   */
+  public void setSentenceWindow(int sentenceWindow) {
+    this.sentenceWindow = sentenceWindow;
+  }
+
+  /**
+   * Sets the number of positions in the longest paragraph.
+   * 
+   * @param paragraphWindow
+   */
+  public void setParagraphWindow(int paragraphWindow) {
+    this.paragraphWindow = paragraphWindow;
+  }
+
+  /**
+   * Sets how wildcard and fuzzy terms in proximity searches expand.
+   * 
+   * @param multiTermSpanRewrite
+   */
+  public void setMultiTermSpanRewrite(MultiTermSpanRewrite multiTermSpanRewrite) {
+    this.multiTermSpanRewrite = multiTermSpanRewrite;
+  }
+
+  /**
+   * Sets the cache of wildcard and fuzzy expansions in proximity searches.
+   * 
+   * @param spanRewriteCache
+   *          cache to use, or <code>null</code>
+   */
+  public void setSpanRewriteCache(SpanRewriteCache spanRewriteCache) {
+    this.spanRewriteCache = spanRewriteCache;
+  }
+
+  /**
+   * Sets the synonyms that plain search tokens are expanded with.
+   * 
+   * @param thesaurus
+   *          thesaurus to use, or <code>null</code>
+   */
+  public void setThesaurus(Thesaurus thesaurus) {
+    this.thesaurus = thesaurus;
+  }
+
+  /**
+   * Uses <code>fieldMap</code> as the field mapping table without copying it.
+   * 
+   * @param fieldMap
+   *          field to mapped field
+   */
+  public void setFieldMappings(Map<String, String> fieldMap) {
+    this.fieldMap = fieldMap;
+  }
 }
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.Query;
+
+/**
+ * A bounded, least recently used cache of parsed queries. Entries are keyed on
+ * the query string (with leading and trailing whitespace removed), the default
+ * field, the <code>Analyzer</code> instance and the settings of the parser
+ * that built them, so a parser whose settings change stops seeing the entries
+ * it made before the change. Whitespace inside the query string is compared
+ * as is: <code>a  b</code> and <code>a b</code> are cached separately, since
+ * an escaped space makes the difference significant.
+ * <p>
+ * A cache may be shared by any number of parsers and threads. Queries are
+ * cloned on the way in and out, so callers may change the boost of the
+ * returned query; sub-queries are shared between callers and should not be
+ * modified.
+ *
+ * @see QsolParser#setQueryCache(QueryCache)
+ * @since 1.0
+ */
+public class QueryCache {
+  private final LruCache<Key, Query> cache;
+
+  /**
+   * @param maxSize
+   *          maximum number of queries to keep
+   */
+  public QueryCache(int maxSize) {
+    this.cache = new LruCache<Key, Query>(maxSize);
+  }
+
+  Query get(String query, String field, Analyzer analyzer, Object settings) {
+    Query cached = cache.get(new Key(query, field, analyzer, settings));
+
+    return (cached == null) ? null : (Query) cached.clone();
+  }
+
+  void put(String query, String field, Analyzer analyzer, Object settings,
+      Query luceneQuery) {
+    cache.put(new Key(query, field, analyzer, settings), (Query) luceneQuery
+        .clone());
+  }
+
+  /**
+   * Removes all cached queries. The counters are left as they are.
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public int getMaxSize() {
+    return cache.getMaxSize();
+  }
+
+  public long getHits() {
+    return cache.getStats().getHits();
+  }
+
+  public long getMisses() {
+    return cache.getStats().getMisses();
+  }
+
+  public long getEvictions() {
+    return cache.getStats().getEvictions();
+  }
+
+  public String toString() {
+    return "QueryCache(size=" + cache.size() + ", maxSize="
+        + cache.getMaxSize() + ", " + cache.getStats() + ")";
+  }
+
+  private static final class Key {
+    private final String query;
+    private final String field;
+    private final Analyzer analyzer;
+    private final Object settings;
+    private final int hash;
+
+    Key(String query, String field, Analyzer analyzer, Object settings) {
+      this.query = query.trim();
+      this.field = field;
+      this.analyzer = analyzer;
+      this.settings = settings;
+
+      int h = this.query.hashCode();
+      h = (31 * h) + ((field == null) ? 0 : field.hashCode());
+      h = (31 * h) + System.identityHashCode(analyzer);
+      h = (31 * h) + System.identityHashCode(settings);
+      this.hash = h;
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+
+      return (analyzer == other.analyzer)
+          && (settings == other.settings)
+          && query.equals(other.query)
+          && ((field == null) ? (other.field == null) : field
+              .equals(other.field));
+    }
+  }
+}
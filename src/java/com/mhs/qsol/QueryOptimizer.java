@@ -0,0 +1,345 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanNotQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+
+/**
+ * Shrinks a finished query tree without changing the documents it matches.
+ * Distribution and synonym expansion tend to build the same
+ * <code>TermQuery</code>, <code>SpanTermQuery</code> or
+ * <code>SpanNearQuery</code> many times over; after optimizing, equal
+ * sub-queries are a single shared instance.
+ * <p>
+ * The optimizer also:
+ * <ul>
+ * <li>flattens a nested <code>BooleanQuery</code> into its parent when all of
+ * its clauses have the same occur as the clause holding it (never for
+ * <code>MUST_NOT</code>), so a chain of ORs on one field becomes a single
+ * disjunction. Flattening changes the coord factor of a query that uses it,
+ * so while coord is enabled only required clauses are flattened, and only
+ * into a parent with no optional clauses, where coord is always 1.</li>
+ * <li>flattens a nested <code>SpanOrQuery</code> into its parent
+ * <code>SpanOrQuery</code></li>
+ * <li>drops repeated clauses of a <code>BooleanQuery</code> and repeated
+ * clauses of a <code>SpanOrQuery</code></li>
+ * </ul>
+ * Boosted queries and queries with a minimum number of SHOULD clauses are
+ * left unflattened, and flattening never takes a query past
+ * <code>BooleanQuery.getMaxClauseCount()</code>. Scores of queries with
+ * repeated clauses change, as those clauses are only counted once. Rebuilt <code>SpanNearQuery</code>s collect payloads, the
+ * Lucene default.
+ * <p>
+ * Queries are never modified; changed parts of the tree are rebuilt. Because
+ * sub-queries are shared afterwards, their boosts must not be changed. Not
+ * thread safe; use an optimizer per thread.
+ *
+ * @see QsolParser#setOptimizeQueries(boolean)
+ * @since 1.0
+ */
+public class QueryOptimizer {
+  private final static Logger logger = Logger.getLogger(QueryOptimizer.class
+      .getPackage().getName());
+
+  private final Map<Query, Query> canonical = new HashMap<Query, Query>();
+  private int clauseCountBefore;
+  private int clauseCountAfter;
+
+  /**
+   * Optimizes <code>query</code>. Interned queries are only shared within a
+   * single call.
+   *
+   * @param query
+   *          query to optimize
+   * @return the optimized query, which may be <code>query</code> itself
+   */
+  public Query optimize(Query query) {
+    clauseCountBefore = countClauses(query);
+
+    Query optimized;
+
+    try {
+      optimized = visit(query);
+    } finally {
+      canonical.clear();
+    }
+
+    clauseCountAfter = countDistinctClauses(optimized,
+        new IdentityHashMap<Query, Boolean>());
+
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("optimize - clauses before: " + clauseCountBefore
+          + " after: " + clauseCountAfter);
+    }
+
+    return optimized;
+  }
+
+  /**
+   * @return number of queries in the tree given to the last call to
+   *         <code>optimize</code>, counting the root
+   */
+  public int getClauseCountBefore() {
+    return clauseCountBefore;
+  }
+
+  /**
+   * @return number of distinct query instances in the tree returned by the
+   *         last call to <code>optimize</code>, counting the root
+   */
+  public int getClauseCountAfter() {
+    return clauseCountAfter;
+  }
+
+  private Query visit(Query query) {
+    Query optimized = query;
+
+    if (query instanceof BooleanQuery) {
+      optimized = visitBoolean((BooleanQuery) query);
+    } else if (query.getClass() == SpanOrQuery.class) {
+      SpanQuery[] clauses = ((SpanOrQuery) query).getClauses();
+      Set<SpanQuery> visited = new LinkedHashSet<SpanQuery>();
+
+      for (SpanQuery clause : clauses) {
+        SpanQuery child = (SpanQuery) visit(clause);
+
+        if ((child.getClass() == SpanOrQuery.class)
+            && (child.getBoost() == 1.0f)) {
+          // already flattened and interned
+          for (SpanQuery childClause : ((SpanOrQuery) child).getClauses()) {
+            visited.add(childClause);
+          }
+        } else {
+          visited.add(child);
+        }
+      }
+
+      if (!sameInstances(clauses, visited)) {
+        optimized = new SpanOrQuery(visited.toArray(new SpanQuery[visited
+            .size()]));
+        optimized.setBoost(query.getBoost());
+      }
+    } else if (query.getClass() == SpanNearQuery.class) {
+      SpanNearQuery near = (SpanNearQuery) query;
+      SpanQuery[] clauses = near.getClauses();
+      List<SpanQuery> visited = new ArrayList<SpanQuery>(clauses.length);
+
+      for (SpanQuery clause : clauses) {
+        visited.add((SpanQuery) visit(clause));
+      }
+
+      if (!sameInstances(clauses, visited)) {
+        optimized = new SpanNearQuery(visited.toArray(new SpanQuery[visited
+            .size()]), near.getSlop(), near.isInOrder());
+        optimized.setBoost(query.getBoost());
+      }
+    } else if (query.getClass() == SpanNotQuery.class) {
+      SpanNotQuery not = (SpanNotQuery) query;
+      SpanQuery include = (SpanQuery) visit(not.getInclude());
+      SpanQuery exclude = (SpanQuery) visit(not.getExclude());
+
+      if ((include != not.getInclude()) || (exclude != not.getExclude())) {
+        optimized = new SpanNotQuery(include, exclude);
+        optimized.setBoost(query.getBoost());
+      }
+    }
+
+    Query interned = canonical.get(optimized);
+
+    if (interned == null) {
+      canonical.put(optimized, optimized);
+
+      return optimized;
+    }
+
+    return interned;
+  }
+
+  private Query visitBoolean(BooleanQuery query) {
+    BooleanClause[] clauses = query.getClauses();
+    List<BooleanClause> visited = new ArrayList<BooleanClause>(clauses.length);
+
+    for (BooleanClause clause : clauses) {
+      visited.add(new BooleanClause(visit(clause.getQuery()), clause.getOccur()));
+    }
+
+    // minimum should match counts clauses, so leave them as they are
+    if (query.getMinimumNumberShouldMatch() == 0) {
+      Set<BooleanClause> flattened = flatten(query, visited);
+
+      if (flattened.size() > BooleanQuery.getMaxClauseCount()) {
+        flattened = new LinkedHashSet<BooleanClause>(visited);
+      }
+
+      visited = new ArrayList<BooleanClause>(flattened);
+    }
+
+    if (visited.size() == clauses.length) {
+      boolean same = true;
+
+      for (int i = 0; same && (i < clauses.length); i++) {
+        same = (visited.get(i).getQuery() == clauses[i].getQuery())
+            && (visited.get(i).getOccur() == clauses[i].getOccur());
+      }
+
+      if (same) {
+        return query;
+      }
+    }
+
+    BooleanQuery optimized = new BooleanQuery(query.isCoordDisabled());
+    optimized.setBoost(query.getBoost());
+
+    for (BooleanClause clause : visited) {
+      optimized.add(clause);
+    }
+
+    return optimized;
+  }
+
+  private static Set<BooleanClause> flatten(BooleanQuery parent,
+      List<BooleanClause> clauses) {
+    Set<BooleanClause> flattened = new LinkedHashSet<BooleanClause>();
+    boolean optionalClauses = false;
+
+    for (BooleanClause clause : clauses) {
+      optionalClauses |= (clause.getOccur() == Occur.SHOULD);
+    }
+
+    for (BooleanClause clause : clauses) {
+      if (canFlatten(parent, optionalClauses, clause)) {
+        // already flattened and interned
+        for (BooleanClause child : ((BooleanQuery) clause.getQuery())
+            .getClauses()) {
+          flattened.add(child);
+        }
+      } else {
+        flattened.add(clause);
+      }
+    }
+
+    return flattened;
+  }
+
+  private static boolean canFlatten(BooleanQuery parent,
+      boolean optionalClauses, BooleanClause clause) {
+    if (!(clause.getQuery() instanceof BooleanQuery)
+        || (clause.getOccur() == Occur.MUST_NOT)) {
+      return false;
+    }
+
+    // coord counts the clauses of each query, so flattening would change it,
+    // except for required clauses in a query where all clauses are required
+    if (!parent.isCoordDisabled()
+        && ((clause.getOccur() != Occur.MUST) || optionalClauses)) {
+      return false;
+    }
+
+    BooleanQuery child = (BooleanQuery) clause.getQuery();
+
+    if ((child.getBoost() != 1.0f) || (child.getMinimumNumberShouldMatch() != 0)
+        || (child.isCoordDisabled() != parent.isCoordDisabled())
+        || child.clauses().isEmpty()) {
+      return false;
+    }
+
+    for (BooleanClause childClause : child.clauses()) {
+      if (childClause.getOccur() != clause.getOccur()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean sameInstances(SpanQuery[] clauses,
+      Iterable<SpanQuery> visited) {
+    int i = 0;
+
+    for (SpanQuery clause : visited) {
+      if ((i == clauses.length) || (clause != clauses[i++])) {
+        return false;
+      }
+    }
+
+    return i == clauses.length;
+  }
+
+  private static int countClauses(Query query) {
+    int count = 1;
+
+    for (Query child : children(query)) {
+      count += countClauses(child);
+    }
+
+    return count;
+  }
+
+  private static int countDistinctClauses(Query query,
+      Map<Query, Boolean> seen) {
+    if (seen.put(query, Boolean.TRUE) != null) {
+      return 0;
+    }
+
+    int count = 1;
+
+    for (Query child : children(query)) {
+      count += countDistinctClauses(child, seen);
+    }
+
+    return count;
+  }
+
+  private static List<Query> children(Query query) {
+    List<Query> children = new ArrayList<Query>();
+
+    if (query instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+        children.add(clause.getQuery());
+      }
+    } else if (query instanceof SpanOrQuery) {
+      for (SpanQuery clause : ((SpanOrQuery) query).getClauses()) {
+        children.add(clause);
+      }
+    } else if (query instanceof SpanNearQuery) {
+      for (SpanQuery clause : ((SpanNearQuery) query).getClauses()) {
+        children.add(clause);
+      }
+    } else if (query instanceof SpanNotQuery) {
+      children.add(((SpanNotQuery) query).getInclude());
+      children.add(((SpanNotQuery) query).getExclude());
+    }
+
+    return children;
+  }
+}
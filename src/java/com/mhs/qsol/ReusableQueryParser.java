@@ -0,0 +1,125 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.util.Map;
+
+import com.mhs.qsol.QsolParser.Operator;
+import com.mhs.qsol.queryparser.QueryParser;
+import com.mhs.qsol.queryparser.ReusableCharStream;
+import com.mhs.qsol.queryparser.StringCharStream;
+
+/**
+ * A <code>QueryParser</code> that is kept by its thread and re-initialized
+ * for each query, so the lexer's character buffers and token manager are
+ * allocated once per thread instead of once per parse. Queries are read
+ * straight from a <code>CharSequence</code>, through a
+ * <code>StringCharStream</code> when unicode escapes are not to be decoded.
+ * <p>
+ * Usage: <code>acquire</code> a parser, use it, then <code>release</code> it
+ * in a finally block. If the thread's parser is already in use, a new parser
+ * is handed out so nested use is safe.
+ */
+final class ReusableQueryParser extends QueryParser {
+  private static final ThreadLocal<ReusableQueryParser> PARSERS = new ThreadLocal<ReusableQueryParser>() {
+    protected ReusableQueryParser initialValue() {
+      return new ReusableQueryParser(new CharSequenceReader());
+    }
+  };
+
+  private final CharSequenceReader reader;
+  private final ReusableCharStream charStream;
+  private StringCharStream stringStream;
+  private boolean inUse;
+
+  private ReusableQueryParser(CharSequenceReader reader) {
+    this(reader, new ReusableCharStream(reader));
+  }
+
+  private ReusableQueryParser(CharSequenceReader reader,
+      ReusableCharStream charStream) {
+    super(charStream);
+    this.reader = reader;
+    this.charStream = charStream;
+  }
+
+  /**
+   * Returns a parser ready to read <code>query</code>, with the given
+   * operator order and no hidden operators.
+   *
+   * @param query
+   *          Qsol syntax to lex or parse
+   * @param orderOfOps
+   *          operator to token kind
+   * @return parser to <code>release</code> when done
+   */
+  static ReusableQueryParser acquire(CharSequence query,
+      Map<Operator, Integer> orderOfOps) {
+    return acquire(query, orderOfOps, true);
+  }
+
+  /**
+   * Returns a parser ready to read <code>query</code>, with the given
+   * operator order and no hidden operators.
+   *
+   * @param query
+   *          Qsol syntax to lex or parse
+   * @param orderOfOps
+   *          operator to token kind
+   * @param decodeUnicodeEscapes
+   *          if false, the query is read with a <code>StringCharStream</code>
+   * @return parser to <code>release</code> when done
+   */
+  static ReusableQueryParser acquire(CharSequence query,
+      Map<Operator, Integer> orderOfOps, boolean decodeUnicodeEscapes) {
+    ReusableQueryParser parser = PARSERS.get();
+
+    if (parser.inUse) {
+      parser = new ReusableQueryParser(new CharSequenceReader());
+    }
+
+    parser.inUse = true;
+
+    if (decodeUnicodeEscapes) {
+      parser.reader.reset(query);
+      parser.charStream.ReInit(parser.reader);
+      parser.ReInit(parser.charStream);
+    } else if (parser.stringStream == null) {
+      parser.stringStream = new StringCharStream(query);
+      parser.ReInit(parser.stringStream);
+    } else {
+      parser.stringStream.ReInit(query);
+      parser.ReInit(parser.stringStream);
+    }
+
+    parser.setOrderOfOps(orderOfOps);
+    parser.setHideOps(false, false, false, false);
+
+    return parser;
+  }
+
+  /**
+   * Hands the parser back to its thread.
+   */
+  void release() {
+    reader.reset("");
+
+    if (stringStream != null) {
+      stringStream.ReInit("");
+    }
+    inUse = false;
+  }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.spell.SpellChecker;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Suggests spellings from a <code>SpellChecker</code> index. One
+ * <code>SpellChecker</code>, and so one searcher over the spell index, is kept
+ * for the life of the suggester instead of one per query. It is opened at the
+ * first lookup. At most once per refresh interval, before a batch of lookups,
+ * the version of the spell index is checked, and the searcher is reopened if
+ * the index has changed since; <code>refreshIfChanged</code> checks at once.
+ * <p>
+ * A suggester may be shared by any number of parsers and threads. Close it
+ * when it is no longer needed.
+ *
+ * @see QsolParser#useSuggest(Suggester)
+ * @since 1.0
+ */
+public class SpellCheckerSuggester implements Suggester, Closeable {
+  /**
+   * Milliseconds between checks of the spell index version, unless changed
+   * with <code>setRefreshInterval</code>.
+   */
+  public static final long DEFAULT_REFRESH_INTERVAL = 10000;
+
+  private final Directory spellIndex;
+  private final float accuracy;
+  private SpellChecker spellChecker;
+  private boolean closed;
+  private long version;
+  private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+  private long lastCheck;
+  private long lookups;
+  private long refreshes;
+
+  /**
+   * Creates a suggester that offers the closest word in the spell index, however
+   * far from the misspelled word it is.
+   *
+   * @param spellIndex
+   *          <code>SpellChecker</code> index to get suggestions from
+   */
+  public SpellCheckerSuggester(Directory spellIndex) {
+    this(spellIndex, 0.0f);
+  }
+
+  /**
+   * @param spellIndex
+   *          <code>SpellChecker</code> index to get suggestions from
+   * @param accuracy
+   *          minimum similarity of a suggestion, from 0 to 1
+   */
+  public SpellCheckerSuggester(Directory spellIndex, float accuracy) {
+    this.spellIndex = spellIndex;
+    this.accuracy = accuracy;
+  }
+
+  /**
+   * Looks up a batch of words. A word repeated in the batch is looked up once.
+   */
+  public String[] suggest(String[] words, String[] analyzed)
+      throws IOException {
+    SpellChecker checker = getSpellChecker();
+
+    if (refreshDue()) {
+      refreshIfChanged();
+    }
+
+    String[] suggestions = new String[words.length];
+    Map<String, String> looked = new HashMap<String, String>();
+
+    for (int i = 0; i < words.length; i++) {
+      String key = words[i] + '\u0000' + analyzed[i];
+
+      if (looked.containsKey(key)) {
+        suggestions[i] = looked.get(key);
+
+        continue;
+      }
+
+      suggestions[i] = lookup(checker, words[i], analyzed[i]);
+      looked.put(key, suggestions[i]);
+    }
+
+    return suggestions;
+  }
+
+  private String lookup(SpellChecker spellChecker, String word,
+      String analyzed) throws IOException {
+    synchronized (this) {
+      lookups++;
+    }
+
+    if (spellChecker.exist(word)) {
+      return null;
+    }
+
+    String[] similarWords = spellChecker.suggestSimilar(analyzed, 1, accuracy);
+
+    return (similarWords.length == 0) ? null : similarWords[0];
+  }
+
+  /**
+   * Opens the spell index the first time it is needed.
+   */
+  private synchronized SpellChecker getSpellChecker() throws IOException {
+    if (closed) {
+      throw new AlreadyClosedException("this SpellCheckerSuggester is closed");
+    }
+
+    if (spellChecker == null) {
+      // creates an empty spell index if there is none yet
+      spellChecker = new SpellChecker(spellIndex);
+      version = IndexReader.getCurrentVersion(spellIndex);
+      lastCheck = System.currentTimeMillis();
+    }
+
+    return spellChecker;
+  }
+
+  private synchronized boolean refreshDue() {
+    return (refreshInterval >= 0)
+        && ((System.currentTimeMillis() - lastCheck) >= refreshInterval);
+  }
+
+  /**
+   * Reopens the searcher over the spell index if the index has changed since
+   * it was opened.
+   *
+   * @throws IOException
+   */
+  public void refreshIfChanged() throws IOException {
+    SpellChecker checker = getSpellChecker();
+    long current = IndexReader.getCurrentVersion(spellIndex);
+
+    synchronized (this) {
+      lastCheck = System.currentTimeMillis();
+
+      if (current == version) {
+        return;
+      }
+
+      version = current;
+      refreshes++;
+    }
+
+    checker.setSpellIndex(spellIndex);
+  }
+
+  /**
+   * Sets how often lookups check whether the spell index has changed.
+   *
+   * @param refreshInterval
+   *          milliseconds between checks; 0 to check before every batch of
+   *          lookups, or a negative number to check only when
+   *          <code>refreshIfChanged</code> is called
+   */
+  public synchronized void setRefreshInterval(long refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
+  public synchronized long getRefreshInterval() {
+    return refreshInterval;
+  }
+
+  /**
+   * @return number of words looked up in the spell index
+   */
+  public synchronized long getLookups() {
+    return lookups;
+  }
+
+  /**
+   * @return number of times the searcher has been reopened on a changed index
+   */
+  public synchronized long getRefreshes() {
+    return refreshes;
+  }
+
+  public void close() throws IOException {
+    SpellChecker checker;
+
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      closed = true;
+      checker = spellChecker;
+    }
+
+    if (checker != null) {
+      checker.close();
+    }
+  }
+}
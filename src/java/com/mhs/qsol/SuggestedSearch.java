@@ -1,9 +1,6 @@
 package com.mhs.qsol;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.search.spell.SpellChecker;
 import org.apache.lucene.store.Directory;
 
 /**
@@ -22,7 +19,6 @@ import org.apache.lucene.store.Directory;
  * limitations under the License.
  */
 import java.io.IOException;
-import java.io.StringReader;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -31,18 +27,30 @@ import java.util.List;
 public class SuggestedSearch {
   private List<String> parts = new ArrayList<String>();
   private List<String> slots = new ArrayList<String>();
-  private StringBuilder suggestedQuery;
+  private String suggestedQuery;
   private Directory didYouMeanDirectory;
+  private Suggester suggester;
   private Analyzer analyzer;
   private boolean foundSuggestion;
-  SpellChecker spellChecker;
+  private AnalyzedTerms analyzedTerms = new AnalyzedTerms();
 
+  /**
+   * Opens a suggester of its own over <code>didYouMeanDirectory</code> the
+   * first time it is needed. Prefer sharing one
+   * <code>Suggester</code>.
+   */
   public SuggestedSearch(Directory didYouMeanDirectory, Analyzer anazlyer) {
     this.didYouMeanDirectory = didYouMeanDirectory;
     this.analyzer = anazlyer;
   }
 
+  public SuggestedSearch(Suggester suggester, Analyzer analyzer) {
+    this.suggester = suggester;
+    this.analyzer = analyzer;
+  }
+
   public void addPart(String part) {
+    suggestedQuery = null;
     parts.add(part);
   }
 
@@ -61,91 +69,108 @@ public class SuggestedSearch {
   }
 
   public void setSlot(int slot, String value) {
-
+    suggestedQuery = null;
     slots.set(slot, value);
   }
 
   public void addSlot(String value) {
-
+    suggestedQuery = null;
     slots.add(value);
   }
 
   /**
-   * @return
+   * Looks up all the slots in one batch the first time it is called; later
+   * calls return the same suggestion.
+   * 
+   * @return the query with misspelled slots replaced
    */
-  public String getSuggestedSearch() {
-    suggestedQuery = new StringBuilder();
+  public synchronized String getSuggestedSearch() {
+    if (suggestedQuery != null) {
+      return suggestedQuery;
+    }
 
-    Iterator<String> partsIt = parts.iterator();
-    Iterator<String> slotIt = slots.iterator();
+    String[] terms = new String[slots.size()];
+    List<String> words = new ArrayList<String>();
+    List<String> analyzed = new ArrayList<String>();
+    int[] lookup = new int[slots.size()];
 
-    while (partsIt.hasNext()) {
-      suggestedQuery.append(partsIt.next());
+    for (int i = 0; i < terms.length; i++) {
+      String term = slots.get(i);
+      terms[i] = term;
+      lookup[i] = -1;
 
-      if (slotIt.hasNext()) {
-        suggestedQuery.append(getTerm(slotIt.next()));
+      if (term.length() == 0) {
+        continue;
       }
-    }
 
-    return suggestedQuery.toString();
-  }
+      AnalyzedTerms analyzedTerm = analyzedTerms.analyze(analyzer, "", term);
 
-  private String getTerm(String term) {
-    if (term.length() == 0) {
-      return "";
-    }
-    TokenStream source = analyzer.tokenStream("", new StringReader(term));
-    CharTermAttribute charTermAtrib = source.getAttribute(CharTermAttribute.class);
-    String anaTerm = null;
-
-    try {
-      source.incrementToken();
-      anaTerm = charTermAtrib.toString();
-      if (source.incrementToken()) {
-        return term;
+      if (analyzedTerm.size() > 1) {
+        continue;
       }
-    } catch (IOException e2) {
-      throw new RuntimeException(e2);
+
+      lookup[i] = words.size();
+      words.add(term);
+      analyzed.add((analyzedTerm.size() == 0) ? "" : analyzedTerm.term(0));
     }
 
-    if (spellChecker == null) {
+    if (!words.isEmpty()) {
+      String[] suggestions;
+
       try {
-        spellChecker = new SpellChecker(didYouMeanDirectory);
-      } catch (IOException e1) {
-        throw new RuntimeException(e1);
+        suggestions = getSuggester().suggest(words.toArray(new String[words
+            .size()]), analyzed.toArray(new String[analyzed.size()]));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
-    }
-
-    String returnTerm = null;
 
-    try {
-      if (spellChecker.exist(term)) {
-        return term;
+      for (int i = 0; i < terms.length; i++) {
+        if ((lookup[i] != -1) && (suggestions[lookup[i]] != null)) {
+          terms[i] = suggestions[lookup[i]];
+          foundSuggestion = true;
+        }
       }
+    }
 
-      spellChecker.setAccuracy(.000f);
+    StringBuilder suggested = new StringBuilder();
+    Iterator<String> partsIt = parts.iterator();
+    int slot = 0;
 
-      String[] similarWords = spellChecker.suggestSimilar(anaTerm, 1);
+    while (partsIt.hasNext()) {
+      suggested.append(partsIt.next());
 
-      if (similarWords.length == 0) {
-        return term;
+      if (slot < terms.length) {
+        suggested.append(terms[slot++]);
       }
+    }
+
+    suggestedQuery = suggested.toString();
 
-      // suggestedQuery = true;
-      returnTerm = similarWords[0];
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+    return suggestedQuery;
+  }
+
+  private Suggester getSuggester() throws IOException {
+    if (suggester == null) {
+      suggester = new SpellCheckerSuggester(didYouMeanDirectory);
     }
 
-    foundSuggestion = true;
+    return suggester;
+  }
+
+  /**
+   * @return the suggested search, or an empty String if no slot has a better
+   *         spelling
+   */
+  public synchronized String getSuggestion() {
+    String suggested = getSuggestedSearch();
 
-    return returnTerm;
+    return foundSuggestion ? suggested : "";
   }
 
   /**
    * @return the foundSuggestion
    */
-  public boolean foundSuggestion() {
+  public synchronized boolean foundSuggestion() {
     return foundSuggestion;
   }
 }
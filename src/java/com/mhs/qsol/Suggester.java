@@ -0,0 +1,43 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.io.IOException;
+
+/**
+ * Where <code>SuggestedSearch</code> gets its spellings from. Implementations
+ * must be safe to share between threads.
+ *
+ * @see SpellCheckerSuggester
+ * @see SymSpellSuggester
+ * @see QsolParser#useSuggest(Suggester)
+ * @since 1.0
+ */
+public interface Suggester {
+  /**
+   * Looks up a batch of words, such as all the search terms of one query.
+   *
+   * @param words
+   *          words as the user typed them; a word known to the suggester is
+   *          left alone
+   * @param analyzed
+   *          the same words as analyzed, for finding suggestions
+   * @return for each word, the best suggestion, or <code>null</code> if the
+   *         word is spelled right or nothing close was found
+   * @throws IOException
+   */
+  String[] suggest(String[] words, String[] analyzed) throws IOException;
+}
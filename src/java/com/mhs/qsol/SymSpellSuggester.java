@@ -0,0 +1,461 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.spell.TermFreqIterator;
+
+/**
+ * Suggests spellings from a dictionary of words and their frequencies held in
+ * memory, using symmetric deletes: every string that can be made by deleting
+ * up to <code>maxEditDistance</code> characters from a word is indexed, and a misspelled word finds its candidates by looking up its own
+ * deletes. Only the first <code>prefixLength</code> characters of a word are
+ * used for deletes, which keeps the index small for long words. Candidates
+ * are checked with the Damerau-Levenshtein distance (an adjacent swap counts
+ * as one edit); the closest wins, and of those, the most frequent.
+ * <p>
+ * No index is searched at lookup time, so a lookup costs microseconds rather
+ * than a Lucene n-gram search. Words, frequencies and deletes are held in a
+ * few primitive arrays. Deletes are held by hash, so the memory used grows
+ * with the number of deletes but not their length.
+ * <p>
+ * A suggester never changes once built, so may be shared by any number of
+ * parsers and threads. Build a new one to pick up changes to the index.
+ *
+ * @see #load(IndexReader, String)
+ * @since 1.0
+ */
+public class SymSpellSuggester implements Suggester {
+  public static final int DEFAULT_MAX_EDIT_DISTANCE = 2;
+  public static final int DEFAULT_PREFIX_LENGTH = 7;
+
+  private final int maxEditDistance;
+  private final int prefixLength;
+
+  // the words in order, one after another, and where each starts
+  private final char[] chars;
+  private final int[] offsets;
+  private final int[] freqs;
+
+  // distinct delete hashes in order, and the words under each
+  private final int[] deleteHashes;
+  private final int[] deleteStarts;
+  private final int[] deleteWords;
+
+  /**
+   * Builds a suggester from every term of <code>field</code> in
+   * <code>reader</code>, with the number of documents holding the term as its
+   * frequency.
+   *
+   * @param reader
+   *          index to read the terms from
+   * @param field
+   *          field to read the terms of
+   * @return the suggester
+   * @throws IOException
+   */
+  public static SymSpellSuggester load(IndexReader reader, String field)
+      throws IOException {
+    return load(reader, field, 1, DEFAULT_MAX_EDIT_DISTANCE,
+        DEFAULT_PREFIX_LENGTH);
+  }
+
+  /**
+   * Builds a suggester from the terms of <code>field</code> in
+   * <code>reader</code> that are in at least <code>minDocFreq</code>
+   * documents.
+   *
+   * @param reader
+   *          index to read the terms from
+   * @param field
+   *          field to read the terms of
+   * @param minDocFreq
+   *          fewest documents a term must be in to be suggested
+   * @param maxEditDistance
+   *          most edits a suggestion may be from the misspelled word
+   * @param prefixLength
+   *          number of leading characters of a word indexed for lookup
+   * @return the suggester
+   * @throws IOException
+   */
+  public static SymSpellSuggester load(IndexReader reader, String field,
+      int minDocFreq, int maxEditDistance, int prefixLength)
+      throws IOException {
+    Map<String, Integer> dictionary = new TreeMap<String, Integer>();
+    field = field.intern();
+
+    TermEnum termEnum = reader.terms(new Term(field, ""));
+
+    try {
+      do {
+        Term term = termEnum.term();
+
+        if ((term == null) || (term.field() != field)) {
+          break;
+        }
+
+        if (termEnum.docFreq() >= minDocFreq) {
+          dictionary.put(term.text(), Integer.valueOf(termEnum.docFreq()));
+        }
+      } while (termEnum.next());
+    } finally {
+      termEnum.close();
+    }
+
+    return new SymSpellSuggester(dictionary, maxEditDistance, prefixLength);
+  }
+
+  /**
+   * Builds a suggester from a dictionary of words and their frequencies, such
+   * as one exported from an index with a <code>HighFrequencyDictionary</code>.
+   *
+   * @param words
+   *          words and their frequencies
+   */
+  public SymSpellSuggester(TermFreqIterator words) {
+    this(words, DEFAULT_MAX_EDIT_DISTANCE, DEFAULT_PREFIX_LENGTH);
+  }
+
+  /**
+   * @param words
+   *          words and their frequencies
+   * @param maxEditDistance
+   *          most edits a suggestion may be from the misspelled word
+   * @param prefixLength
+   *          number of leading characters of a word indexed for lookup
+   */
+  public SymSpellSuggester(TermFreqIterator words, int maxEditDistance,
+      int prefixLength) {
+    this(toMap(words), maxEditDistance, prefixLength);
+  }
+
+  private static Map<String, Integer> toMap(TermFreqIterator words) {
+    Map<String, Integer> dictionary = new TreeMap<String, Integer>();
+
+    while (words.hasNext()) {
+      String word = words.next();
+      int freq = (int) words.freq();
+      Integer previous = dictionary.get(word);
+
+      dictionary.put(word, Integer.valueOf((previous == null) ? freq
+          : (previous.intValue() + freq)));
+    }
+
+    return dictionary;
+  }
+
+  private SymSpellSuggester(Map<String, Integer> dictionary,
+      int maxEditDistance, int prefixLength) {
+    if (maxEditDistance < 1) {
+      throw new IllegalArgumentException("maxEditDistance must be at least 1: "
+          + maxEditDistance);
+    }
+
+    if (prefixLength <= maxEditDistance) {
+      throw new IllegalArgumentException(
+          "prefixLength must be more than maxEditDistance: " + prefixLength);
+    }
+
+    this.maxEditDistance = maxEditDistance;
+    this.prefixLength = prefixLength;
+
+    int size = dictionary.size();
+    int length = 0;
+
+    for (String word : dictionary.keySet()) {
+      length += word.length();
+    }
+
+    chars = new char[length];
+    offsets = new int[size + 1];
+    freqs = new int[size];
+
+    // (hash << 32) | word, sorted, so each hash's words are together
+    long[] deletes = new long[size * 4];
+    int deleteCount = 0;
+    Set<String> wordDeletes = new HashSet<String>();
+    int id = 0;
+
+    for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+      String word = entry.getKey();
+      word.getChars(0, word.length(), chars, offsets[id]);
+      offsets[id + 1] = offsets[id] + word.length();
+      freqs[id] = entry.getValue().intValue();
+
+      wordDeletes.clear();
+      addDeletes(prefix(word), maxEditDistance, wordDeletes);
+
+      if ((deleteCount + wordDeletes.size()) > deletes.length) {
+        long[] grown = new long[Math.max(deletes.length * 2, deleteCount
+            + wordDeletes.size())];
+        System.arraycopy(deletes, 0, grown, 0, deleteCount);
+        deletes = grown;
+      }
+
+      for (String delete : wordDeletes) {
+        deletes[deleteCount++] = ((long) delete.hashCode() << 32) | id;
+      }
+
+      id++;
+    }
+
+    Arrays.sort(deletes, 0, deleteCount);
+
+    int distinct = 0;
+
+    for (int i = 0; i < deleteCount; i++) {
+      if ((i == 0) || ((deletes[i] >> 32) != (deletes[i - 1] >> 32))) {
+        distinct++;
+      }
+    }
+
+    deleteHashes = new int[distinct];
+    deleteStarts = new int[distinct + 1];
+    deleteWords = new int[deleteCount];
+
+    int hash = -1;
+
+    for (int i = 0; i < deleteCount; i++) {
+      if ((i == 0) || ((deletes[i] >> 32) != (deletes[i - 1] >> 32))) {
+        hash++;
+        deleteHashes[hash] = (int) (deletes[i] >> 32);
+        deleteStarts[hash] = i;
+      }
+
+      deleteWords[i] = (int) deletes[i];
+    }
+
+    deleteStarts[distinct] = deleteCount;
+  }
+
+  private String prefix(String word) {
+    return (word.length() > prefixLength) ? word.substring(0, prefixLength)
+        : word;
+  }
+
+  /**
+   * Adds <code>word</code> and every string made by deleting up to
+   * <code>edits</code> characters from it.
+   */
+  private static void addDeletes(String word, int edits, Set<String> deletes) {
+    if (!deletes.add(word) || (edits == 0) || (word.length() <= 1)) {
+      return;
+    }
+
+    for (int i = 0; i < word.length(); i++) {
+      addDeletes(word.substring(0, i) + word.substring(i + 1), edits - 1,
+          deletes);
+    }
+  }
+
+  public String[] suggest(String[] words, String[] analyzed) {
+    String[] suggestions = new String[words.length];
+
+    for (int i = 0; i < words.length; i++) {
+      if (!exists(words[i])) {
+        suggestions[i] = suggest(analyzed[i]);
+      }
+    }
+
+    return suggestions;
+  }
+
+  /**
+   * @return whether <code>word</code> is in the dictionary
+   */
+  public boolean exists(String word) {
+    return find(word) >= 0;
+  }
+
+  /**
+   * @return the dictionary frequency of <code>word</code>, or 0 if it is not
+   *         in the dictionary
+   */
+  public int getFreq(String word) {
+    int id = find(word);
+
+    return (id < 0) ? 0 : freqs[id];
+  }
+
+  /**
+   * Finds the closest word to <code>word</code> other than itself.
+   *
+   * @param word
+   *          misspelled word
+   * @return the closest, most frequent word at most
+   *         <code>maxEditDistance</code> edits away, or <code>null</code>
+   */
+  public String suggest(String word) {
+    Set<String> inputDeletes = new HashSet<String>();
+    addDeletes(prefix(word), maxEditDistance, inputDeletes);
+
+    Set<Integer> seen = new HashSet<Integer>();
+    int best = -1;
+    int bestDistance = maxEditDistance;
+
+    for (String delete : inputDeletes) {
+      int hash = Arrays.binarySearch(deleteHashes, delete.hashCode());
+
+      if (hash < 0) {
+        continue;
+      }
+
+      for (int i = deleteStarts[hash]; i < deleteStarts[hash + 1]; i++) {
+        int id = deleteWords[i];
+
+        if (!seen.add(Integer.valueOf(id))) {
+          continue;
+        }
+
+        int distance = distance(word, id, bestDistance);
+
+        if ((distance == 0) || (distance > bestDistance)) {
+          continue;
+        }
+
+        if ((best == -1) || (distance < bestDistance)
+            || (freqs[id] > freqs[best])
+            || ((freqs[id] == freqs[best]) && (id < best))) {
+          best = id;
+          bestDistance = distance;
+        }
+      }
+    }
+
+    return (best == -1) ? null : new String(chars, offsets[best],
+        offsets[best + 1] - offsets[best]);
+  }
+
+  /**
+   * @return number of words in the dictionary
+   */
+  public int size() {
+    return freqs.length;
+  }
+
+  public int getMaxEditDistance() {
+    return maxEditDistance;
+  }
+
+  public int getPrefixLength() {
+    return prefixLength;
+  }
+
+  /**
+   * Binary searches the dictionary.
+   *
+   * @return the id of <code>word</code>, or a negative number if it is not in
+   *         the dictionary
+   */
+  private int find(String word) {
+    int low = 0;
+    int high = freqs.length - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(mid, word);
+
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+
+  private int compare(int id, String word) {
+    int start = offsets[id];
+    int length = offsets[id + 1] - start;
+    int n = Math.min(length, word.length());
+
+    for (int i = 0; i < n; i++) {
+      char c = chars[start + i];
+
+      if (c != word.charAt(i)) {
+        return c - word.charAt(i);
+      }
+    }
+
+    return length - word.length();
+  }
+
+  /**
+   * The optimal string alignment distance from <code>word</code> to the word
+   * <code>id</code>, or any number over <code>max</code> if it is more than
+   * <code>max</code>.
+   */
+  private int distance(String word, int id, int max) {
+    int start = offsets[id];
+    int length = offsets[id + 1] - start;
+
+    if (Math.abs(length - word.length()) > max) {
+      return max + 1;
+    }
+
+    int[] before = new int[length + 1];
+    int[] previous = new int[length + 1];
+    int[] current = new int[length + 1];
+
+    for (int j = 0; j <= length; j++) {
+      previous[j] = j;
+    }
+
+    for (int i = 1; i <= word.length(); i++) {
+      current[0] = i;
+      int rowMin = i;
+      char a = word.charAt(i - 1);
+
+      for (int j = 1; j <= length; j++) {
+        char b = chars[start + j - 1];
+        int cost = (a == b) ? 0 : 1;
+        int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1),
+            previous[j - 1] + cost);
+
+        if ((i > 1) && (j > 1) && (a == chars[start + j - 2])
+            && (word.charAt(i - 2) == b)) {
+          d = Math.min(d, before[j - 2] + 1);
+        }
+
+        current[j] = d;
+        rowMin = Math.min(rowMin, d);
+      }
+
+      if (rowMin > max) {
+        return max + 1;
+      }
+
+      int[] swap = before;
+      before = previous;
+      previous = current;
+      current = swap;
+    }
+
+    return previous[length];
+  }
+}
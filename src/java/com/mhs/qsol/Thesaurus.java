@@ -0,0 +1,245 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A table of synonyms that is expanded while the query is built, rather than
+ * spliced into the query String as <code>addThesaurusEntry</code> does. A
+ * search token with synonyms becomes an OR of the queries for its synonyms,
+ * or a <code>SpanOrQuery</code> inside a proximity search, so large synonym
+ * sets are never lexed and parsed as Qsol syntax.
+ * <p>
+ * Words are matched without regard to case and must be single search tokens.
+ * Each synonym list is held once as an array, shared by all of the words it
+ * belongs to, and a word that appears in several entries of a loaded file is
+ * held as one String. A thesaurus must not be changed while
+ * parsers are using it.
+ * <p>
+ * Thesaurus files have one entry per line, in either of two forms:
+ *
+ * <pre>
+ * # comment
+ * couch, sofa, settee
+ * tv, telly =&gt; television
+ * </pre>
+ *
+ * The first form makes the words synonyms of each other. The second replaces
+ * each word on the left with the words on the right.
+ *
+ * @see QsolParser#setThesaurus(Thesaurus)
+ * @since 1.0
+ */
+public class Thesaurus {
+  private static final Pattern COMMA = Pattern.compile("\\s*,\\s*");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s");
+
+  private final Map<String, String[]> synonyms = new HashMap<String, String[]>();
+
+  /**
+   * Reads a thesaurus file in UTF-8.
+   *
+   * @param file
+   *          file to read
+   * @return the thesaurus
+   * @throws IOException
+   *           if the file cannot be read or a line is malformed
+   */
+  public static Thesaurus load(File file) throws IOException {
+    Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+
+    try {
+      return load(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads a thesaurus from <code>reader</code>. The reader is not closed.
+   *
+   * @param reader
+   *          thesaurus entries, one per line
+   * @return the thesaurus
+   * @throws IOException
+   *           if the reader fails or a line is malformed
+   */
+  public static Thesaurus load(Reader reader) throws IOException {
+    Thesaurus thesaurus = new Thesaurus();
+    // one copy of each word, without filling the intern pool
+    Map<String, String> strings = new HashMap<String, String>();
+    BufferedReader lines = new BufferedReader(reader);
+    String line;
+    int lineNumber = 0;
+
+    while ((line = lines.readLine()) != null) {
+      lineNumber++;
+
+      int comment = line.indexOf('#');
+
+      if (comment != -1) {
+        line = line.substring(0, comment);
+      }
+
+      line = line.trim();
+
+      if (line.length() == 0) {
+        continue;
+      }
+
+      try {
+        int arrow = line.indexOf("=>");
+
+        if (arrow == -1) {
+          thesaurus.addEquivalent(split(line), strings);
+        } else {
+          String[] replacements = toArray(split(line.substring(arrow + 2)),
+              strings);
+
+          for (String word : split(line.substring(0, arrow))) {
+            thesaurus.put(word, replacements, strings);
+          }
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Malformed thesaurus entry on line " + lineNumber
+            + ": " + e.getMessage());
+      }
+    }
+
+    return thesaurus;
+  }
+
+  private static List<String> split(String words) {
+    List<String> list = new ArrayList<String>();
+
+    for (String word : COMMA.split(words.trim())) {
+      if (word.length() > 0) {
+        list.add(word);
+      }
+    }
+
+    return list;
+  }
+
+  /**
+   * Replaces <code>word</code> with <code>replacements</code>. To keep the
+   * original word as well, include it in the replacements.
+   *
+   * @param word
+   *          single search token to expand
+   * @param replacements
+   *          words to search for instead
+   */
+  public void add(String word, Collection<String> replacements) {
+    put(word, toArray(replacements, null), null);
+  }
+
+  /**
+   * Makes each of <code>words</code> expand to all of them.
+   *
+   * @param words
+   *          words that mean the same thing
+   */
+  public void addEquivalent(Collection<String> words) {
+    addEquivalent(words, null);
+  }
+
+  private void addEquivalent(Collection<String> words,
+      Map<String, String> strings) {
+    String[] group = toArray(words, strings);
+
+    for (String word : group) {
+      put(word, group, strings);
+    }
+  }
+
+  /**
+   * @param strings
+   *          Strings already held, to share instead of equal copies, or
+   *          <code>null</code>
+   */
+  private void put(String word, String[] replacements,
+      Map<String, String> strings) {
+    if ((word.length() == 0) || WHITESPACE.matcher(word).find()) {
+      throw new IllegalArgumentException(
+          "thesaurus words must be single search tokens: '" + word + "'");
+    }
+
+    synonyms.put(share(word.toLowerCase(), strings), replacements);
+  }
+
+  private static String[] toArray(Collection<String> words,
+      Map<String, String> strings) {
+    if (words.isEmpty()) {
+      throw new IllegalArgumentException("no replacement words");
+    }
+
+    String[] array = new String[words.size()];
+    int i = 0;
+
+    for (String word : words) {
+      array[i++] = share(word, strings);
+    }
+
+    return array;
+  }
+
+  private static String share(String string, Map<String, String> strings) {
+    if (strings == null) {
+      return string;
+    }
+
+    String held = strings.get(string);
+
+    if (held == null) {
+      strings.put(string, string);
+      held = string;
+    }
+
+    return held;
+  }
+
+  /**
+   * Returns the words <code>word</code> expands to. The array is shared and
+   * must not be modified.
+   *
+   * @param word
+   *          search token
+   * @return replacement words, or <code>null</code> if there are none
+   */
+  public String[] getSynonyms(String word) {
+    return synonyms.get(word.toLowerCase());
+  }
+
+  /**
+   * @return number of words that have synonyms
+   */
+  public int size() {
+    return synonyms.size();
+  }
+}
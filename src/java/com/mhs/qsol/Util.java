@@ -15,6 +15,12 @@
  */
 package com.mhs.qsol;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
 public class Util {
   /**
    * Utility method to dynamically load classes
@@ -45,4 +51,60 @@ public class Util {
 
     return loadedClass;
   }
+
+  /**
+   * Runs <code>worker</code> in the calling thread and in <code>tasks</code>
+   * tasks on <code>executor</code>, and returns when all have finished. The
+   * worker is expected to take items from a shared queue until it is empty,
+   * so a task the executor has not started by the time the calling thread is
+   * done is dropped rather than waited for. A <code>RuntimeException</code>
+   * thrown in a task is rethrown as it is, as it would be from the calling
+   * thread.
+   * 
+   * @param worker
+   *          work to run in each thread
+   * @param executor
+   *          runs the tasks, or <code>null</code> to run only in the calling
+   *          thread
+   * @param tasks
+   *          number of tasks to run on <code>executor</code>
+   */
+  static void runWorkers(Runnable worker, Executor executor, int tasks) {
+    if ((executor == null) || (tasks < 1)) {
+      worker.run();
+
+      return;
+    }
+
+    List<FutureTask<Object>> futures = new ArrayList<FutureTask<Object>>(tasks);
+
+    for (int i = 0; i < tasks; i++) {
+      FutureTask<Object> future = new FutureTask<Object>(worker, null);
+      executor.execute(future);
+      futures.add(future);
+    }
+
+    worker.run();
+
+    for (FutureTask<Object> future : futures) {
+      future.run(); // does nothing if already started
+
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        }
+
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
 }
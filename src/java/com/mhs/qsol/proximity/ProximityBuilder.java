@@ -1,5 +1,6 @@
 package com.mhs.qsol.proximity;
 
+import com.mhs.qsol.QsolParseException;
 import com.mhs.qsol.proximity.distribute.BasicDistributable;
 import com.mhs.qsol.proximity.distribute.Distributable;
 import com.mhs.qsol.proximity.distribute.GroupDistributable;
@@ -8,6 +9,8 @@ import com.mhs.qsol.proximity.distribute.ProxInfo;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
 
 /**
  * Copyright 2006 Mark Miller (markrmiller@gmail.com)
@@ -38,6 +41,12 @@ import java.util.regex.Pattern;
  * 
  */
 public class ProximityBuilder {
+  /**
+   * Default for the number of span queries a proximity search may distribute
+   * into.
+   */
+  public static final int DEFAULT_MAX_CLAUSES = 1024;
+
   // regex
   private static final Pattern PROXIMITY = Pattern.compile(
       "((?:ord|pre)?)~(\\d*)([ps]?)", Pattern.CASE_INSENSITIVE);
@@ -51,8 +60,30 @@ public class ProximityBuilder {
   private String sentMarker = "/s";
   private String paraMarker = "/p";
   private String fieldBreakMarker;
+  private int maxClauses = DEFAULT_MAX_CLAUSES;
+  private boolean factorOrs;
+  private boolean ordinalProximity;
+  private int sentenceWindow;
+  private int paragraphWindow;
+  private int clauseCount;
+  private List<ProxStep> steps = new ArrayList<ProxStep>();
 
+  /**
+   * Builds the span queries for the proximity operators seen so far. The
+   * number of span queries the whole chain distributes into is checked before
+   * any of them is built.
+   */
   public Query getQuery() {
+    if (!steps.isEmpty()) {
+      checkClauses();
+
+      for (ProxStep step : steps) {
+        build(step);
+      }
+
+      steps.clear();
+    }
+
     return wholeQuery;
   }
 
@@ -120,19 +151,49 @@ public class ProximityBuilder {
           + distance);
     }
 
-    Distributable newest = distribClauses.get(distribClauses.size() - 1);
-    BooleanQuery boolQuery = null;
-
     ProxInfo proxInfo = new ProxInfo(distance, ordered, proxType, sentMarker,
         paraMarker);
 
     proxInfo.fieldBreakMarker = this.fieldBreakMarker;
+    proxInfo.factorOrs = this.factorOrs;
+    proxInfo.ordinalProximity = this.ordinalProximity;
+    proxInfo.sentenceWindow = this.sentenceWindow;
+    proxInfo.paragraphWindow = this.paragraphWindow;
+
+    // built by getQuery, once the rest of the chain is known
+    steps.add(new ProxStep(distribClauses.size() - 1, proxInfo));
+  }
+
+  /**
+   * Throws if distributing every step would take the proximity search past
+   * <code>maxClauses</code> span queries.
+   */
+  private void checkClauses() {
+    int count = clauseCount;
+
+    for (ProxStep step : steps) {
+      Distributable newest = distribClauses.get(step.newest);
+
+      for (int i = 0; i < step.newest; i++) {
+        count += countClauses(distribClauses.get(i), newest, count, null, null);
+      }
+    }
+  }
 
-    if (distribClauses.size() > 2) {
+  /**
+   * Distributes every earlier clause with the newest clause of
+   * <code>step</code>, adding the result to the whole query.
+   */
+  private void build(ProxStep step) {
+    Distributable newest = distribClauses.get(step.newest);
+    ProxInfo proxInfo = step.proxInfo;
+    BooleanQuery boolQuery = null;
+
+    if (step.newest > 1) {
       boolQuery = new BooleanQuery();
 
-      for (int i = 0; i < (distribClauses.size() - 1); i++) {
-        boolQuery.add(distribClauses.get(i).distribute(newest, proxInfo),
+      for (int i = 0; i < step.newest; i++) {
+        boolQuery.add(distribute(distribClauses.get(i), newest, proxInfo),
             Occur.MUST);
       }
 
@@ -161,7 +222,7 @@ public class ProximityBuilder {
           + "\nWITH\n" + newest);
     }
 
-    Query distribQuery = distribClauses.get(0).distribute(newest, proxInfo);
+    Query distribQuery = distribute(distribClauses.get(0), newest, proxInfo);
 
     if (logger.isLoggable(Level.FINE)) {
       logger.fine("distrib query: " + distribQuery);
@@ -186,6 +247,155 @@ public class ProximityBuilder {
     }
   }
 
+  /**
+   * Distributes <code>left</code> with <code>right</code>, which makes one
+   * span query for each pair of terms from the two sides. If that would take
+   * the proximity search past <code>maxClauses</code> span queries, and both
+   * sides are only OR'd terms, the compact and equivalent
+   * <code>SpanNear(SpanOr(left), SpanOr(right))</code> is built instead.
+   */
+  private Query distribute(Distributable left, Distributable right,
+      ProxInfo proxInfo) {
+    List<SpanQuery> leftTerms = new ArrayList<SpanQuery>();
+    List<SpanQuery> rightTerms = new ArrayList<SpanQuery>();
+    clauseCount += countClauses(left, right, clauseCount, leftTerms,
+        rightTerms);
+
+    if (leftTerms.isEmpty()) {
+      return left.distribute(right, proxInfo);
+    }
+
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("compacting " + countTerms(left) * countTerms(right)
+          + " proximity clauses");
+    }
+
+    return new BasicDistributable(toSpanOr(rightTerms)).distribute(
+        toSpanOr(leftTerms), proxInfo);
+  }
+
+  /**
+   * Returns the number of span queries distributing <code>left</code> with
+   * <code>right</code> adds to the <code>count</code> already made, and
+   * throws if the search would go past <code>maxClauses</code> even with
+   * compaction.
+   *
+   * @param leftTerms
+   *          receives the terms of <code>left</code> if they are to be
+   *          compacted, or <code>null</code>
+   * @param rightTerms
+   *          receives the terms of <code>right</code> if they are to be
+   *          compacted, or <code>null</code>
+   */
+  private int countClauses(Distributable left, Distributable right, int count,
+      List<SpanQuery> leftTerms, List<SpanQuery> rightTerms) {
+    int estimate = countTerms(left) * countTerms(right);
+
+    if ((count + estimate) <= maxClauses) {
+      return estimate;
+    }
+
+    if (leftTerms == null) {
+      leftTerms = new ArrayList<SpanQuery>();
+      rightTerms = new ArrayList<SpanQuery>();
+    }
+
+    if (collectDisjunction(left, leftTerms)
+        && collectDisjunction(right, rightTerms) && (count < maxClauses)
+        && leftTerms.get(0).getField().equals(rightTerms.get(0).getField())) {
+      return 1;
+    }
+
+    throw new QsolParseException("Proximity search expands to "
+        + (count + estimate) + " span queries, more than the limit of "
+        + maxClauses + ". Use fewer terms on each side of the proximity "
+        + "operator, or raise the limit with setMaxProximityClauses.");
+  }
+
+  /**
+   * Returns the number of terms in <code>distrib</code>, which is the number
+   * of span queries each of them is distributed into.
+   */
+  private static int countTerms(Distributable distrib) {
+    List<Distributable> children = distrib.getChildren();
+
+    if (children == null) {
+      return 1;
+    }
+
+    int count = 0;
+
+    for (Distributable child : children) {
+      count += countTerms(child);
+
+      // keep the estimate from overflowing
+      if (count > Short.MAX_VALUE) {
+        return Short.MAX_VALUE;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Adds the terms of <code>distrib</code> to <code>terms</code> and returns
+   * true if they are all connected by OR and share a field.
+   */
+  private static boolean collectDisjunction(Distributable distrib,
+      List<SpanQuery> terms) {
+    List<Distributable> children = distrib.getChildren();
+
+    if (children == null) {
+      SpanQuery query = ((BasicDistributable) distrib).getQuery();
+
+      if ((query == null)
+          || (!terms.isEmpty() && !terms.get(0).getField().equals(
+              query.getField()))) {
+        return false;
+      }
+
+      terms.add(query);
+
+      return true;
+    }
+
+    List<Occur> connectors = distrib.getConnectors();
+
+    for (int i = 0; i < children.size(); i++) {
+      if ((i < connectors.size()) && (connectors.get(i) != Occur.SHOULD)) {
+        return false;
+      }
+
+      if (!collectDisjunction(children.get(i), terms)) {
+        return false;
+      }
+    }
+
+    return !terms.isEmpty();
+  }
+
+  private static SpanQuery toSpanOr(List<SpanQuery> terms) {
+    if (terms.size() == 1) {
+      return terms.get(0);
+    }
+
+    return new SpanOrQuery(terms.toArray(new SpanQuery[terms.size()]));
+  }
+
+  /**
+   * A proximity operator, distributing every clause before
+   * <code>newest</code> with it.
+   */
+  private static final class ProxStep {
+    final int newest;
+    final ProxInfo proxInfo;
+
+    ProxStep(int newest, ProxInfo proxInfo) {
+      this.newest = newest;
+      this.proxInfo = proxInfo;
+    }
+  }
+
   public void endGroup() {
     if (logger.isLoggable(Level.FINE)) {
       logger.fine("beforeEndGroup() - end group:\n" + distribs + "\n\n");
@@ -278,6 +488,89 @@ public class ProximityBuilder {
     this.fieldBreakMarker = fieldBreakMarker;
   }
 
+  /**
+   * @return maximum number of span queries the proximity search may
+   *         distribute into
+   */
+  public int getMaxClauses() {
+    return maxClauses;
+  }
+
+  /**
+   * Sets the number of span queries the proximity search may distribute into
+   * before OR'd terms are compacted into <code>SpanOrQuery</code>s, or the
+   * search is rejected.
+   * 
+   * @param maxClauses
+   *          maximum number of span queries
+   */
+  public void setMaxClauses(int maxClauses) {
+    this.maxClauses = maxClauses;
+  }
+
+  public boolean isFactorOrs() {
+    return factorOrs;
+  }
+
+  /**
+   * If true, each run of OR'd span queries the search distributes into is
+   * joined into a single <code>SpanOrQuery</code>, with nested
+   * <code>SpanOrQuery</code>s flattened and repeated span queries removed.
+   * 
+   * @param factorOrs
+   *          true to join runs of OR'd span queries
+   */
+  public void setFactorOrs(boolean factorOrs) {
+    this.factorOrs = factorOrs;
+  }
+
+  public boolean isOrdinalProximity() {
+    return ordinalProximity;
+  }
+
+  /**
+   * If true, sentence and paragraph proximity build
+   * <code>SpanOrdinalNearQuery</code>s, which compare the ordinals
+   * <code>OrdinalPayloadFilter</code> stores in payloads, instead of counting
+   * marker terms.
+   * 
+   * @param ordinalProximity
+   *          true to compare payload ordinals
+   */
+  public void setOrdinalProximity(boolean ordinalProximity) {
+    this.ordinalProximity = ordinalProximity;
+  }
+
+  public int getSentenceWindow() {
+    return sentenceWindow;
+  }
+
+  /**
+   * Sets the number of positions in the longest sentence, which bounds the
+   * slop of the SpanNearQuery under sentence proximity.
+   * 
+   * @param sentenceWindow
+   *          positions in the longest sentence, or 0 for no limit
+   */
+  public void setSentenceWindow(int sentenceWindow) {
+    this.sentenceWindow = sentenceWindow;
+  }
+
+  public int getParagraphWindow() {
+    return paragraphWindow;
+  }
+
+  /**
+   * Sets the number of positions in the longest paragraph, which bounds the
+   * slop of the SpanNearQuery under paragraph proximity.
+   * 
+   * @param paragraphWindow
+   *          positions in the longest paragraph, or 0 for no limit
+   */
+  public void setParagraphWindow(int paragraphWindow) {
+    this.paragraphWindow = paragraphWindow;
+  }
+
   public enum ProxType {
     WORD, SENTENCE, PARAGRAPH;
   }
@@ -15,8 +15,6 @@
  */
 package com.mhs.qsol.proximity;
 
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -27,11 +25,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.Token;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
-import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.BooleanClause;
@@ -42,9 +35,11 @@ import org.apache.lucene.search.spans.SpanOrQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 
+import com.mhs.qsol.AnalyzedTerms;
 import com.mhs.qsol.QsolParseException;
 import com.mhs.qsol.QsolParser.Operator;
 import com.mhs.qsol.QsolToQueryVisitor;
+import com.mhs.qsol.Thesaurus;
 import com.mhs.qsol.abstractnode.VisitCheckOp;
 import com.mhs.qsol.abstractnode.VisitCheckOp1;
 import com.mhs.qsol.abstractnode.VisitCheckOp2;
@@ -56,7 +51,11 @@ import com.mhs.qsol.abstractnode.VisitOrd2;
 import com.mhs.qsol.abstractnode.VisitOrd3;
 import com.mhs.qsol.abstractnode.VisitOrd4;
 import com.mhs.qsol.proximity.distribute.BasicDistributable;
+import com.mhs.qsol.spans.MultiTermSpanRewrite;
 import com.mhs.qsol.spans.SpanFuzzyQuery;
+import com.mhs.qsol.spans.SpanMultiTermQuery;
+import com.mhs.qsol.spans.SpanPrefixQuery;
+import com.mhs.qsol.spans.SpanRewriteCache;
 import com.mhs.qsol.spans.SpanWildcardQuery;
 import com.mhs.qsol.syntaxtree.BasicSearchType;
 import com.mhs.qsol.syntaxtree.CheckOrd1Search;
@@ -94,10 +93,30 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
   private int slop = 0; // 0 is the default slop for when phrases become SpanNearQuerys
   private List<Operator> orderOfOps = new ArrayList<Operator>();
   private float boost = 1;
+  private AnalyzedTerms analyzedTerms;
+  private Thesaurus thesaurus;
+  private int maxClauses = ProximityBuilder.DEFAULT_MAX_CLAUSES;
+  private boolean factorOrs;
+  private boolean ordinalProximity;
+  private int sentenceWindow;
+  private int paragraphWindow;
+  private MultiTermSpanRewrite multiTermRewrite = MultiTermSpanRewrite.ALL;
+  private SpanRewriteCache rewriteCache;
 
   public ProximityVisitor(Analyzer analyzer, String field) {
+    this(analyzer, field, new AnalyzedTerms());
+  }
+
+  /**
+   * @param analyzedTerms
+   *          term buffer to analyze search tokens into, shared with the
+   *          visitor that created this one
+   */
+  public ProximityVisitor(Analyzer analyzer, String field,
+      AnalyzedTerms analyzedTerms) {
     this.analyzer = analyzer;
     this.field = field;
+    this.analyzedTerms = analyzedTerms;
   }
 
   public Query getQuery() {
@@ -109,6 +128,11 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
    */
   public Query visit(Search n, Query query) {
     proxBuilder = new ProximityBuilder();
+    proxBuilder.setMaxClauses(maxClauses);
+    proxBuilder.setFactorOrs(factorOrs);
+    proxBuilder.setOrdinalProximity(ordinalProximity);
+    proxBuilder.setSentenceWindow(sentenceWindow);
+    proxBuilder.setParagraphWindow(paragraphWindow);
 
     n.f0.accept(this, null);
 
@@ -341,7 +365,19 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
         term = term.toLowerCase();
       }
 
-      SpanWildcardQuery wildQuery = new SpanWildcardQuery(new Term(field, term));
+      SpanMultiTermQuery wildQuery;
+
+      // a lone trailing * is a prefix: seek to it rather than pattern match
+      if ((term.indexOf('*') == (term.length() - 1))
+          && (term.indexOf('?') == -1)) {
+        wildQuery = new SpanPrefixQuery(new Term(field, term.substring(0, term
+            .length() - 1)));
+      } else {
+        wildQuery = new SpanWildcardQuery(new Term(field, term));
+      }
+
+      wildQuery.setRewriteMethod(multiTermRewrite);
+      wildQuery.setRewriteCache(rewriteCache);
 
       proxBuilder.addDistrib(new BasicDistributable(wildQuery));
 
@@ -356,9 +392,11 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
       }
 
       // logger.fine(fuzzyString.substring(0, fuzzyString.length()-1));
-      proxBuilder
-          .addDistrib(new BasicDistributable(new SpanFuzzyQuery(new Term(field,
-              fuzzyString.substring(0, fuzzyString.length() - 1)))));
+      SpanFuzzyQuery fuzzyQuery = new SpanFuzzyQuery(new Term(field,
+          fuzzyString.substring(0, fuzzyString.length() - 1)));
+      fuzzyQuery.setRewriteMethod(multiTermRewrite);
+      fuzzyQuery.setRewriteCache(rewriteCache);
+      proxBuilder.addDistrib(new BasicDistributable(fuzzyQuery));
       
       return null;
     } else if (choice.which == 6) {
@@ -383,7 +421,7 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
     } else if (choice.which == 7) {
       // IF <SEARCHTOKEN>
       proxBuilder.addDistrib(new BasicDistributable(
-            (SpanQuery) tokenToQuery(choice.choice.toString())));
+            searchTokenToQuery(choice.choice.toString())));
 
       return null;
     } else {
@@ -463,6 +501,37 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
     return new String(caDest, 0, j);
   }
 
+  /**
+   * Builds the span query for a plain search token, or a SpanOrQuery of the
+   * span queries for its synonyms if it is in the thesaurus.
+   */
+  private SpanQuery searchTokenToQuery(String token) {
+    String[] synonyms = (thesaurus == null) ? null : thesaurus
+        .getSynonyms(removeEscapeChars(token));
+
+    if (synonyms == null) {
+      return (SpanQuery) tokenToQuery(token);
+    }
+
+    List<SpanQuery> clauses = new ArrayList<SpanQuery>(synonyms.length);
+
+    for (String synonym : synonyms) {
+      SpanQuery synonymQuery = (SpanQuery) tokenToQuery(synonym);
+
+      if (synonymQuery != null) {
+        clauses.add(synonymQuery);
+      }
+    }
+
+    if (clauses.isEmpty()) {
+      return null;
+    } else if (clauses.size() == 1) {
+      return clauses.get(0);
+    }
+
+    return new SpanOrQuery(clauses.toArray(new SpanQuery[clauses.size()]));
+  }
+
   /**
    * Converts a token, as defined in the qsol.jtb JavaCC file, into an
    * appropriate query.
@@ -481,110 +550,68 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
 
     token = removeEscapeChars(token);
 
-    TokenStream source = analyzer.tokenStream(field, new StringReader(token));
-    CharTermAttribute charTermAtrib = source.getAttribute(CharTermAttribute.class);
-    OffsetAttribute offsetAtrib = source.getAttribute(OffsetAttribute.class);
-    PositionIncrementAttribute posIncAtt = source.addAttribute(PositionIncrementAttribute.class);
-    ArrayList<Token> v = new ArrayList<Token>();
-    Token t;
-    int positionCount = 0;
-    boolean severalTokensAtSamePosition = false;
-
-    while (true) {
-      try {
-        if (!source.incrementToken()) {
-          break;
-        }
-        t = new Token(charTermAtrib.buffer(), 0, charTermAtrib.length(), offsetAtrib.startOffset(), offsetAtrib.endOffset());
-        t.setPositionIncrement(posIncAtt.getPositionIncrement());
-      } catch (IOException e) {
-        t = null;
-      }
-
-      if (t == null) {
-        break;
-      }
+    AnalyzedTerms terms = analyzedTerms.analyze(analyzer, field, token);
 
-      v.add(t);
+    int size = terms.size();
 
-      if (t.getPositionIncrement() != 0) {
-        positionCount += t.getPositionIncrement();
-      } else {
-        severalTokensAtSamePosition = true;
-      }
-    }
-
-    try {
-      source.close();
-    } catch (IOException e) {
-      // ignore
-    }
-
-    if (v.size() == 0) {
+    if (size == 0) {
       return null;
-    } else if (v.size() == 1) {
-      t = v.get(0);
-      SpanTermQuery stq = new SpanTermQuery(new Term(field, new String(t.buffer(), 0, t.length())));
+    } else if (size == 1) {
+      SpanTermQuery stq = new SpanTermQuery(new Term(field, terms.term(0)));
       stq.setBoost(this.boost);
       return stq;
     } else {
-      if (severalTokensAtSamePosition) {
-        if (positionCount == 1) {
+      if (terms.hasSeveralTokensAtSamePosition()) {
+        if (terms.getPositionCount() == 1) {
           // no phrase query:
-          SpanQuery[] spanQueries = new SpanQuery[v.size()];
-
-          StringBuilder regex = new StringBuilder();
+          SpanQuery[] spanQueries = new SpanQuery[size];
 
-          for (int i = 0; i < v.size(); i++) {
-            spanQueries[i] = new SpanTermQuery(
-                new Term(field, regex.toString()));
+          for (int i = 0; i < size; i++) {
+            spanQueries[i] = new SpanTermQuery(new Term(field, terms.term(i)));
           }
 
           return new SpanOrQuery(spanQueries);
         } else {
-            // All the Tokens in each sub-list are positioned at the the same location.
-            ArrayList<ArrayList<Token>> identicallyPositionedTokenLists =
-                    new ArrayList<ArrayList<Token>>();
-            for (int i = 0; i < v.size(); i++) {
-              if ((i == 0) || (v.get(i).getPositionIncrement() > 0)) {
-                identicallyPositionedTokenLists.add(new ArrayList<Token>());
-              }
-              ArrayList<Token> curList =
-                      identicallyPositionedTokenLists.get(identicallyPositionedTokenLists.size()-1);
-              curList.add(v.get(i));
+          // Terms with a position increment of 0 share a position with the
+          // term before them.
+          List<SpanQuery> spanNearSubclauses = new ArrayList<SpanQuery>();
+          int i = 0;
+
+          while (i < size) {
+            int end = i + 1;
+
+            while ((end < size) && (terms.positionIncrement(end) == 0)) {
+              end++;
+            }
+
+            SpanQuery[] curTermQueries = new SpanQuery[end - i];
+
+            for (int j = i; j < end; j++) {
+              SpanTermQuery termQuery = new SpanTermQuery(new Term(field,
+                  terms.term(j)));
+              termQuery.setBoost(this.boost);
+              curTermQueries[j - i] = termQuery;
             }
 
-            ArrayList<SpanQuery> spanNearSubclauses = new ArrayList<SpanQuery>();
-            for (int listNum = 0; listNum < identicallyPositionedTokenLists.size(); listNum++) {
-              ArrayList<Token> curTokens = identicallyPositionedTokenLists.get(listNum);
-
-              ArrayList<SpanTermQuery> curTermQueries = new ArrayList<SpanTermQuery>();
-              for (int tokenNum = 0; tokenNum < curTokens.size(); tokenNum++) {
-                SpanTermQuery termQuery = new SpanTermQuery(new Term(field, curTokens.get(tokenNum).term()));
-                termQuery.setBoost(this.boost);
-                curTermQueries.add(termQuery);
-              }
-
-              int size = curTermQueries.size();
-              if (size <= 0)
-                continue;
-              else if (size == 1)
-                spanNearSubclauses.add(curTermQueries.get(0));
-              else
-                spanNearSubclauses.add(new SpanOrQuery(curTermQueries.toArray(new SpanQuery[0])));
+            if (curTermQueries.length == 1) {
+              spanNearSubclauses.add(curTermQueries[0]);
+            } else {
+              spanNearSubclauses.add(new SpanOrQuery(curTermQueries));
             }
 
-            SpanNearQuery query = new SpanNearQuery((SpanQuery[]) spanNearSubclauses
-                .toArray(new SpanQuery[0]), slop, true);
+            i = end;
+          }
+
+          SpanNearQuery query = new SpanNearQuery(spanNearSubclauses
+              .toArray(new SpanQuery[spanNearSubclauses.size()]), slop, true);
 
           return query;
         }
       } else {
-        SpanTermQuery[] clauses = new SpanTermQuery[v.size()];
-     
-        for (int i = 0; i < v.size(); i++) {
-          Token t2 = v.get(i);
-          clauses[i] = new SpanTermQuery(new Term(field, new String(t2.buffer(), 0, t2.length())));
+        SpanTermQuery[] clauses = new SpanTermQuery[size];
+
+        for (int i = 0; i < size; i++) {
+          clauses[i] = new SpanTermQuery(new Term(field, terms.term(i)));
         }
 
         SpanNearQuery query = new SpanNearQuery(clauses, slop, true);
@@ -627,6 +654,11 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
 
       storeBuilder = proxBuilder;
       proxBuilder = new ProximityBuilder();
+      proxBuilder.setMaxClauses(maxClauses);
+      proxBuilder.setFactorOrs(factorOrs);
+      proxBuilder.setOrdinalProximity(ordinalProximity);
+      proxBuilder.setSentenceWindow(sentenceWindow);
+      proxBuilder.setParagraphWindow(paragraphWindow);
 
       proxBuilder.startGroup();
     }
@@ -715,6 +747,86 @@ public class ProximityVisitor extends GJDepthFirst<Query, Query> {
     proxBuilder.setFieldBreakMarker(fieldBreak);
   }
 
+  /**
+   * Sets the number of span queries the proximity search may distribute into.
+   * 
+   * @param maxClauses
+   *          maximum number of span queries
+   * @see ProximityBuilder#setMaxClauses(int)
+   */
+  public void setMaxClauses(int maxClauses) {
+    this.maxClauses = maxClauses;
+    proxBuilder.setMaxClauses(maxClauses);
+  }
+
+  /**
+   * @param factorOrs
+   *          true to join runs of OR'd span queries into one
+   *          <code>SpanOrQuery</code>
+   * @see ProximityBuilder#setFactorOrs(boolean)
+   */
+  public void setFactorOrs(boolean factorOrs) {
+    this.factorOrs = factorOrs;
+    proxBuilder.setFactorOrs(factorOrs);
+  }
+
+  /**
+   * @param ordinalProximity
+   *          true to compare payload ordinals for sentence and paragraph
+   *          proximity
+   * @see ProximityBuilder#setOrdinalProximity(boolean)
+   */
+  public void setOrdinalProximity(boolean ordinalProximity) {
+    this.ordinalProximity = ordinalProximity;
+    proxBuilder.setOrdinalProximity(ordinalProximity);
+  }
+
+  /**
+   * @param sentenceWindow
+   *          positions in the longest sentence, or 0 for no limit
+   * @see ProximityBuilder#setSentenceWindow(int)
+   */
+  public void setSentenceWindow(int sentenceWindow) {
+    this.sentenceWindow = sentenceWindow;
+    proxBuilder.setSentenceWindow(sentenceWindow);
+  }
+
+  /**
+   * @param paragraphWindow
+   *          positions in the longest paragraph, or 0 for no limit
+   * @see ProximityBuilder#setParagraphWindow(int)
+   */
+  public void setParagraphWindow(int paragraphWindow) {
+    this.paragraphWindow = paragraphWindow;
+    proxBuilder.setParagraphWindow(paragraphWindow);
+  }
+
+  /**
+   * @param multiTermRewrite
+   *          how wildcard and fuzzy terms expand
+   */
+  public void setMultiTermRewrite(MultiTermSpanRewrite multiTermRewrite) {
+    this.multiTermRewrite = multiTermRewrite;
+  }
+
+  /**
+   * @param rewriteCache
+   *          cache of wildcard and fuzzy expansions, or <code>null</code>
+   */
+  public void setRewriteCache(SpanRewriteCache rewriteCache) {
+    this.rewriteCache = rewriteCache;
+  }
+
+  /**
+   * Sets the synonyms that plain search tokens are expanded with.
+   * 
+   * @param thesaurus
+   *          thesaurus to use, or <code>null</code>
+   */
+  public void setThesaurus(Thesaurus thesaurus) {
+    this.thesaurus = thesaurus;
+  }
+
   public void setLowercaseExpandedTermsboolean(
       boolean lowercaseExpandedTermsboolean) {
     this.lowercaseExpandedTermsboolean = lowercaseExpandedTermsboolean;
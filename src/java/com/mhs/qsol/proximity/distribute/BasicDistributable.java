@@ -1,6 +1,7 @@
 package com.mhs.qsol.proximity.distribute;
 
 import com.mhs.qsol.QsolParseException;
+import com.mhs.qsol.spans.SpanOrdinalNearQuery;
 import com.mhs.qsol.spans.SpanWithinQuery;
 
 import org.apache.lucene.index.Term;
@@ -50,6 +51,14 @@ public class BasicDistributable implements Distributable {
     this.query = query;
   }
 
+  /**
+   * @return the span query this distributable holds, or <code>null</code> for
+   *         a stop word
+   */
+  public SpanQuery getQuery() {
+    return query;
+  }
+
   public void addConnector(Occur occurType) {
     // no-op
   }
@@ -130,6 +139,16 @@ public class BasicDistributable implements Distributable {
       return query;
     }
 
+    if (proxInfo.factorOrs) {
+      List<Query> queries = new ArrayList<Query>(children.size());
+
+      for (Distributable child : children) {
+        queries.add(child.distribute(this.query, proxInfo));
+      }
+
+      return SpanOrFactoring.combine(queries, distrib.getConnectors());
+    }
+
     Query query;
     Query cacheQuery2 = null;
     int size = children.size();
@@ -210,10 +229,14 @@ public class BasicDistributable implements Distributable {
 
     case PARAGRAPH:
 
+      if (proxInfo.ordinalProximity) {
+        return ordinalNear(query, proxInfo, SpanOrdinalNearQuery.Unit.PARAGRAPH);
+      }
+
       SpanTermQuery paraMarker = new SpanTermQuery(new Term(this.query
           .getField(), proxInfo.paraMarker));
       SpanQuery querySpan = new SpanNearQuery(new SpanQuery[] { query,
-          this.query }, 99999, false);
+          this.query }, proxInfo.windowSlop(proxInfo.paragraphWindow), false);
 
       if (proxInfo.fieldBreakMarker != null) {
         SpanTermQuery fieldBreakMarker = new SpanTermQuery(new Term(this.query
@@ -226,10 +249,14 @@ public class BasicDistributable implements Distributable {
 
     case SENTENCE:
 
+      if (proxInfo.ordinalProximity) {
+        return ordinalNear(query, proxInfo, SpanOrdinalNearQuery.Unit.SENTENCE);
+      }
+
       SpanTermQuery sentMarker = new SpanTermQuery(new Term(this.query
           .getField(), proxInfo.sentMarker));
       querySpan = new SpanNearQuery(new SpanQuery[] { query, this.query },
-          99999, false);
+          proxInfo.windowSlop(proxInfo.sentenceWindow), false);
 
       if (proxInfo.fieldBreakMarker != null) {
         SpanTermQuery fieldBreakMarker = new SpanTermQuery(new Term(this.query
@@ -244,4 +271,18 @@ public class BasicDistributable implements Distributable {
     throw new RuntimeException(
         "proximity search was not of type sent/para/word");
   }
+
+  private SpanQuery ordinalNear(SpanQuery query, ProxInfo proxInfo,
+      SpanOrdinalNearQuery.Unit unit) {
+    SpanQuery querySpan = new SpanOrdinalNearQuery(query, this.query, Integer
+        .parseInt(proxInfo.distance), unit);
+
+    if (proxInfo.fieldBreakMarker != null) {
+      SpanTermQuery fieldBreakMarker = new SpanTermQuery(new Term(this.query
+          .getField(), proxInfo.fieldBreakMarker));
+      querySpan = new SpanNotQuery(querySpan, fieldBreakMarker);
+    }
+
+    return querySpan;
+  }
 }
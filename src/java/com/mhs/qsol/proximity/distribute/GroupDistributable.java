@@ -165,6 +165,16 @@ public class GroupDistributable implements Distributable {
       return returnDistrib.distribute(distrib, proxInfo);
     }
 
+    if (proxInfo.factorOrs) {
+      List<Query> queries = new ArrayList<Query>(distribs.size());
+
+      for (Distributable child : distribs) {
+        queries.add(child.distribute(distrib, proxInfo));
+      }
+
+      return SpanOrFactoring.combine(queries, connector);
+    }
+
     BooleanQuery boolQuery = new BooleanQuery();
 
     Query query;
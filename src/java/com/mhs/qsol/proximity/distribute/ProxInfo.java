@@ -18,12 +18,35 @@ package com.mhs.qsol.proximity.distribute;
 import com.mhs.qsol.proximity.ProximityBuilder.ProxType;
 
 public class ProxInfo {
+  /**
+   * Slop of the SpanNearQuery under sentence and paragraph proximity when no
+   * window is set.
+   */
+  public static final int UNBOUNDED_SLOP = 99999;
+
   public String distance;
   public boolean ordered;
   ProxType proxType;
   public String paraMarker;
   public String sentMarker;
   public String fieldBreakMarker;
+  /**
+   * If true, runs of OR'd span queries are joined into one SpanOrQuery.
+   */
+  public boolean factorOrs;
+  /**
+   * If true, sentence and paragraph proximity compare the ordinals in term
+   * payloads instead of counting marker terms.
+   */
+  public boolean ordinalProximity;
+  /**
+   * Positions in the longest sentence, or 0 for no limit.
+   */
+  public int sentenceWindow;
+  /**
+   * Positions in the longest paragraph, or 0 for no limit.
+   */
+  public int paragraphWindow;
 
   public ProxInfo(String distance, boolean ordered, ProxType proxType,
       String sentMarker, String paraMarker) {
@@ -34,4 +57,24 @@ public class ProxInfo {
 
     this.sentMarker = sentMarker;
   }
+
+  /**
+   * Returns the slop of the SpanNearQuery that finds the candidate spans for
+   * sentence or paragraph proximity. Two terms <code>distance</code>
+   * sentences apart are at most <code>distance + 1</code> sentences of
+   * positions apart, so the near query need not look further.
+   * 
+   * @param window
+   *          positions in the longest sentence or paragraph, or 0 for no
+   *          limit
+   */
+  public int windowSlop(int window) {
+    if (window <= 0) {
+      return UNBOUNDED_SLOP;
+    }
+
+    long slop = (long) window * (Integer.parseInt(distance) + 1);
+
+    return (int) Math.min(slop, UNBOUNDED_SLOP);
+  }
 }
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol.proximity.distribute;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+
+/**
+ * Joins the queries a group distributes into. Each run of OR'd span queries,
+ * however long, becomes a single <code>SpanOrQuery</code>. Nested
+ * <code>SpanOrQuery</code>s are flattened into the run and equal span queries
+ * are only kept once, so the postings of each term are read once.
+ */
+final class SpanOrFactoring {
+  private SpanOrFactoring() {
+  }
+
+  /**
+   * @param queries
+   *          distributed query of each child
+   * @param connectors
+   *          connector of each child
+   * @return the single <code>SpanOrQuery</code> if every child is an OR'd
+   *         span, otherwise a <code>BooleanQuery</code> of the runs and the
+   *         other clauses
+   */
+  static Query combine(List<Query> queries, List<Occur> connectors) {
+    BooleanQuery boolQuery = new BooleanQuery();
+    Set<SpanQuery> run = new LinkedHashSet<SpanQuery>();
+    int size = queries.size();
+
+    for (int i = 0; i < size; i++) {
+      Query query = queries.get(i);
+      Occur con = connectors.get(i);
+
+      if ((con == Occur.SHOULD) && query instanceof SpanQuery) {
+        addToRun(run, (SpanQuery) query);
+
+        continue;
+      }
+
+      addRun(boolQuery, run);
+      boolQuery.add(query, con);
+    }
+
+    if (boolQuery.clauses().isEmpty() && !run.isEmpty()) {
+      return toQuery(run);
+    }
+
+    addRun(boolQuery, run);
+
+    return boolQuery;
+  }
+
+  private static void addToRun(Set<SpanQuery> run, SpanQuery query) {
+    if (query instanceof SpanOrQuery && (query.getBoost() == 1.0f)) {
+      for (SpanQuery clause : ((SpanOrQuery) query).getClauses()) {
+        addToRun(run, clause);
+      }
+    } else {
+      run.add(query);
+    }
+  }
+
+  private static void addRun(BooleanQuery boolQuery, Set<SpanQuery> run) {
+    if (!run.isEmpty()) {
+      boolQuery.add(toQuery(run), Occur.SHOULD);
+      run.clear();
+    }
+  }
+
+  private static SpanQuery toQuery(Set<SpanQuery> run) {
+    if (run.size() == 1) {
+      return run.iterator().next();
+    }
+
+    return new SpanOrQuery(run.toArray(new SpanQuery[run.size()]));
+  }
+}
@@ -19,6 +19,15 @@ public class QueryParser implements QueryParserConstants {
     token_source.hideProximity = hideProximity;
   }
 
+  public QueryParser(JavaCharStream stream) {
+    this(new QueryParserTokenManager(stream));
+  }
+
+  public void ReInit(JavaCharStream stream) {
+    token_source.ReInit(stream);
+    ReInit(token_source);
+  }
+
   final public Search Search() throws ParseException {
     CheckOrd1Search n0;
     NodeToken n1;
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol.queryparser;
+
+/**
+ * A <code>JavaCharStream</code> that is re-initialized for every query. The
+ * generated <code>ReInit</code> keeps the buffers when their size is
+ * unchanged but leaves the mark of where the buffer wraps as the last input
+ * left it, so a reused stream does not start from the same state as a new
+ * one. This class resets the mark too. It lives outside the generated sources
+ * so that regenerating the parser does not drop the reset.
+ */
+public class ReusableCharStream extends JavaCharStream {
+  public ReusableCharStream(java.io.Reader dstream) {
+    super(dstream);
+  }
+
+  public void ReInit(java.io.Reader dstream, int startline, int startcolumn,
+      int buffersize) {
+    super.ReInit(dstream, startline, startcolumn, buffersize);
+    available = bufsize;
+  }
+}
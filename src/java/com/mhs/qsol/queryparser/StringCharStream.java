@@ -0,0 +1,349 @@
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mhs.qsol.queryparser;
+
+/**
+ * A char stream that reads a query held in memory. Unlike
+ * <code>JavaCharStream</code> there is no buffering of the input and no
+ * decoding of unicode escapes: a backslash followed by u and four hex digits
+ * is read as those six characters. Line and column numbers are worked out
+ * from the character offset only when they are asked for, and are the same as
+ * <code>JavaCharStream</code> reports.
+ * <p>
+ * Use it by constructing the parser with
+ * <code>new QueryParser(new StringCharStream(query))</code>. A stream
+ * re-initialized with a Reader reads the whole Reader up front.
+ */
+public class StringCharStream extends JavaCharStream {
+  private CharSequence text;
+  private int length;
+  private int tokenBegin;
+  private int pos;
+  private int readMax;
+  private boolean plain;
+  private int startLine;
+  private int startColumn;
+
+  // position the line and column rules are applied from, and the positions
+  // of the characters already read, set by adjustBeginLineColumn
+  private int baseOffset;
+  private int baseLine;
+  private int baseColumn;
+  private int adjustedStart;
+  private int[] adjustedLines;
+  private int[] adjustedColumns;
+
+  // last position worked out, so positions can be found incrementally
+  private int lastOffset;
+  private int lastLine;
+  private int lastColumn;
+  private boolean lastCR;
+  private boolean lastLF;
+
+  public StringCharStream(CharSequence text) {
+    // the superclass buffers are never used, so keep them as small as allowed
+    super(new java.io.StringReader(""), 1, 1, 1);
+    ReInit(text);
+  }
+
+  /**
+   * Points the stream at a new query.
+   *
+   * @param text
+   *          query to read
+   */
+  public void ReInit(CharSequence text) {
+    ReInit(text, 1, 1);
+  }
+
+  private void ReInit(CharSequence text, int startline, int startcolumn) {
+    this.text = text;
+    this.length = text.length();
+    this.tokenBegin = 0;
+    this.pos = -1;
+    this.readMax = -1;
+    this.plain = true;
+    this.startLine = startline;
+    this.startColumn = startcolumn;
+
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+
+      if ((c == '\n') || (c == '\r') || (c == '\t')) {
+        plain = false;
+
+        break;
+      }
+    }
+
+    baseOffset = -1;
+    baseLine = startline;
+    baseColumn = startcolumn - 1;
+    adjustedLines = adjustedColumns = null;
+    resetPosition();
+  }
+
+  /**
+   * Reads all of <code>dstream</code> and points the stream at it. As with
+   * <code>JavaCharStream</code>, a read error ends the input.
+   */
+  public void ReInit(java.io.Reader dstream, int startline, int startcolumn,
+      int buffersize) {
+    StringBuilder sb = new StringBuilder();
+    char[] buf = new char[Math.max(buffersize, 1)];
+
+    try {
+      int read;
+
+      while ((read = dstream.read(buf)) != -1) {
+        sb.append(buf, 0, read);
+      }
+    } catch (java.io.IOException e) {
+      // keep what was read
+    }
+
+    ReInit(sb, startline, startcolumn);
+  }
+
+  public char BeginToken() throws java.io.IOException {
+    tokenBegin = pos + 1;
+
+    return readChar();
+  }
+
+  public char readChar() throws java.io.IOException {
+    if (++pos >= length) {
+      // like JavaCharStream, stay on the last character read
+      if (pos != 0) {
+        --pos;
+      }
+
+      throw new java.io.IOException();
+    }
+
+    if (pos > readMax) {
+      readMax = pos;
+    }
+
+    return text.charAt(pos);
+  }
+
+  public void backup(int amount) {
+    pos -= amount;
+  }
+
+  public String GetImage() {
+    return text.subSequence(tokenBegin, pos + 1).toString();
+  }
+
+  public char[] GetSuffix(int len) {
+    char[] ret = new char[len];
+    int start = pos - len + 1;
+
+    for (int i = 0; i < len; i++) {
+      ret[i] = text.charAt(start + i);
+    }
+
+    return ret;
+  }
+
+  /**
+   * @deprecated
+   * @see #getEndColumn
+   */
+  public int getColumn() {
+    return getEndColumn();
+  }
+
+  /**
+   * @deprecated
+   * @see #getEndLine
+   */
+  public int getLine() {
+    return getEndLine();
+  }
+
+  public int getEndColumn() {
+    return column(pos);
+  }
+
+  public int getEndLine() {
+    return line(pos);
+  }
+
+  public int getBeginColumn() {
+    return column(tokenBegin);
+  }
+
+  public int getBeginLine() {
+    return line(tokenBegin);
+  }
+
+  public void Done() {
+    text = null;
+  }
+
+  /**
+   * Moves the current token to <code>newLine</code> and <code>newCol</code>,
+   * as <code>JavaCharStream</code> does. The characters read since the token
+   * began keep their place relative to it: the rest of its line is shifted to
+   * follow on from <code>newCol</code>, and later lines are renumbered from
+   * <code>newLine</code>. Characters not read yet carry on from the last one.
+   */
+  public void adjustBeginLineColumn(int newLine, int newCol) {
+    if (length == 0) {
+      return;
+    }
+
+    int start = Math.min(tokenBegin, length - 1);
+    int end = Math.max(start, Math.min(readMax, length - 1));
+    int[] lines = new int[end - start + 1];
+    int[] columns = new int[lines.length];
+    int beginLine = line(start);
+    int beginColumn = column(start);
+
+    for (int i = start; i <= end; i++) {
+      int l = line(i);
+      int c = column(i);
+      lines[i - start] = newLine + (l - beginLine);
+      columns[i - start] = (l == beginLine) ? (newCol + (c - beginColumn)) : c;
+    }
+
+    plain = false;
+    adjustedStart = start;
+    adjustedLines = lines;
+    adjustedColumns = columns;
+    baseOffset = end;
+    baseLine = lines[lines.length - 1];
+    baseColumn = columns[columns.length - 1];
+    resetPosition();
+  }
+
+  private void resetPosition() {
+    lastOffset = baseOffset;
+    lastLine = baseLine;
+    lastColumn = baseColumn;
+    lastCR = lastLF = false;
+
+    if ((baseOffset >= 0) && (baseOffset < length)) {
+      lastCR = (text.charAt(baseOffset) == '\r');
+      lastLF = (text.charAt(baseOffset) == '\n');
+    }
+  }
+
+  private int line(int offset) {
+    if (plain) {
+      return startLine;
+    }
+
+    int adjusted = adjustedIndex(offset);
+
+    if (adjusted != -1) {
+      return adjustedLines[adjusted];
+    }
+
+    advanceTo(offset);
+
+    return lastLine;
+  }
+
+  private int column(int offset) {
+    if (plain) {
+      // at the end of the input JavaCharStream reports the last character
+      return (length == 0) ? (startColumn - 1)
+          : (Math.min(offset, length - 1) + startColumn);
+    }
+
+    int adjusted = adjustedIndex(offset);
+
+    if (adjusted != -1) {
+      return adjustedColumns[adjusted];
+    }
+
+    advanceTo(offset);
+
+    return lastColumn;
+  }
+
+  /**
+   * @return index of <code>offset</code> in the positions fixed by
+   *         <code>adjustBeginLineColumn</code>, or -1
+   */
+  private int adjustedIndex(int offset) {
+    if ((adjustedLines == null) || (length == 0)) {
+      return -1;
+    }
+
+    int i = Math.min(offset, length - 1) - adjustedStart;
+
+    return ((i >= 0) && (i < adjustedLines.length)) ? i : -1;
+  }
+
+  /**
+   * Moves the cached position to <code>offset</code>, applying the same line
+   * and column rules as <code>JavaCharStream.UpdateLineColumn</code>.
+   */
+  private void advanceTo(int offset) {
+    if (offset >= length) {
+      offset = length - 1;
+    }
+
+    if (offset < lastOffset) {
+      resetPosition();
+    }
+
+    while (lastOffset < offset) {
+      char c = text.charAt(++lastOffset);
+      lastColumn++;
+
+      if (lastLF) {
+        lastLF = false;
+        lastLine++;
+        lastColumn = 1;
+      } else if (lastCR) {
+        lastCR = false;
+
+        if (c == '\n') {
+          lastLF = true;
+        } else {
+          lastLine++;
+          lastColumn = 1;
+        }
+      }
+
+      switch (c) {
+      case '\r':
+        lastCR = true;
+
+        break;
+
+      case '\n':
+        lastLF = true;
+
+        break;
+
+      case '\t':
+        lastColumn--;
+        lastColumn += (tabSize - (lastColumn % tabSize));
+
+        break;
+
+      default:
+        break;
+      }
+    }
+  }
+}
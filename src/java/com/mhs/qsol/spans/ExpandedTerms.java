@@ -0,0 +1,33 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.Term;
+
+/**
+ * The terms a multi-term span query expanded into, with the boost of each.
+ * Held by <code>SpanRewriteCache</code>, so never modified.
+ */
+final class ExpandedTerms {
+  final Term[] terms;
+  final float[] boosts;
+
+  ExpandedTerms(Term[] terms, float[] boosts) {
+    this.terms = terms;
+    this.boosts = boosts;
+  }
+}
@@ -0,0 +1,243 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.mhs.qsol.QsolParseException;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FilteredTermEnum;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * How <code>SpanWildcardQuery</code>, <code>SpanPrefixQuery</code>,
+ * <code>SpanRegexQuery</code> and <code>SpanFuzzyQuery</code> expand into the
+ * terms they match. A wildcard in a proximity search can match tens
+ * of thousands of terms, each of which would become a
+ * <code>SpanTermQuery</code>; past <code>maxTerms</code> terms, the mode
+ * decides what happens:
+ * <ul>
+ * <li><code>ALL</code> keeps every term (the fuzzy query keeps its usual top
+ * terms by similarity). <code>maxTerms</code> is ignored.</li>
+ * <li><code>FAIL</code> throws a <code>QsolParseException</code>.</li>
+ * <li><code>TOP_DOC_FREQ</code> keeps the <code>maxTerms</code> terms found in
+ * the most documents.</li>
+ * <li><code>TOP_SCORE</code> keeps the <code>maxTerms</code> terms with the
+ * best match score (fuzzy similarity; the other queries score all their
+ * terms the same, so ties go to the higher document frequency).</li>
+ * <li><code>DOC_SET</code> keeps every term, but instead of a
+ * <code>SpanOrQuery</code> builds a query that merges the positions of all the
+ * terms in a document into one list, and reads positions only for the
+ * documents the rest of the proximity search asks for. The terms are held once
+ * each, with no per-term query or spans.</li>
+ * </ul>
+ * Only the <code>TOP_</code> modes hold no more than <code>maxTerms</code>
+ * terms while the terms are enumerated. Instances are immutable.
+ *
+ * @see com.mhs.qsol.QsolParser#setMultiTermSpanRewrite(MultiTermSpanRewrite)
+ */
+public class MultiTermSpanRewrite {
+  public enum Mode {
+    ALL, FAIL, TOP_DOC_FREQ, TOP_SCORE, DOC_SET;
+  }
+
+  /**
+   * Keeps every term.
+   */
+  public static final MultiTermSpanRewrite ALL = new MultiTermSpanRewrite(
+      Mode.ALL, Integer.MAX_VALUE);
+
+  private static final Comparator<ScoredTerm> INDEX_ORDER =
+      new Comparator<ScoredTerm>() {
+        public int compare(ScoredTerm a, ScoredTerm b) {
+          return a.term.compareTo(b.term);
+        }
+      };
+
+  private final Mode mode;
+  private final int maxTerms;
+
+  /**
+   * @param mode
+   *          what to do past <code>maxTerms</code> terms
+   * @param maxTerms
+   *          number of terms to expand into
+   */
+  public MultiTermSpanRewrite(Mode mode, int maxTerms) {
+    if (maxTerms < 1) {
+      throw new IllegalArgumentException("maxTerms must be at least 1: "
+          + maxTerms);
+    }
+
+    this.mode = mode;
+    this.maxTerms = maxTerms;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public int getMaxTerms() {
+    return maxTerms;
+  }
+
+  /**
+   * Expands the terms of <code>termEnum</code>, which is closed.
+   *
+   * @param query
+   *          query being rewritten, for error messages
+   * @param termEnum
+   *          terms the query matches, positioned on the first
+   * @return the terms kept, in index order
+   */
+  ExpandedTerms expand(SpanQuery query, FilteredTermEnum termEnum)
+      throws IOException {
+    List<ScoredTerm> terms = new ArrayList<ScoredTerm>();
+    PriorityQueue<ScoredTerm> top = null;
+
+    if ((mode == Mode.TOP_DOC_FREQ) || (mode == Mode.TOP_SCORE)) {
+      top = new PriorityQueue<ScoredTerm>();
+    }
+
+    try {
+      do {
+        Term term = termEnum.term();
+
+        if (term == null) {
+          break;
+        }
+
+        ScoredTerm scored = new ScoredTerm(term, termEnum.docFreq(), termEnum
+            .difference());
+
+        if (top != null) {
+          top.add(scored);
+
+          if (top.size() > maxTerms) {
+            top.poll(); // drop the worst
+          }
+        } else {
+          if ((mode == Mode.FAIL) && (terms.size() == maxTerms)) {
+            throw new QsolParseException(query
+                + " in a proximity search matches more than " + maxTerms
+                + " terms. Use a longer prefix, or raise the limit with "
+                + "setMultiTermSpanRewrite.");
+          }
+
+          terms.add(scored);
+        }
+      } while (termEnum.next());
+    } finally {
+      termEnum.close();
+    }
+
+    if (top != null) {
+      terms.addAll(top);
+      Collections.sort(terms, INDEX_ORDER);
+    }
+
+    Term[] expandedTerms = new Term[terms.size()];
+    float[] boosts = new float[terms.size()];
+
+    for (int i = 0; i < expandedTerms.length; i++) {
+      expandedTerms[i] = terms.get(i).term;
+      boosts[i] = terms.get(i).score;
+    }
+
+    return new ExpandedTerms(expandedTerms, boosts);
+  }
+
+  /**
+   * @param field
+   *          field of the terms
+   * @param expanded
+   *          terms from <code>expand</code>, or the query's own expansion
+   *          under <code>ALL</code>
+   * @return a <code>SpanOrQuery</code> of the terms, or under
+   *         <code>DOC_SET</code> past <code>maxTerms</code> terms, a query
+   *         over the documents holding them
+   */
+  SpanQuery toQuery(String field, ExpandedTerms expanded) {
+    if ((mode == Mode.DOC_SET) && (expanded.terms.length > maxTerms)) {
+      return new TermSetSpanQuery(field, expanded.terms);
+    }
+
+    SpanQuery[] spanQueries = new SpanQuery[expanded.terms.length];
+
+    for (int i = 0; i < spanQueries.length; i++) {
+      spanQueries[i] = new SpanTermQuery(expanded.terms[i]);
+      spanQueries[i].setBoost(expanded.boosts[i]);
+    }
+
+    return new SpanOrQuery(spanQueries);
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof MultiTermSpanRewrite)) {
+      return false;
+    }
+
+    MultiTermSpanRewrite other = (MultiTermSpanRewrite) o;
+
+    return (mode == other.mode) && (maxTerms == other.maxTerms);
+  }
+
+  public int hashCode() {
+    return (31 * mode.hashCode()) + maxTerms;
+  }
+
+  public String toString() {
+    return "MultiTermSpanRewrite(" + mode + ", " + maxTerms + ")";
+  }
+
+  private final class ScoredTerm implements Comparable<ScoredTerm> {
+    final Term term;
+    final int docFreq;
+    final float score;
+
+    ScoredTerm(Term term, int docFreq, float score) {
+      this.term = term;
+      this.docFreq = docFreq;
+      this.score = score;
+    }
+
+    /**
+     * Orders worst first, so the queue drops the worst term.
+     */
+    public int compareTo(ScoredTerm other) {
+      if ((mode == Mode.TOP_SCORE) && (score != other.score)) {
+        return (score < other.score) ? -1 : 1;
+      }
+
+      if (docFreq != other.docFreq) {
+        return (docFreq < other.docFreq) ? -1 : 1;
+      }
+
+      // later terms lose, so equal terms keep index order
+      return other.term.compareTo(term);
+    }
+  }
+}
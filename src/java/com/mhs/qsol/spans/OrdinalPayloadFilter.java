@@ -0,0 +1,186 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Payload;
+
+import java.io.IOException;
+
+/**
+ * Gives each token a payload holding the number of the sentence and the
+ * paragraph it is in, for <code>SpanOrdinalNearQuery</code>. Sentences and
+ * paragraphs are delimited in the token stream by the same marker tokens that
+ * marker counting proximity uses; the markers are counted and removed, and
+ * their positions are left as gaps so word proximity is unchanged.
+ * <p>
+ * The sentence number counts sentence markers and the paragraph number counts
+ * paragraph markers, so <code>a ~2s b</code> matches the same documents in
+ * either mode. Both numbers start at 0 and are written as two variable length
+ * ints.
+ *
+ * @see com.mhs.qsol.QsolParser#setOrdinalProximity(boolean)
+ */
+public final class OrdinalPayloadFilter extends TokenFilter {
+  private final String sentMarker;
+  private final String paraMarker;
+  private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+  private final PositionIncrementAttribute posIncAtt = addAttribute(
+      PositionIncrementAttribute.class);
+  private final PayloadAttribute payloadAtt = addAttribute(
+      PayloadAttribute.class);
+  private int sentence;
+  private int paragraph;
+
+  /**
+   * @param input
+   *          tokens, including the marker tokens
+   * @param sentMarker
+   *          token that ends a sentence, or <code>null</code>
+   * @param paraMarker
+   *          token that ends a paragraph, or <code>null</code>
+   */
+  public OrdinalPayloadFilter(TokenStream input, String sentMarker,
+      String paraMarker) {
+    super(input);
+    this.sentMarker = sentMarker;
+    this.paraMarker = paraMarker;
+  }
+
+  public boolean incrementToken() throws IOException {
+    int skippedPositions = 0;
+
+    while (input.incrementToken()) {
+      if (isMarker(sentMarker)) {
+        sentence++;
+        skippedPositions += posIncAtt.getPositionIncrement();
+      } else if (isMarker(paraMarker)) {
+        paragraph++;
+        skippedPositions += posIncAtt.getPositionIncrement();
+      } else {
+        if (skippedPositions > 0) {
+          posIncAtt.setPositionIncrement(posIncAtt.getPositionIncrement()
+              + skippedPositions);
+        }
+
+        payloadAtt.setPayload(new Payload(encode(sentence, paragraph)));
+
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private boolean isMarker(String marker) {
+    if ((marker == null) || (termAtt.length() != marker.length())) {
+      return false;
+    }
+
+    char[] buffer = termAtt.buffer();
+
+    for (int i = 0; i < marker.length(); i++) {
+      if (buffer[i] != marker.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public void reset() throws IOException {
+    super.reset();
+    sentence = 0;
+    paragraph = 0;
+  }
+
+  /**
+   * @param sentence
+   *          sentence number
+   * @param paragraph
+   *          paragraph number
+   * @return payload bytes
+   */
+  public static byte[] encode(int sentence, int paragraph) {
+    byte[] bytes = new byte[vIntLength(sentence) + vIntLength(paragraph)];
+    writeVInt(bytes, writeVInt(bytes, 0, sentence), paragraph);
+
+    return bytes;
+  }
+
+  /**
+   * @param payload
+   *          payload written by this filter
+   * @return sentence number
+   */
+  public static int decodeSentence(byte[] payload) {
+    return readVInt(payload, 0);
+  }
+
+  /**
+   * @param payload
+   *          payload written by this filter
+   * @return paragraph number
+   */
+  public static int decodeParagraph(byte[] payload) {
+    int offset = 0;
+
+    while ((payload[offset] & 0x80) != 0) {
+      offset++;
+    }
+
+    return readVInt(payload, offset + 1);
+  }
+
+  private static int vIntLength(int value) {
+    int length = 1;
+
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      length++;
+    }
+
+    return length;
+  }
+
+  private static int writeVInt(byte[] bytes, int offset, int value) {
+    while ((value & ~0x7F) != 0) {
+      bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    bytes[offset++] = (byte) value;
+
+    return offset;
+  }
+
+  private static int readVInt(byte[] bytes, int offset) {
+    byte b = bytes[offset++];
+    int value = b & 0x7F;
+
+    for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+      b = bytes[offset++];
+      value |= (b & 0x7F) << shift;
+    }
+
+    return value;
+  }
+}
@@ -3,13 +3,12 @@ package com.mhs.qsol.spans;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
-import org.apache.lucene.search.spans.SpanOrQuery;
 import org.apache.lucene.search.spans.SpanQuery;
-import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.search.spans.Spans;
 
 import java.io.IOException;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
 
@@ -22,7 +21,9 @@ public class SpanFuzzyQuery extends SpanQuery {
   private final Term term;
   private final float minimumSimilarity;
   private final int prefixLength;
-  private BooleanQuery rewrittenFuzzyQuery;
+  private Term[] expandedTerms;
+  private MultiTermSpanRewrite rewriteMethod = MultiTermSpanRewrite.ALL;
+  private SpanRewriteCache rewriteCache;
 
   public SpanFuzzyQuery(Term term) {
     this(term, defaultMinSimilarity, defaultPrefixLength);
@@ -44,28 +45,75 @@ public class SpanFuzzyQuery extends SpanQuery {
     }
   }
 
+  /**
+   * @param rewriteMethod
+   *          how to expand into the similar terms
+   */
+  public void setRewriteMethod(MultiTermSpanRewrite rewriteMethod) {
+    this.rewriteMethod = rewriteMethod;
+  }
+
+  public MultiTermSpanRewrite getRewriteMethod() {
+    return rewriteMethod;
+  }
+
+  /**
+   * @param rewriteCache
+   *          cache of expansions to use, or <code>null</code>
+   */
+  public void setRewriteCache(SpanRewriteCache rewriteCache) {
+    this.rewriteCache = rewriteCache;
+  }
+
   public Query rewrite(IndexReader reader) throws IOException {
+    ExpandedTerms expanded = null;
+    SpanRewriteCache.Key key = null;
+
+    if (rewriteCache != null) {
+      key = new SpanRewriteCache.Key(getClass(), term, minimumSimilarity,
+          prefixLength, rewriteMethod);
+      expanded = rewriteCache.get(reader, key);
+    }
+
+    if (expanded == null) {
+      expanded = expand(reader);
+
+      if (rewriteCache != null) {
+        rewriteCache.put(reader, key, expanded);
+      }
+    }
+
+    expandedTerms = expanded.terms;
+
+    return rewriteMethod.toQuery(getField(), expanded);
+  }
+
+  private ExpandedTerms expand(IndexReader reader) throws IOException {
+    if (rewriteMethod.getMode() != MultiTermSpanRewrite.Mode.ALL) {
+      return rewriteMethod.expand(this, new FuzzyTermEnum(reader, term,
+          minimumSimilarity, prefixLength));
+    }
+
     FuzzyQuery fuzzyQuery = new FuzzyQuery(term, minimumSimilarity,
         prefixLength);
 
-    rewrittenFuzzyQuery = (BooleanQuery) fuzzyQuery.rewrite(reader);
+    BooleanQuery rewrittenFuzzyQuery = (BooleanQuery) fuzzyQuery
+        .rewrite(reader);
 
     BooleanClause[] clauses = rewrittenFuzzyQuery.getClauses();
-    SpanQuery[] spanQueries = new SpanQuery[clauses.length];
+    Term[] terms = new Term[clauses.length];
+    float[] boosts = new float[clauses.length];
 
     for (int i = 0; i < clauses.length; i++) {
       BooleanClause clause = clauses[i];
 
       TermQuery termQuery = (TermQuery) clause.getQuery();
 
-      spanQueries[i] = new SpanTermQuery(termQuery.getTerm());
-      spanQueries[i].setBoost(termQuery.getBoost());
+      terms[i] = termQuery.getTerm();
+      boosts[i] = termQuery.getBoost();
     }
 
-    SpanOrQuery query = new SpanOrQuery(spanQueries);
-    query.setBoost(fuzzyQuery.getBoost());
-
-    return query;
+    return new ExpandedTerms(terms, boosts);
   }
 
   /**
@@ -83,20 +131,11 @@ public class SpanFuzzyQuery extends SpanQuery {
 
   /** Returns a collection of all terms matched by this query. */
   public Collection getTerms() {
-    if (rewrittenFuzzyQuery == null) {
+    if (expandedTerms == null) {
       throw new RuntimeException(
           "Query must be rewritten prior to calling getTerms()!");
     } else {
-      LinkedList<Term> terms = new LinkedList<Term>();
-      BooleanClause[] clauses = rewrittenFuzzyQuery.getClauses();
-
-      for (int i = 0; i < clauses.length; i++) {
-        BooleanClause clause = clauses[i];
-        TermQuery termQuery = (TermQuery) clause.getQuery();
-        terms.add(termQuery.getTerm());
-      }
-
-      return terms;
+      return new LinkedList<Term>(Arrays.asList(expandedTerms));
     }
   }
 
@@ -0,0 +1,137 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FilteredTermEnum;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.Spans;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A span query over the terms a <code>FilteredTermEnum</code> matches. On
+ * rewrite the terms are read straight off the enum into a
+ * <code>SpanOrQuery</code>, under the limits of the
+ * <code>MultiTermSpanRewrite</code>, with no <code>BooleanQuery</code> in
+ * between; the expansion is looked up in the <code>SpanRewriteCache</code>
+ * first, if there is one.
+ */
+public abstract class SpanMultiTermQuery extends SpanQuery {
+  protected final Term term;
+  private MultiTermSpanRewrite rewriteMethod = MultiTermSpanRewrite.ALL;
+  private SpanRewriteCache rewriteCache;
+
+  /**
+   * @param term
+   *          field and pattern of the query
+   */
+  protected SpanMultiTermQuery(Term term) {
+    this.term = term;
+  }
+
+  public Term getTerm() {
+    return term;
+  }
+
+  /**
+   * @param rewriteMethod
+   *          how to expand into the matching terms
+   */
+  public void setRewriteMethod(MultiTermSpanRewrite rewriteMethod) {
+    this.rewriteMethod = rewriteMethod;
+  }
+
+  public MultiTermSpanRewrite getRewriteMethod() {
+    return rewriteMethod;
+  }
+
+  /**
+   * @param rewriteCache
+   *          cache of expansions to use, or <code>null</code>
+   */
+  public void setRewriteCache(SpanRewriteCache rewriteCache) {
+    this.rewriteCache = rewriteCache;
+  }
+
+  /**
+   * @param reader
+   *          reader to enumerate the terms of
+   * @return the terms this query matches, positioned on the first
+   */
+  protected abstract FilteredTermEnum getEnum(IndexReader reader)
+      throws IOException;
+
+  public Query rewrite(IndexReader reader) throws IOException {
+    if (rewriteCache == null) {
+      return rewriteMethod.toQuery(getField(), rewriteMethod.expand(this,
+          getEnum(reader)));
+    }
+
+    SpanRewriteCache.Key key = new SpanRewriteCache.Key(getClass(), term, 0,
+        0, rewriteMethod);
+    ExpandedTerms expanded = rewriteCache.get(reader, key);
+
+    if (expanded == null) {
+      expanded = rewriteMethod.expand(this, getEnum(reader));
+      rewriteCache.put(reader, key, expanded);
+    }
+
+    return rewriteMethod.toQuery(getField(), expanded);
+  }
+
+  public Spans getSpans(IndexReader reader) throws IOException {
+    throw new UnsupportedOperationException("Query should have been rewritten");
+  }
+
+  public String getField() {
+    return term.field();
+  }
+
+  public Collection getTerms() {
+    Collection terms = new ArrayList();
+    terms.add(term);
+
+    return terms;
+  }
+
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+
+    if ((o == null) || (getClass() != o.getClass())) {
+      return false;
+    }
+
+    SpanMultiTermQuery other = (SpanMultiTermQuery) o;
+
+    return term.equals(other.term)
+        && rewriteMethod.equals(other.rewriteMethod)
+        && (this.getBoost() == other.getBoost());
+  }
+
+  public int hashCode() {
+    return getClass().hashCode() ^ term.hashCode() ^ rewriteMethod.hashCode()
+        ^ Float.floatToRawIntBits(getBoost());
+  }
+}
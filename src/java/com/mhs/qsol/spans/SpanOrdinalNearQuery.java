@@ -0,0 +1,455 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.ToStringUtils;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Matches spans of <code>first</code> and <code>second</code> that are no
+ * more than <code>distance</code> sentences or paragraphs apart, reading the
+ * sentence and paragraph numbers from the payloads written by
+ * <code>OrdinalPayloadFilter</code>. This does the work of a
+ * <code>SpanWithinQuery</code> over a wide <code>SpanNearQuery</code> without
+ * reading the postings of the marker tokens.
+ * <p>
+ * Each span of <code>first</code> is paired with the nearest span of
+ * <code>second</code> that is close enough, and the match covers both. Spans
+ * without payloads never match.
+ */
+public class SpanOrdinalNearQuery extends SpanQuery {
+  public enum Unit {
+    SENTENCE, PARAGRAPH;
+  }
+
+  private SpanQuery first;
+  private SpanQuery second;
+  private int distance;
+  private Unit unit;
+
+  /**
+   * @param first
+   *          first clause
+   * @param second
+   *          second clause, on the same field
+   * @param distance
+   *          number of sentence or paragraph boundaries the clauses may be
+   *          apart
+   * @param unit
+   *          whether sentences or paragraphs are counted
+   */
+  public SpanOrdinalNearQuery(SpanQuery first, SpanQuery second, int distance,
+      Unit unit) {
+    this.first = first;
+    this.second = second;
+    this.distance = distance;
+    this.unit = unit;
+
+    if (!first.getField().equals(second.getField())) {
+      throw new IllegalArgumentException("Clauses must have same field.");
+    }
+  }
+
+  public SpanQuery getFirst() {
+    return first;
+  }
+
+  public SpanQuery getSecond() {
+    return second;
+  }
+
+  public int getDistance() {
+    return distance;
+  }
+
+  public Unit getUnit() {
+    return unit;
+  }
+
+  public String getField() {
+    return first.getField();
+  }
+
+  public void extractTerms(Set terms) {
+    first.extractTerms(terms);
+    second.extractTerms(terms);
+  }
+
+  public String toString(String field) {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("spanOrdinalNear([");
+    buffer.append(first.toString(field));
+    buffer.append(", ");
+    buffer.append(second.toString(field));
+    buffer.append("], ");
+    buffer.append(distance);
+    buffer.append(", ");
+    buffer.append(unit.name().toLowerCase());
+    buffer.append(")");
+    buffer.append(ToStringUtils.boost(getBoost()));
+
+    return buffer.toString();
+  }
+
+  public Spans getSpans(final IndexReader reader) throws IOException {
+    return new Spans() {
+      private Spans firstSpans = first.getSpans(reader);
+      private boolean moreFirst;
+      private Spans secondSpans = second.getSpans(reader);
+      private boolean moreSecond;
+      private boolean started;
+      private SpanBuffer firstBuffer = new SpanBuffer();
+      private SpanBuffer secondBuffer = new SpanBuffer();
+
+      // matches in the current doc, as start << 32 | end
+      private int doc = -1;
+      private long[] matches = new long[16];
+      private int matchCount;
+      private int match;
+
+      public boolean next() throws IOException {
+        if (++match < matchCount) {
+          return true;
+        }
+
+        return toMatch(doc + 1);
+      }
+
+      public boolean skipTo(int target) throws IOException {
+        if (doc >= target) {
+          return next();
+        }
+
+        return toMatch(target);
+      }
+
+      /**
+       * Moves both clauses to the first doc at or after <code>target</code>
+       * in which they have a match.
+       */
+      private boolean toMatch(int target) throws IOException {
+        matchCount = 0;
+
+        if (!started) {
+          started = true;
+          moreFirst = firstSpans.next();
+          moreSecond = secondSpans.next();
+        }
+
+        while (moreFirst && moreSecond) {
+          int firstDoc = firstSpans.doc();
+          int secondDoc = secondSpans.doc();
+
+          if (firstDoc < Math.max(target, secondDoc)) {
+            moreFirst = firstSpans.skipTo(Math.max(target, secondDoc));
+          } else if (secondDoc < firstDoc) {
+            moreSecond = secondSpans.skipTo(firstDoc);
+          } else {
+            doc = firstDoc;
+            moreFirst = firstBuffer.read(firstSpans, unit);
+            moreSecond = secondBuffer.read(secondSpans, unit);
+
+            if (findMatches()) {
+              match = 0;
+
+              return true;
+            }
+
+            target = doc + 1;
+          }
+        }
+
+        doc = Integer.MAX_VALUE;
+
+        return false;
+      }
+
+      /**
+       * Pairs each first span with the narrowest close enough second span,
+       * the lowest one on a tie. Both buffers are in position order, so the
+       * second spans that may be close enough lie in a window that only moves
+       * forward, and within it the search runs outwards from the first span's
+       * position until no wider pairing can win.
+       */
+      private boolean findMatches() {
+        boolean windowed = firstBuffer.lowSorted && secondBuffer.lowSorted;
+        // second spans [from, to) have a low number within distance
+        int from = 0;
+        int to = windowed ? 0 : secondBuffer.size;
+        // first second span starting at or after the first span
+        int split = 0;
+
+        for (int i = 0; i < firstBuffer.size; i++) {
+          int start = firstBuffer.starts[i];
+          int end = firstBuffer.ends[i];
+
+          if (windowed) {
+            while ((from < secondBuffer.size)
+                && (secondBuffer.low[from] < (firstBuffer.low[i] - distance))) {
+              from++;
+            }
+
+            to = Math.max(to, from);
+
+            while ((to < secondBuffer.size)
+                && (secondBuffer.low[to] <= (firstBuffer.low[i] + distance))) {
+              to++;
+            }
+          }
+
+          while ((split < secondBuffer.size)
+              && (secondBuffer.starts[split] < start)) {
+            split++;
+          }
+
+          int best = -1;
+          int bestWidth = Integer.MAX_VALUE;
+
+          // before the first span the width is at least end - starts[j]; on a
+          // tie the lower span wins
+          for (int j = Math.min(split, to) - 1; (j >= from)
+              && ((end - secondBuffer.starts[j]) <= bestWidth); j--) {
+            if (isClose(i, j)) {
+              int width = Math.max(end, secondBuffer.ends[j])
+                  - secondBuffer.starts[j];
+
+              if (width <= bestWidth) {
+                best = j;
+                bestWidth = width;
+              }
+            }
+          }
+
+          // after it the width is at least starts[j] - start
+          for (int j = Math.max(split, from); (j < to)
+              && ((secondBuffer.starts[j] - start) < bestWidth); j++) {
+            if (isClose(i, j)) {
+              int width = Math.max(end, secondBuffer.ends[j]) - start;
+
+              if (width < bestWidth) {
+                best = j;
+                bestWidth = width;
+              }
+            }
+          }
+
+          if (best != -1) {
+            if (matchCount == matches.length) {
+              long[] newMatches = new long[matchCount * 2];
+              System.arraycopy(matches, 0, newMatches, 0, matchCount);
+              matches = newMatches;
+            }
+
+            long matchStart = Math.min(start, secondBuffer.starts[best]);
+            long matchEnd = Math.max(end, secondBuffer.ends[best]);
+            matches[matchCount++] = (matchStart << 32) | matchEnd;
+          }
+        }
+
+        if (matchCount > 1) {
+          // Spans order, without repeats
+          Arrays.sort(matches, 0, matchCount);
+
+          int unique = 1;
+
+          for (int i = 1; i < matchCount; i++) {
+            if (matches[i] != matches[unique - 1]) {
+              matches[unique++] = matches[i];
+            }
+          }
+
+          matchCount = unique;
+        }
+
+        return matchCount > 0;
+      }
+
+      private boolean isClose(int i, int j) {
+        int low = Math.min(firstBuffer.low[i], secondBuffer.low[j]);
+        int high = Math.max(firstBuffer.high[i], secondBuffer.high[j]);
+
+        return (high - low) <= distance;
+      }
+
+      public int doc() {
+        return doc;
+      }
+
+      public int start() {
+        return (int) (matches[match] >>> 32);
+      }
+
+      public int end() {
+        return (int) matches[match];
+      }
+
+      public Collection<byte[]> getPayload() throws IOException {
+        return null;
+      }
+
+      public boolean isPayloadAvailable() {
+        return false;
+      }
+
+      public String toString() {
+        return "spans(" + SpanOrdinalNearQuery.this.toString() + ")";
+      }
+    };
+  }
+
+  /**
+   * The spans of one clause in one doc, with the lowest and highest sentence
+   * or paragraph number in each.
+   */
+  private static final class SpanBuffer {
+    int size;
+    // whether the lowest numbers rise with the span starts, as they do unless
+    // payloads are missing from the start of a span
+    boolean lowSorted;
+    int[] starts = new int[8];
+    int[] ends = new int[8];
+    int[] low = new int[8];
+    int[] high = new int[8];
+
+    /**
+     * Reads the spans of the current doc, leaving <code>spans</code> on the
+     * next doc.
+     *
+     * @return false if <code>spans</code> is exhausted
+     */
+    boolean read(Spans spans, Unit unit) throws IOException {
+      int doc = spans.doc();
+      boolean more = true;
+      size = 0;
+      lowSorted = true;
+
+      while (more && (spans.doc() == doc)) {
+        if (spans.isPayloadAvailable()) {
+          int lowest = Integer.MAX_VALUE;
+          int highest = -1;
+
+          for (byte[] payload : spans.getPayload()) {
+            int ordinal = (unit == Unit.SENTENCE) ? OrdinalPayloadFilter
+                .decodeSentence(payload) : OrdinalPayloadFilter
+                .decodeParagraph(payload);
+            lowest = Math.min(lowest, ordinal);
+            highest = Math.max(highest, ordinal);
+          }
+
+          if (highest != -1) {
+            add(spans.start(), spans.end(), lowest, highest);
+          }
+        }
+
+        more = spans.next();
+      }
+
+      return more;
+    }
+
+    private void add(int start, int end, int lowest, int highest) {
+      if ((size > 0) && (lowest < low[size - 1])) {
+        lowSorted = false;
+      }
+
+      if (size == starts.length) {
+        starts = grow(starts);
+        ends = grow(ends);
+        low = grow(low);
+        high = grow(high);
+      }
+
+      starts[size] = start;
+      ends[size] = end;
+      low[size] = lowest;
+      high[size] = highest;
+      size++;
+    }
+
+    private static int[] grow(int[] array) {
+      int[] newArray = new int[array.length * 2];
+      System.arraycopy(array, 0, newArray, 0, array.length);
+
+      return newArray;
+    }
+  }
+
+  public Query rewrite(IndexReader reader) throws IOException {
+    SpanOrdinalNearQuery clone = null;
+
+    SpanQuery rewrittenFirst = (SpanQuery) first.rewrite(reader);
+
+    if (rewrittenFirst != first) {
+      clone = (SpanOrdinalNearQuery) this.clone();
+      clone.first = rewrittenFirst;
+    }
+
+    SpanQuery rewrittenSecond = (SpanQuery) second.rewrite(reader);
+
+    if (rewrittenSecond != second) {
+      if (clone == null) {
+        clone = (SpanOrdinalNearQuery) this.clone();
+      }
+
+      clone.second = rewrittenSecond;
+    }
+
+    if (clone != null) {
+      return clone; // some clauses rewrote
+    } else {
+      return this; // no clauses rewrote
+    }
+  }
+
+  /** Returns true iff <code>o</code> is equal to this. */
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+
+    if (!(o instanceof SpanOrdinalNearQuery)) {
+      return false;
+    }
+
+    SpanOrdinalNearQuery other = (SpanOrdinalNearQuery) o;
+
+    return this.first.equals(other.first) && this.second.equals(other.second)
+        && (this.getBoost() == other.getBoost())
+        && (distance == other.distance) && (unit == other.unit);
+  }
+
+  public int hashCode() {
+    int h = first.hashCode();
+    h = (h << 1) | (h >>> 31); // rotate left
+    h ^= second.hashCode();
+    h = (h << 1) | (h >>> 31); // rotate left
+    h ^= Float.floatToRawIntBits(getBoost());
+    h ^= distance;
+    h ^= unit.hashCode();
+
+    return h;
+  }
+}
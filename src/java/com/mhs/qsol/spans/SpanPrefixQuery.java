@@ -0,0 +1,57 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FilteredTermEnum;
+import org.apache.lucene.search.PrefixTermEnum;
+
+import java.io.IOException;
+
+/**
+ * Matches the terms starting with a prefix, as a trailing <code>*</code>
+ * wildcard does. The term dictionary is entered with a single seek to the
+ * prefix and read only until the first term past it; no term is pattern
+ * matched.
+ */
+public class SpanPrefixQuery extends SpanMultiTermQuery {
+  /**
+   * @param prefix
+   *          field and prefix of the terms to match
+   */
+  public SpanPrefixQuery(Term prefix) {
+    super(prefix);
+  }
+
+  public Term getPrefix() {
+    return term;
+  }
+
+  protected FilteredTermEnum getEnum(IndexReader reader) throws IOException {
+    return new PrefixTermEnum(reader, term);
+  }
+
+  public String toString(String field) {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("spanPrefixQuery(");
+    buffer.append(term);
+    buffer.append("*)");
+
+    return buffer.toString();
+  }
+}
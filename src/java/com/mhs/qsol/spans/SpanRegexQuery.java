@@ -0,0 +1,146 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FilteredTermEnum;
+
+import java.io.IOException;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches the terms a <code>java.util.regex</code> expression matches in
+ * full. The expression is compiled once, when the query is created. The
+ * literal characters the expression starts with, if any, are used as a prefix:
+ * the term dictionary is entered with a seek to the prefix and read only until
+ * the first term past it, so <code>micro(soft|chip)s?</code> never looks at a
+ * term that does not start with <code>micro</code>. An expression starting
+ * with a wildcard or group reads every term of the field.
+ */
+public class SpanRegexQuery extends SpanMultiTermQuery {
+  private static final String META_CHARS = "\\^$.|?*+()[]{}";
+  private static final String QUANTIFIERS = "?*+{";
+
+  private final Pattern pattern;
+  private final String prefix;
+
+  /**
+   * @param term
+   *          field and regular expression of the terms to match
+   * @throws java.util.regex.PatternSyntaxException
+   *           if the expression is not valid
+   */
+  public SpanRegexQuery(Term term) {
+    super(term);
+    this.pattern = Pattern.compile(term.text());
+    this.prefix = literalPrefix(term.text());
+  }
+
+  /**
+   * @return the literal characters every term the expression matches starts
+   *         with, possibly none
+   */
+  static String literalPrefix(String regex) {
+    if (hasTopLevelAlternation(regex)) {
+      return "";
+    }
+
+    int length = 0;
+
+    while ((length < regex.length())
+        && (META_CHARS.indexOf(regex.charAt(length)) == -1)) {
+      length++;
+    }
+
+    // a quantified last character is not always there
+    if ((length > 0) && (length < regex.length())
+        && (QUANTIFIERS.indexOf(regex.charAt(length)) != -1)) {
+      length--;
+    }
+
+    return regex.substring(0, length);
+  }
+
+  private static boolean hasTopLevelAlternation(String regex) {
+    int depth = 0;
+    boolean inClass = false;
+
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        inClass = (c != ']');
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if ((c == '|') && (depth == 0)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  protected FilteredTermEnum getEnum(IndexReader reader) throws IOException {
+    return new RegexTermEnum(reader);
+  }
+
+  public String toString(String field) {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("spanRegexQuery(");
+    buffer.append(term);
+    buffer.append(")");
+
+    return buffer.toString();
+  }
+
+  private class RegexTermEnum extends FilteredTermEnum {
+    private final String field = term.field();
+    private final Matcher matcher = pattern.matcher("");
+    private boolean endEnum = false;
+
+    RegexTermEnum(IndexReader reader) throws IOException {
+      setEnum(reader.terms(new Term(field, prefix)));
+    }
+
+    protected boolean termCompare(Term term) {
+      if ((term.field() == field) && term.text().startsWith(prefix)) {
+        return matcher.reset(term.text()).matches();
+      }
+
+      endEnum = true;
+
+      return false;
+    }
+
+    public float difference() {
+      return 1.0f;
+    }
+
+    protected boolean endEnum() {
+      return endEnum;
+    }
+  }
+}
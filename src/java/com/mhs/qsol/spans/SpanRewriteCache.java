@@ -0,0 +1,177 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.mhs.qsol.LruCache;
+
+/**
+ * A cache of the terms that wildcard and fuzzy terms in proximity searches
+ * expand into, so the same <code>micro*</code> in query after query does not
+ * walk the term dictionary again. Entries are kept per index reader, keyed
+ * weakly on <code>IndexReader.getCoreCacheKey()</code>: once a reopened
+ * reader replaces the old one and the old one is collected, its entries go
+ * with it. Each reader holds at most <code>maxSize</code> expansions, least
+ * recently used first out.
+ * <p>
+ * A cache may be shared by any number of parsers and threads. Two threads
+ * missing on the same term at once both expand it; the second expansion
+ * replaces the first.
+ *
+ * @see com.mhs.qsol.QsolParser#setSpanRewriteCache(SpanRewriteCache)
+ */
+public class SpanRewriteCache {
+  private final int maxSize;
+  private final LruCache.Stats stats = new LruCache.Stats();
+  private final Map<Object, LruCache<Key, ExpandedTerms>> readers =
+      new WeakHashMap<Object, LruCache<Key, ExpandedTerms>>();
+
+  /**
+   * @param maxSize
+   *          maximum number of expansions to keep for each reader
+   */
+  public SpanRewriteCache(int maxSize) {
+    LruCache.checkMaxSize(maxSize);
+    this.maxSize = maxSize;
+  }
+
+  ExpandedTerms get(IndexReader reader, Key key) {
+    return cacheFor(reader).get(key);
+  }
+
+  void put(IndexReader reader, Key key, ExpandedTerms expanded) {
+    cacheFor(reader).put(key, expanded);
+  }
+
+  private synchronized LruCache<Key, ExpandedTerms> cacheFor(IndexReader reader) {
+    Object coreKey = reader.getCoreCacheKey();
+    LruCache<Key, ExpandedTerms> cache = readers.get(coreKey);
+
+    if (cache == null) {
+      cache = new LruCache<Key, ExpandedTerms>(maxSize, stats);
+      readers.put(coreKey, cache);
+    }
+
+    return cache;
+  }
+
+  /**
+   * Removes all cached expansions. The counters are left as they are.
+   */
+  public synchronized void clear() {
+    readers.clear();
+  }
+
+  /**
+   * @return number of expansions cached, over all readers still reachable
+   */
+  public synchronized int size() {
+    int size = 0;
+
+    for (LruCache<Key, ExpandedTerms> cache : readers.values()) {
+      size += cache.size();
+    }
+
+    return size;
+  }
+
+  /**
+   * @return number of readers looked up in the cache and still reachable
+   */
+  public synchronized int getReaderCount() {
+    return readers.size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHits() {
+    return stats.getHits();
+  }
+
+  public long getMisses() {
+    return stats.getMisses();
+  }
+
+  public long getEvictions() {
+    return stats.getEvictions();
+  }
+
+  /**
+   * @return hits divided by lookups, or 0 if there have been no lookups
+   */
+  public double getHitRate() {
+    return stats.getHitRate();
+  }
+
+  public synchronized String toString() {
+    return "SpanRewriteCache(readers=" + readers.size() + ", size=" + size()
+        + ", maxSize=" + maxSize + ", " + stats + ")";
+  }
+
+  /**
+   * What was expanded: the kind of query, its term or pattern, the fuzzy
+   * parameters (0 for any other kind) and the rewrite strategy.
+   */
+  static final class Key {
+    private final Class<?> queryClass;
+    private final Term term;
+    private final float minimumSimilarity;
+    private final int prefixLength;
+    private final MultiTermSpanRewrite rewriteMethod;
+    private final int hash;
+
+    Key(Class<?> queryClass, Term term, float minimumSimilarity,
+        int prefixLength, MultiTermSpanRewrite rewriteMethod) {
+      this.queryClass = queryClass;
+      this.term = term;
+      this.minimumSimilarity = minimumSimilarity;
+      this.prefixLength = prefixLength;
+      this.rewriteMethod = rewriteMethod;
+
+      int h = term.hashCode();
+      h = (31 * h) + queryClass.hashCode();
+      h = (31 * h) + Float.floatToIntBits(minimumSimilarity);
+      h = (31 * h) + prefixLength;
+      h = (31 * h) + rewriteMethod.hashCode();
+      this.hash = h;
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+
+      return (queryClass == other.queryClass) && term.equals(other.term)
+          && (minimumSimilarity == other.minimumSimilarity)
+          && (prefixLength == other.prefixLength)
+          && rewriteMethod.equals(other.rewriteMethod);
+    }
+  }
+}
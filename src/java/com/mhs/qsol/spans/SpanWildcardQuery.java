@@ -16,71 +16,19 @@ package com.mhs.qsol.spans;
  * limitations under the License.
  */
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.ConstantScoreQuery;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.WildcardQuery;
-import org.apache.lucene.search.spans.SpanOrQuery;
-import org.apache.lucene.search.spans.SpanQuery;
-import org.apache.lucene.search.spans.SpanTermQuery;
-import org.apache.lucene.search.spans.Spans;
-
-public class SpanWildcardQuery extends SpanQuery {
-  private Term term;
+import org.apache.lucene.search.FilteredTermEnum;
+import org.apache.lucene.search.WildcardTermEnum;
 
+public class SpanWildcardQuery extends SpanMultiTermQuery {
   public SpanWildcardQuery(Term term) {
-    this.term = term;
-  }
-
-  public Term getTerm() {
-    return term;
+    super(term);
   }
 
-  public Query rewrite(IndexReader reader) throws IOException {
-    WildcardQuery wildQuery = new WildcardQuery(term);
-    wildQuery.setRewriteMethod(WildcardQuery.CONSTANT_SCORE_BOOLEAN_QUERY_REWRITE);
-    BooleanQuery bq = null;
-    bq = (BooleanQuery) ((ConstantScoreQuery) wildQuery.rewrite(reader)).getQuery();
-    
-    BooleanClause[] clauses = bq.getClauses();
-    SpanQuery[] sqs = new SpanQuery[clauses.length];
-
-    for (int i = 0; i < clauses.length; i++) {
-      BooleanClause clause = clauses[i];
-
-      // Clauses from RegexQuery.rewrite are always TermQuery's
-      TermQuery tq = (TermQuery) clause.getQuery();
-
-      sqs[i] = new SpanTermQuery(tq.getTerm());
-      sqs[i].setBoost(tq.getBoost());
-    }
-
-    SpanOrQuery query = new SpanOrQuery(sqs);
-    query.setBoost(wildQuery.getBoost());
-
-    return query;
-  }
-
-  public Spans getSpans(IndexReader reader) throws IOException {
-    throw new UnsupportedOperationException("Query should have been rewritten");
-  }
-
-  public String getField() {
-    return term.field();
-  }
-
-  public Collection getTerms() {
-    Collection terms = new ArrayList();
-    terms.add(term);
-
-    return terms;
+  protected FilteredTermEnum getEnum(IndexReader reader) throws IOException {
+    return new WildcardTermEnum(reader, term);
   }
 
   public String toString(String field) {
@@ -33,8 +33,10 @@ import java.util.Set;
  * number of intersections between spans.
  * 
  * 
- * If only one document is in the index then this query will see the document as
- * wrapping from end to beginning and you may get spurious results.
+ * The exclude spans of each document the include spans visit are read once
+ * into position arrays, and the exclude spans an include span crosses are
+ * counted with a binary search, so documents with thousands of sentence or
+ * paragraph markers are not rescanned for each include span.
  * 
  * @author SpanNotQuery slightly modified by mmiller (markrmiller@gmail.com)
  * 
@@ -70,6 +72,11 @@ public class SpanWithinQuery extends SpanQuery {
     return exclude;
   }
 
+  /** Return the number of exclude spans a match may overlap. */
+  public int getProximity() {
+    return proximity;
+  }
+
   public String getField() {
     return include.getField();
   }
@@ -97,82 +104,115 @@ public class SpanWithinQuery extends SpanQuery {
       private boolean moreInclude = true;
       private Spans excludeSpans = exclude.getSpans(reader);
       private boolean moreExclude = true;
+      private boolean excludeStarted;
+
+      // exclude spans of the current include doc, in Spans order
+      private int markerDoc = -1;
+      private int markerCount;
+      private int[] markerStarts = new int[16];
+      private int[] markerEnds = new int[16];
+      private boolean markerEndsInOrder;
 
       public boolean next() throws IOException {
         if (moreInclude) { // move to next include
           moreInclude = includeSpans.next();
         }
 
-        while (moreInclude && moreExclude) {
-          if (includeSpans.doc() > excludeSpans.doc()) { // skip exclude
-            moreExclude = excludeSpans.skipTo(includeSpans.doc());
-          }
-
-          int count = 0;
+        return toMatch();
+      }
 
-          while (moreExclude // while exclude is before
-              && (includeSpans.doc() == excludeSpans.doc())) {
-            if ((!(excludeSpans.end() <= includeSpans.start()))) {
-              count += 1;
+      public boolean skipTo(int target) throws IOException {
+        if (moreInclude) { // skip include
+          moreInclude = includeSpans.skipTo(target);
+        }
 
-              if (count > proximity) {
-                break;
-              }
-            }
+        return toMatch();
+      }
 
-            moreExclude = excludeSpans.next(); // increment exclude
+      /**
+       * Moves include forward until it crosses no more than proximity exclude
+       * spans.
+       */
+      private boolean toMatch() throws IOException {
+        while (moreInclude) {
+          if (includeSpans.doc() != markerDoc) {
+            readMarkers(includeSpans.doc());
           }
 
-          if (!moreExclude // if no intersection
-              || (includeSpans.doc() != excludeSpans.doc())
-              || (includeSpans.end() <= excludeSpans.start())) {
-            break; // we found a match
+          if (crossed(includeSpans.start(), includeSpans.end()) <= proximity) {
+            return true; // we found a match
           }
 
           moreInclude = includeSpans.next(); // intersected: keep scanning
         }
 
-        return moreInclude;
+        return false;
       }
 
-      public boolean skipTo(int target) throws IOException {
-        if (moreInclude) { // skip include
-          moreInclude = includeSpans.skipTo(target);
-        }
-
-        if (!moreInclude) {
-          return false;
+      /**
+       * Reads every exclude span in <code>doc</code> once, skipping the docs
+       * before it.
+       */
+      private void readMarkers(int doc) throws IOException {
+        markerDoc = doc;
+        markerCount = 0;
+        markerEndsInOrder = true;
+
+        if (moreExclude && (!excludeStarted || (excludeSpans.doc() < doc))) {
+          moreExclude = excludeSpans.skipTo(doc);
+          excludeStarted = true;
         }
 
-        if (moreExclude // skip exclude
-            && (includeSpans.doc() > excludeSpans.doc())) {
-          moreExclude = excludeSpans.skipTo(includeSpans.doc());
-        }
+        while (moreExclude && (excludeSpans.doc() == doc)) {
+          if (markerCount == markerStarts.length) {
+            int[] newStarts = new int[markerCount * 2];
+            System.arraycopy(markerStarts, 0, newStarts, 0, markerCount);
+            markerStarts = newStarts;
 
-        int count = 0;
+            int[] newEnds = new int[markerCount * 2];
+            System.arraycopy(markerEnds, 0, newEnds, 0, markerCount);
+            markerEnds = newEnds;
+          }
 
-        while (moreExclude // while exclude is before
-            && (includeSpans.doc() == excludeSpans.doc())) {
-          if ((!(excludeSpans.end() <= includeSpans.start()))) {
-            count += 1;
+          markerStarts[markerCount] = excludeSpans.start();
+          markerEnds[markerCount] = excludeSpans.end();
 
-            if (count > proximity) {
-              break;
-            }
+          if ((markerCount > 0)
+              && (markerEnds[markerCount] < markerEnds[markerCount - 1])) {
+            markerEndsInOrder = false;
           }
 
-          moreExclude = excludeSpans.next(); // increment exclude
+          markerCount++;
+          moreExclude = excludeSpans.next();
         }
+      }
+
+      /**
+       * Counts the exclude spans that overlap <code>start</code> to
+       * <code>end</code>. Exclude spans are ordered by start, and nearly
+       * always by end as well (single term markers), so the count is two
+       * binary searches.
+       */
+      private int crossed(int start, int end) {
+        // exclude spans before hi start before the include span ends
+        int hi = firstAbove(markerStarts, markerCount, end - 1);
+
+        if (!markerEndsInOrder) {
+          int count = 0;
+
+          for (int i = 0; i < hi; i++) {
+            if (markerEnds[i] > start) {
+              count++;
+            }
+          }
 
-        if (!moreExclude // if no intersection
-            || (includeSpans.doc() != excludeSpans.doc())
-            || (includeSpans.end() <= excludeSpans.start())) {
-          return true; // we found a match
+          return count;
         }
 
-        boolean returnboolean = next();
+        // exclude spans from lo end after the include span starts
+        int lo = firstAbove(markerEnds, hi, start);
 
-        return returnboolean; // scan to next match
+        return hi - lo;
       }
 
       public int doc() {
@@ -209,6 +249,28 @@ public class SpanWithinQuery extends SpanQuery {
     };
   }
 
+  /**
+   * Returns the index of the first of the first <code>length</code> values
+   * that is greater than <code>value</code>, or <code>length</code> if there
+   * is none. The values must be in ascending order.
+   */
+  private static int firstAbove(int[] values, int length, int value) {
+    int low = 0;
+    int high = length;
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+
+      if (values[mid] <= value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
   public Query rewrite(IndexReader reader) throws IOException {
     SpanWithinQuery clone = null;
 
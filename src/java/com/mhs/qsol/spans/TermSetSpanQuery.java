@@ -0,0 +1,235 @@
+package com.mhs.qsol.spans;
+
+/**
+ * Copyright 2006 Mark Miller (markrmiller@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.ToStringUtils;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Matches the positions of any of a set of terms, as a
+ * <code>SpanOrQuery</code> of <code>SpanTermQuery</code>s would, for term sets
+ * too large for one. One <code>TermPositions</code> per term is kept in a
+ * queue ordered by document and only ever moved forward, as the spans of a
+ * <code>SpanOrQuery</code> are, but the positions of all the terms in a
+ * document are merged into one sorted list instead of being queued one by
+ * one. Positions are read only for the documents the spans are moved to;
+ * within a proximity search that is only the documents the other clauses also
+ * match.
+ *
+ * @see MultiTermSpanRewrite.Mode#DOC_SET
+ */
+class TermSetSpanQuery extends SpanQuery {
+  private final String field;
+  private final Term[] terms;
+
+  /**
+   * @param field
+   *          field of the terms
+   * @param terms
+   *          terms to match
+   */
+  TermSetSpanQuery(String field, Term[] terms) {
+    this.field = field;
+    this.terms = terms;
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public void extractTerms(Set terms) {
+    terms.addAll(Arrays.asList(this.terms));
+  }
+
+  public String toString(String field) {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("spanTermSet(");
+    buffer.append(this.field);
+    buffer.append(", ");
+    buffer.append(terms.length);
+    buffer.append(" terms)");
+    buffer.append(ToStringUtils.boost(getBoost()));
+
+    return buffer.toString();
+  }
+
+  public Spans getSpans(final IndexReader reader) throws IOException {
+    return new Spans() {
+      private TermPositionsQueue queue;
+      private int doc = -1;
+      private int[] positions = new int[16];
+      private int count;
+      private int index;
+
+      public boolean next() throws IOException {
+        if (++index < count) {
+          return true;
+        }
+
+        return toDoc(doc + 1);
+      }
+
+      public boolean skipTo(int target) throws IOException {
+        if (doc >= target) {
+          return next();
+        }
+
+        return toDoc(target);
+      }
+
+      private boolean toDoc(int target) throws IOException {
+        if (queue == null) {
+          queue = new TermPositionsQueue(reader, terms);
+        }
+
+        while ((queue.size() > 0) && (queue.top().doc() < target)) {
+          TermPositions top = queue.top();
+
+          if (top.skipTo(target)) {
+            queue.updateTop();
+          } else {
+            queue.pop().close();
+          }
+        }
+
+        if (queue.size() == 0) {
+          doc = Integer.MAX_VALUE;
+
+          return false;
+        }
+
+        doc = queue.top().doc();
+        readPositions();
+        index = 0;
+
+        return true;
+      }
+
+      /**
+       * Reads the positions of every term in the current document, moving
+       * those terms on to their next document.
+       */
+      private void readPositions() throws IOException {
+        count = 0;
+
+        while ((queue.size() > 0) && (queue.top().doc() == doc)) {
+          TermPositions top = queue.top();
+          int freq = top.freq();
+
+          if ((count + freq) > positions.length) {
+            int[] newPositions = new int[Math.max(positions.length * 2, count
+                + freq)];
+            System.arraycopy(positions, 0, newPositions, 0, count);
+            positions = newPositions;
+          }
+
+          for (int i = 0; i < freq; i++) {
+            positions[count++] = top.nextPosition();
+          }
+
+          if (top.next()) {
+            queue.updateTop();
+          } else {
+            queue.pop().close();
+          }
+        }
+
+        Arrays.sort(positions, 0, count);
+      }
+
+      public int doc() {
+        return doc;
+      }
+
+      public int start() {
+        return positions[index];
+      }
+
+      public int end() {
+        return positions[index] + 1;
+      }
+
+      public Collection<byte[]> getPayload() throws IOException {
+        return null;
+      }
+
+      public boolean isPayloadAvailable() {
+        return false;
+      }
+
+      public String toString() {
+        return "spans(" + TermSetSpanQuery.this.toString() + ")";
+      }
+    };
+  }
+
+  /**
+   * The <code>TermPositions</code> of the terms, ordered by their current
+   * document. Terms in no document are left out.
+   */
+  private static final class TermPositionsQueue extends
+      PriorityQueue<TermPositions> {
+    TermPositionsQueue(IndexReader reader, Term[] terms) throws IOException {
+      initialize(terms.length);
+
+      for (Term term : terms) {
+        TermPositions termPositions = reader.termPositions(term);
+
+        if (termPositions.next()) {
+          add(termPositions);
+        } else {
+          termPositions.close();
+        }
+      }
+    }
+
+    protected boolean lessThan(TermPositions a, TermPositions b) {
+      return a.doc() < b.doc();
+    }
+  }
+
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+
+    if (!(o instanceof TermSetSpanQuery)) {
+      return false;
+    }
+
+    TermSetSpanQuery other = (TermSetSpanQuery) o;
+
+    return field.equals(other.field) && Arrays.equals(terms, other.terms)
+        && (this.getBoost() == other.getBoost());
+  }
+
+  public int hashCode() {
+    return field.hashCode() ^ Arrays.hashCode(terms)
+        ^ Float.floatToRawIntBits(getBoost());
+  }
+}
@@ -7,16 +7,29 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import junit.framework.TestCase;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.WhitespaceTokenizer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Token;
@@ -29,18 +42,36 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.Spans;
 import org.apache.lucene.search.spell.LuceneDictionary;
+import org.apache.lucene.search.spell.PlainTextDictionary;
 import org.apache.lucene.search.spell.SpellChecker;
+import org.apache.lucene.search.spell.TermFreqIterator.TermFreqIteratorWrapper;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
 
 import com.mhs.qsol.QsolParser.Operator;
+import com.mhs.qsol.queryparser.JavaCharStream;
+import com.mhs.qsol.queryparser.QueryParser;
+import com.mhs.qsol.queryparser.QueryParserConstants;
+import com.mhs.qsol.queryparser.StringCharStream;
+import com.mhs.qsol.spans.MultiTermSpanRewrite;
+import com.mhs.qsol.spans.OrdinalPayloadFilter;
+import com.mhs.qsol.spans.SpanPrefixQuery;
+import com.mhs.qsol.spans.SpanRegexQuery;
+import com.mhs.qsol.spans.SpanRewriteCache;
+import com.mhs.qsol.spans.SpanWithinQuery;
 
 /**
  * @author Mark Miller (markrmiller@gmail.com) Aug 26, 2006
@@ -283,6 +314,209 @@ public class QSolParserTest extends TestCase {
     assertEquals(expected, parse(example));
   }
 
+  public void testMultiWordThesaurus() {
+    Set<String> words = new LinkedHashSet<String>();
+    words.add("nyc");
+    words.add("gotham");
+    parser.addThesaurusEntry("new york", words, false);
+    parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern
+        .compile("(\\w+)ise"), "$1ize", false));
+    parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern
+        .compile("real(\\w*)"), "(real$1 | actual$1)", false));
+
+    String[] queries = { "New York pizza", "new jersey | york",
+        "old new york city", "realise" };
+    String[] expected = {
+        "+(allFields:nyc allFields:gotham) +allFields:pizza",
+        "(+allFields:new +allFields:jersey) allFields:york",
+        "+allFields:old +(allFields:nyc allFields:gotham) +allFields:city",
+        "allFields:realize allFields:actualize" };
+
+    for (int i = 0; i < queries.length; i++) {
+      parser.setRewriteInPlace(false);
+      assertEquals(expected[i], parse(queries[i]).toString());
+      parser.setRewriteInPlace(true);
+      assertEquals(expected[i], parse(queries[i]).toString());
+    }
+  }
+
+  public void testFindReplaceRegExNotCombined() {
+    // a trailing \Q would quote whatever follows it in a combined pattern
+    parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern
+        .compile("colou?r\\Q"), "hue", false));
+    // named groups may only be defined once per pattern
+    parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern
+        .compile("(?<n>foo)"), "baz", false));
+    parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern
+        .compile("(?<n>bar)"), "qux", false));
+
+    example = "hello colour foo bar";
+    expected = "+allFields:hello +allFields:hue +allFields:baz +allFields:qux";
+    assertEquals(expected, parse(example));
+
+    example = "hello bar";
+    expected = "+allFields:hello +allFields:qux";
+    assertEquals(expected, parse(example));
+  }
+
+  public void testFindReplaceReadOnly() {
+    parser.addFindReplace(new FindReplace("hue", "colour", false, false));
+    assertEquals("allFields:colour", parse("hue"));
+
+    try {
+      parser.getFindReplace().clear();
+      fail("find/replace map changed behind the parser's back");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    assertEquals(1, parser.getFindReplace().size());
+    assertEquals("allFields:colour", parse("hue"));
+  }
+
+  public void testFindReplaceRegExWordBoundary() {
+    // the chain resumes after rule 64, so a word boundary must not see a
+    // word character in front of the token
+    for (int i = 0; i < 64; i++) {
+      parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern.compile("dummy"
+          + i), "x", false));
+    }
+
+    parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern
+        .compile("colou?r"), "foo", false));
+
+    for (int i = 0; i < 10; i++) {
+      parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern.compile("dummy"
+          + i + "x"), "x", false));
+    }
+
+    parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern
+        .compile("\\bfoo\\b"), "hue", false));
+    // never matches: there is no word character before the token
+    parser.addFindReplaceRegEx(new FindReplaceRegEx(Pattern
+        .compile("\\Bhue"), "x", false));
+
+    example = "colour & foo";
+    expected = "+allFields:hue +allFields:hue";
+    assertEquals(expected, parse(example));
+  }
+
+  public void testStructuredThesaurus() throws IOException {
+    Thesaurus thesaurus = Thesaurus.load(new StringReader(
+        "# furniture\ncouch, Sofa\n\ntest => test1, test2, test3\n"));
+    assertEquals(3, thesaurus.size());
+    parser.setThesaurus(thesaurus);
+
+    example = "couch & cat";
+    expected = "+(allFields:couch allFields:sofa) +allFields:cat";
+    assertEquals(expected, parse(example));
+
+    example = "test ~4 dog | cat";
+    expected = "spanNear([spanOr([allFields:test1, allFields:test2, allFields:test3]), allFields:dog], 4, false) allFields:cat";
+    assertEquals(expected, parse(example));
+
+    try {
+      Thesaurus.load(new StringReader("couch, sofa\nnew york => nyc\n"));
+      fail("multiple word entries should be rejected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().indexOf("line 2") != -1);
+    }
+  }
+
+  public void testProximityClauseLimit() {
+    example = "(lime | kiwi | fig) ~5 (apple | pear)";
+    expected = "spanOr([spanOr([spanNear([allFields:lime, allFields:apple], 5, false), spanNear([allFields:lime, allFields:pear], 5, false)]), spanOr([spanNear([allFields:kiwi, allFields:apple], 5, false), spanNear([allFields:kiwi, allFields:pear], 5, false)])]) spanOr([spanNear([allFields:fig, allFields:apple], 5, false), spanNear([allFields:fig, allFields:pear], 5, false)])";
+    assertEquals(expected, parse(example));
+
+    parser.setMaxProximityClauses(4);
+    expected = "spanNear([spanOr([allFields:lime, allFields:kiwi, allFields:fig]), spanOr([allFields:apple, allFields:pear])], 5, false)";
+    assertEquals(expected, parse(example));
+
+    try {
+      parse("(lime & kiwi & fig) ~5 (apple | pear)");
+      fail("proximity search past the limit should be rejected");
+    } catch (QsolParseException e) {
+      assertTrue(e.getMessage().indexOf("limit of 4") != -1);
+    }
+
+    // the whole chain is counted before any of it is built
+    try {
+      parse("(lime & kiwi) ~5 apple ~5 (pear & plum)");
+      fail("proximity chain past the limit should be rejected");
+    } catch (QsolParseException e) {
+      assertTrue(e.getMessage(), e.getMessage().indexOf("expands to 6") != -1);
+    }
+  }
+
+  public void testFactorProximityOrs() {
+    parser.setFactorProximityOrs(true);
+    example = "(lime | kiwi | fig | lime) ~5 pear";
+    expected = "spanOr([spanNear([allFields:lime, allFields:pear], 5, false), spanNear([allFields:kiwi, allFields:pear], 5, false), spanNear([allFields:fig, allFields:pear], 5, false)])";
+    assertEquals(expected, parse(example));
+
+    example = "(lime | kiwi) ~5 (apple | pear)";
+    expected = "spanOr([spanNear([allFields:lime, allFields:apple], 5, false), spanNear([allFields:lime, allFields:pear], 5, false), spanNear([allFields:kiwi, allFields:apple], 5, false), spanNear([allFields:kiwi, allFields:pear], 5, false)])";
+    assertEquals(expected, parse(example));
+
+    example = "((lime | kiwi) & fig) ~5 pear";
+    expected = "+spanOr([spanNear([allFields:lime, allFields:pear], 5, false), spanNear([allFields:kiwi, allFields:pear], 5, false)]) +spanNear([allFields:fig, allFields:pear], 5, false)";
+    assertEquals(expected, parse(example));
+  }
+
+  public void testQueryOptimizer() throws Exception {
+    BooleanQuery inner = new BooleanQuery(true);
+    inner.add(new TermQuery(new Term("allFields", "kiwi")), Occur.SHOULD);
+    inner.add(new TermQuery(new Term("allFields", "lime")), Occur.SHOULD);
+
+    BooleanQuery query = new BooleanQuery(true);
+    query.add(new TermQuery(new Term("allFields", "lime")), Occur.SHOULD);
+    query.add(inner, Occur.SHOULD);
+    query.add(new TermQuery(new Term("allFields", "fig")), Occur.SHOULD);
+
+    QueryOptimizer optimizer = new QueryOptimizer();
+    Query optimized = optimizer.optimize(query);
+    assertEquals("allFields:lime allFields:kiwi allFields:fig", optimized
+        .toString());
+    assertEquals(6, optimizer.getClauseCountBefore());
+    assertEquals(4, optimizer.getClauseCountAfter());
+
+    // with coord, (a b) c does not score as a b c
+    inner = new BooleanQuery();
+    inner.add(new TermQuery(new Term("allFields", "kiwi")), Occur.SHOULD);
+    inner.add(new TermQuery(new Term("allFields", "lime")), Occur.SHOULD);
+    query = new BooleanQuery();
+    query.add(inner, Occur.SHOULD);
+    query.add(new TermQuery(new Term("allFields", "fig")), Occur.SHOULD);
+    assertSame(query, optimizer.optimize(query));
+
+    // nor does +(+a +b) c score as +a +b c
+    inner = new BooleanQuery();
+    inner.add(new TermQuery(new Term("allFields", "kiwi")), Occur.MUST);
+    inner.add(new TermQuery(new Term("allFields", "lime")), Occur.MUST);
+    query.clauses().get(0).setOccur(Occur.MUST);
+    query.clauses().get(0).setQuery(inner);
+    assertSame(query, optimizer.optimize(query));
+
+    // but +(+a +b) +c does score as +a +b +c
+    query.clauses().get(1).setOccur(Occur.MUST);
+    assertEquals("+allFields:kiwi +allFields:lime +allFields:fig", optimizer
+        .optimize(query).toString());
+
+    parser.setOptimizeQueries(true);
+    example = "(lime | kiwi) ~5 (apple | pear)";
+    expected = "spanOr([spanNear([allFields:lime, allFields:apple], 5, false), spanNear([allFields:lime, allFields:pear], 5, false), spanNear([allFields:kiwi, allFields:apple], 5, false), spanNear([allFields:kiwi, allFields:pear], 5, false)])";
+    assertEquals(expected, parse(example));
+
+    optimized = parser.parse("allFields", example, analyzer);
+    SpanQuery[] clauses = ((SpanOrQuery) optimized).getClauses();
+    assertSame(((SpanNearQuery) clauses[0]).getClauses()[0],
+        ((SpanNearQuery) clauses[1]).getClauses()[0]);
+
+    optimizer.optimize(optimized);
+    assertEquals(13, optimizer.getClauseCountBefore());
+    assertEquals(9, optimizer.getClauseCountAfter());
+  }
+
   public void testFieldBreaker() throws IOException {
     analyzer = new WhitespaceAnalyzer();
 
@@ -339,6 +573,426 @@ public class QSolParserTest extends TestCase {
 
   }
 
+  /**
+   * Compares the spans of SpanWithinQuery with those of the marker by marker
+   * scan it replaced, over documents with many sentence markers.
+   */
+  public void testSpanWithinMatchesMarkerScan() throws IOException {
+    analyzer = new WhitespaceAnalyzer();
+
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, analyzer, true,
+        MaxFieldLength.UNLIMITED);
+    Random random = new Random(42);
+    String[] filler = { "apple", "kiwi", "fig", "plum" };
+
+    for (int i = 0; i < 300; i++) {
+      int length = 50 + random.nextInt(400);
+      int lime = random.nextInt(length);
+      int pear = random.nextInt(length);
+      StringBuilder text = new StringBuilder();
+
+      for (int j = 0; j < length; j++) {
+        if (j == lime) {
+          text.append("lime ");
+        } else if ((j == pear) && (i % 5 != 0)) {
+          text.append("pear ");
+        } else if (random.nextInt(6) == 0) {
+          text.append("sent ");
+        } else {
+          text.append(filler[random.nextInt(filler.length)]).append(' ');
+        }
+      }
+
+      Document doc = new Document();
+      doc.add(new Field("allFields", text.toString(), Field.Store.NO,
+          Field.Index.ANALYZED));
+      writer.addDocument(doc);
+    }
+
+    writer.close();
+
+    IndexReader reader = IndexReader.open(directory);
+    SpanQuery near = new SpanNearQuery(new SpanQuery[] {
+        new SpanTermQuery(new Term("allFields", "lime")),
+        new SpanTermQuery(new Term("allFields", "pear")) }, 99999, false);
+    SpanQuery sent = new SpanTermQuery(new Term("allFields", "sent"));
+
+    for (int proximity = 0; proximity < 6; proximity++) {
+      SpanWithinQuery within = new SpanWithinQuery(near, sent, proximity);
+      SpanWithinQuery scan = new MarkerScanWithinQuery(near, sent, proximity);
+
+      assertEquals(spansToString(scan.getSpans(reader), 0), spansToString(
+          within.getSpans(reader), 0));
+      assertEquals(spansToString(scan.getSpans(reader), 7), spansToString(
+          within.getSpans(reader), 7));
+    }
+
+    reader.close();
+  }
+
+  /**
+   * Sentence and paragraph proximity over payload ordinals should match the
+   * same documents as marker counting.
+   */
+  public void testOrdinalProximity() throws IOException {
+    analyzer = new WhitespaceAnalyzer();
+
+    Analyzer ordinalAnalyzer = new Analyzer() {
+      public TokenStream tokenStream(String fieldName, Reader reader) {
+        return new OrdinalPayloadFilter(new WhitespaceTokenizer(
+            Version.LUCENE_33, reader), "sent", "para");
+      }
+    };
+
+    RAMDirectory markerDirectory = new RAMDirectory();
+    RAMDirectory ordinalDirectory = new RAMDirectory();
+    IndexWriter markerWriter = new IndexWriter(markerDirectory, analyzer,
+        true, MaxFieldLength.UNLIMITED);
+    IndexWriter ordinalWriter = new IndexWriter(ordinalDirectory,
+        ordinalAnalyzer, true, MaxFieldLength.UNLIMITED);
+    Random random = new Random(7);
+    // rare query terms, frequent markers
+    String[] words = { "lime", "pear", "kiwi", "fig", "sent", "sent", "sent",
+        "sent", "sent", "sent", "para", "para" };
+
+    for (int i = 0; i < 200; i++) {
+      int length = 20 + random.nextInt(200);
+      StringBuilder text = new StringBuilder();
+
+      for (int j = 0; j < length; j++) {
+        int word = random.nextInt(words.length * 4);
+        text.append((word < words.length) ? words[word] : "plum").append(' ');
+      }
+
+      Document doc = new Document();
+      doc.add(new Field("allFields", text.toString(), Field.Store.NO,
+          Field.Index.ANALYZED));
+      markerWriter.addDocument(doc);
+      ordinalWriter.addDocument(doc);
+    }
+
+    markerWriter.close();
+    ordinalWriter.close();
+
+    IndexSearcher markerSearcher = new IndexSearcher(IndexReader
+        .open(markerDirectory));
+    IndexSearcher ordinalSearcher = new IndexSearcher(IndexReader
+        .open(ordinalDirectory));
+    parser.setSentenceMarker("sent");
+    parser.setParagraphMarker("para");
+
+    QsolConfiguration config = new QsolConfiguration();
+    config.setOrdinalProximity(true);
+
+    QsolParser ordinalParser = ParserFactory.getInstance(config).getParser(
+        true);
+    ordinalParser.setSentenceMarker("sent");
+    ordinalParser.setParagraphMarker("para");
+
+    assertEquals(
+        "spanOrdinalNear([allFields:lime, allFields:pear], 2, sentence)",
+        parse(ordinalParser, "lime ~2s pear").toString());
+
+    for (int distance = 0; distance < 4; distance++) {
+      String[] queries = { "lime ~" + distance + "s pear",
+          "lime ~" + distance + "p pear",
+          "(lime | kiwi) ~" + distance + "s (pear | fig)" };
+
+      for (String query : queries) {
+        TopDocs markerHits = markerSearcher.search(parse(parser, query), 1000);
+        TopDocs ordinalHits = ordinalSearcher.search(parse(ordinalParser,
+            query), 1000);
+
+        assertTrue(markerHits.totalHits > 0);
+        assertTrue(markerHits.totalHits < 200);
+        assertEquals(query, hitDocs(markerHits), hitDocs(ordinalHits));
+      }
+    }
+
+    markerSearcher.close();
+    ordinalSearcher.close();
+  }
+
+  /**
+   * A sentence or paragraph window as long as the longest sentence or
+   * paragraph should bound the near query without changing the matches.
+   */
+  public void testSentenceWindow() throws IOException {
+    analyzer = new WhitespaceAnalyzer();
+
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, analyzer, true,
+        MaxFieldLength.UNLIMITED);
+    Random random = new Random(11);
+    String[] words = { "lime", "pear", "sent", "sent", "sent", "para" };
+
+    for (int i = 0; i < 200; i++) {
+      int length = 20 + random.nextInt(300);
+      StringBuilder text = new StringBuilder();
+
+      for (int j = 0; j < length; j++) {
+        int word = random.nextInt(words.length * 5);
+        text.append((word < words.length) ? words[word] : "plum").append(' ');
+      }
+
+      Document doc = new Document();
+      doc.add(new Field("allFields", text.toString(), Field.Store.NO,
+          Field.Index.ANALYZED));
+      writer.addDocument(doc);
+    }
+
+    // a last sentence longer than any closed one must still be measured
+    StringBuilder tail = new StringBuilder("sent para lime");
+
+    for (int i = 0; i < 400; i++) {
+      tail.append(" plum");
+    }
+
+    Document doc = new Document();
+    doc.add(new Field("allFields", tail.append(" pear").toString(),
+        Field.Store.NO, Field.Index.ANALYZED));
+    writer.addDocument(doc);
+    writer.close();
+
+    IndexReader reader = IndexReader.open(directory);
+    IndexSearcher searcher = new IndexSearcher(reader);
+    MarkerStatistics sentences = MarkerStatistics.measure(reader,
+        "allFields", "sent");
+    MarkerStatistics paragraphs = MarkerStatistics.measure(reader,
+        "allFields", "para");
+    assertTrue(sentences.getAverageLength() < sentences.getMaxLength());
+    assertEquals(403, sentences.getMaxLength());
+
+    parser.setSentenceMarker("sent");
+    parser.setParagraphMarker("para");
+
+    String[] queries = { "lime ~0s pear", "lime ~2s pear", "lime ~0p pear",
+        "lime ~1p pear" };
+    List<Set<Integer>> unbounded = new ArrayList<Set<Integer>>();
+
+    for (String query : queries) {
+      unbounded.add(hitDocs(searcher.search(parse(parser, query), 1000)));
+    }
+
+    parser.setSentenceWindow(sentences.getMaxLength());
+    parser.setParagraphWindow(paragraphs.getMaxLength());
+    assertTrue(parse(parser, "lime ~2s pear").toString().indexOf(
+        "], " + (sentences.getMaxLength() * 3) + ", false)") != -1);
+
+    for (int i = 0; i < queries.length; i++) {
+      assertEquals(queries[i], unbounded.get(i), hitDocs(searcher.search(
+          parse(parser, queries[i]), 1000)));
+    }
+
+    searcher.close();
+  }
+
+  public void testMultiTermSpanRewrite() throws IOException {
+    analyzer = new WhitespaceAnalyzer();
+
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, analyzer, true,
+        MaxFieldLength.UNLIMITED);
+    Random random = new Random(17);
+
+    for (int i = 0; i < 200; i++) {
+      StringBuilder text = new StringBuilder();
+
+      for (int j = 0; j < 30; j++) {
+        int word = random.nextInt(60);
+
+        if (word < 40) {
+          // lower numbered terms are more frequent
+          text.append("comp").append(random.nextInt(word + 1));
+        } else {
+          text.append((word < 42) ? "lime" : "plum");
+        }
+
+        text.append(' ');
+      }
+
+      Document doc = new Document();
+      doc.add(new Field("allFields", text.toString(), Field.Store.NO,
+          Field.Index.ANALYZED));
+      writer.addDocument(doc);
+    }
+
+    writer.close();
+
+    IndexSearcher searcher = new IndexSearcher(IndexReader.open(directory));
+    String query = "lime ~2 comp*";
+    Set<Integer> all = hitDocs(searcher.search(parse(parser, query), 1000));
+    assertFalse(all.isEmpty());
+
+    parser.setMultiTermSpanRewrite(new MultiTermSpanRewrite(
+        MultiTermSpanRewrite.Mode.FAIL, 10));
+
+    try {
+      searcher.search(parse(parser, query), 1000);
+      fail("comp* matches more than 10 terms");
+    } catch (QsolParseException e) {
+      assertTrue(e.getMessage().indexOf("more than 10 terms") != -1);
+    }
+
+    parser.setMultiTermSpanRewrite(new MultiTermSpanRewrite(
+        MultiTermSpanRewrite.Mode.TOP_DOC_FREQ, 5));
+
+    String rewritten = searcher.rewrite(parse(parser, query)).toString();
+    assertTrue(rewritten, rewritten.indexOf("allFields:comp4") != -1);
+    assertTrue(rewritten, rewritten.indexOf("allFields:comp5") == -1);
+    assertTrue(all.containsAll(hitDocs(searcher.search(parse(parser, query),
+        1000))));
+
+    parser.setMultiTermSpanRewrite(new MultiTermSpanRewrite(
+        MultiTermSpanRewrite.Mode.DOC_SET, 5));
+    assertTrue(searcher.rewrite(parse(parser, query)).toString().indexOf(
+        "spanTermSet(allFields, 40 terms)") != -1);
+    assertEquals(all, hitDocs(searcher.search(parse(parser, query), 1000)));
+
+    searcher.close();
+  }
+
+  public void testSpanRewriteCache() throws IOException {
+    analyzer = new WhitespaceAnalyzer();
+
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, analyzer, true,
+        MaxFieldLength.UNLIMITED);
+    String[] texts = { "micro chip lime", "microsoft lime", "colour lime",
+        "color plum lime", "lime macro" };
+
+    for (String text : texts) {
+      Document doc = new Document();
+      doc.add(new Field("allFields", text, Field.Store.NO,
+          Field.Index.ANALYZED));
+      writer.addDocument(doc);
+    }
+
+    writer.close();
+
+    IndexSearcher searcher = new IndexSearcher(IndexReader.open(directory));
+    String[] queries = { "lime ~3 micro*", "lime ~3 colour`" };
+    List<Set<Integer>> uncached = new ArrayList<Set<Integer>>();
+
+    for (String query : queries) {
+      uncached.add(hitDocs(searcher.search(parse(parser, query), 10)));
+    }
+
+    SpanRewriteCache cache = new SpanRewriteCache(10);
+    parser.setSpanRewriteCache(cache);
+
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < queries.length; i++) {
+        assertEquals(queries[i], uncached.get(i), hitDocs(searcher.search(
+            parse(parser, queries[i]), 10)));
+      }
+    }
+
+    assertEquals(2, cache.getMisses());
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getReaderCount());
+
+    // a different rewrite strategy is a different expansion
+    parser.setMultiTermSpanRewrite(new MultiTermSpanRewrite(
+        MultiTermSpanRewrite.Mode.TOP_DOC_FREQ, 1));
+    assertEquals(1, searcher.search(parse(parser, "lime ~3 micro*"), 10)
+        .totalHits);
+    assertEquals(3, cache.getMisses());
+
+    searcher.close();
+  }
+
+  public void testSpanPrefixAndRegexQuery() throws IOException {
+    analyzer = new WhitespaceAnalyzer();
+
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, analyzer, true,
+        MaxFieldLength.UNLIMITED);
+    String[] texts = { "micro chip lime", "microsoft lime", "microchips lime",
+        "mica lime", "lime macro", "lime plum" };
+
+    for (String text : texts) {
+      Document doc = new Document();
+      doc.add(new Field("allFields", text, Field.Store.NO,
+          Field.Index.ANALYZED));
+      writer.addDocument(doc);
+    }
+
+    writer.close();
+
+    IndexSearcher searcher = new IndexSearcher(IndexReader.open(directory));
+
+    Query query = parse(parser, "lime ~3 micro*");
+    assertEquals(
+        "spanNear([allFields:lime, spanPrefixQuery(allFields:micro*)], 3, false)",
+        query.toString());
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2)),
+        hitDocs(searcher.search(query, 10)));
+    assertEquals(
+        "spanNear([allFields:lime, spanWildcardQuery(allFields:mic*o)], 3, false)",
+        parse(parser, "lime ~3 mic*o").toString());
+
+    SpanQuery lime = new SpanTermQuery(new Term("allFields", "lime"));
+    SpanRegexQuery regex = new SpanRegexQuery(new Term("allFields",
+        "micro(soft|chips?)"));
+    assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), hitDocs(searcher
+        .search(new SpanNearQuery(new SpanQuery[] { lime, regex }, 3, false),
+            10)));
+
+    regex = new SpanRegexQuery(new Term("allFields", "chip|m.c(a|ro)"));
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 3, 4)),
+        hitDocs(searcher.search(new SpanNearQuery(new SpanQuery[] { lime,
+            regex }, 3, false), 10)));
+
+    // the rewrite limits apply
+    SpanPrefixQuery prefix = new SpanPrefixQuery(new Term("allFields", "mic"));
+    prefix.setRewriteMethod(new MultiTermSpanRewrite(
+        MultiTermSpanRewrite.Mode.FAIL, 3));
+
+    try {
+      searcher.rewrite(prefix);
+      fail("mic* matches more than 3 terms");
+    } catch (QsolParseException e) {
+      assertTrue(e.getMessage().indexOf("more than 3 terms") != -1);
+    }
+
+    searcher.close();
+  }
+
+  private static Set<Integer> hitDocs(TopDocs hits) {
+    Set<Integer> docs = new HashSet<Integer>();
+
+    for (int i = 0; i < hits.scoreDocs.length; i++) {
+      docs.add(Integer.valueOf(hits.scoreDocs[i].doc));
+    }
+
+    return docs;
+  }
+
+  /**
+   * Lists the spans, calling skipTo for every <code>skip</code>th doc if
+   * <code>skip</code> is not 0.
+   */
+  private static String spansToString(Spans spans, int skip) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    boolean more = (skip == 0) ? spans.next() : spans.skipTo(skip);
+
+    while (more) {
+      sb.append(spans.doc()).append(':').append(spans.start()).append('-')
+          .append(spans.end()).append(' ');
+
+      if ((skip != 0) && (spans.doc() % skip == 0)) {
+        more = spans.skipTo(spans.doc() + skip);
+      } else {
+        more = spans.next();
+      }
+    }
+
+    return sb.toString();
+  }
+
   public void testGeneralOnIndex() throws Exception {
 
     RAMDirectory directory;
@@ -539,6 +1193,250 @@ public class QSolParserTest extends TestCase {
     assertEquals(expected, parser.getSuggestedSearch());
   }
 
+  public void testSpellCheckerSuggester() throws IOException {
+    RAMDirectory spellIndex = new RAMDirectory();
+    SpellChecker spellChecker = new SpellChecker(spellIndex);
+    spellChecker.indexDictionary(new PlainTextDictionary(new StringReader(
+        "horse\nquick\nfox\n")));
+
+    SpellCheckerSuggester suggester = new SpellCheckerSuggester(spellIndex);
+    parser.useSuggest(suggester);
+
+    parse("horke & quick | horke");
+    assertEquals("horse & quick | horse", parser.getSuggestedSearch());
+    // the repeated word is looked up once
+    assertEquals(2, suggester.getLookups());
+
+    parse("quick fox");
+    assertEquals("", parser.getSuggestedSearch());
+    assertEquals(0, suggester.getRefreshes());
+
+    // a changed spell index is picked up by the shared suggester
+    spellChecker.indexDictionary(new PlainTextDictionary(new StringReader(
+        "motherfracker\n")));
+    spellChecker.close();
+
+    suggester.setRefreshInterval(0);
+    parse("motherfroker fox");
+    assertEquals("motherfracker fox", parser.getSuggestedSearch());
+    assertEquals(1, suggester.getRefreshes());
+
+    suggester.close();
+
+    // the spell index need not exist until the first lookup
+    RAMDirectory missing = new RAMDirectory();
+    suggester = new SpellCheckerSuggester(missing);
+    parser.useSuggest(suggester);
+    parse("horke");
+    assertEquals("", parser.getSuggestedSearch());
+    suggester.close();
+
+    try {
+      suggester.suggest(new String[] { "horke" }, new String[] { "horke" });
+      fail("closed suggester used");
+    } catch (AlreadyClosedException e) {
+      // expected
+    }
+  }
+
+  public void testParseWithSuggestion() throws Exception {
+    RAMDirectory spellIndex = new RAMDirectory();
+    SpellChecker spellChecker = new SpellChecker(spellIndex);
+    spellChecker.indexDictionary(new PlainTextDictionary(new StringReader(
+        "horse\nquick\nfox\n")));
+    spellChecker.close();
+
+    SpellCheckerSuggester suggester = new SpellCheckerSuggester(spellIndex);
+    parser.useSuggest(suggester);
+
+    ParsedQuery parsed = parser.parseWithSuggestion("allFields",
+        "horke & quick", analyzer);
+    assertEquals("+allFields:horke +allFields:quick", parsed.getQuery()
+        .toString());
+    // nothing is looked up until the suggestion is asked for
+    assertEquals(0, suggester.getLookups());
+    assertFalse(parsed.getSuggestedSearchFuture().isDone());
+    assertEquals("horse & quick", parsed.getSuggestedSearch());
+    assertEquals(2, suggester.getLookups());
+    assertEquals("horse & quick", parser.getSuggestedSearch());
+    assertEquals(2, suggester.getLookups());
+
+    // without an executor the Future looks the suggestion up itself
+    parsed = parser.parseWithSuggestion("allFields", "horke", analyzer);
+    assertFalse(parsed.getSuggestedSearchFuture().isDone());
+    assertEquals("horse", parsed.getSuggestedSearchFuture().get(1,
+        TimeUnit.SECONDS));
+    assertEquals("horse", parsed.getSuggestedSearchFuture().get());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    parser.setSuggestExecutor(executor);
+    parsed = parser.parseWithSuggestion("allFields", "quick fox", analyzer);
+    assertEquals("", parsed.getSuggestedSearchFuture().get());
+    executor.shutdown();
+
+    parser.useSuggest((SpellCheckerSuggester) null);
+    assertFalse(parser.parseWithSuggestion("allFields", "fox", analyzer)
+        .hasSuggestedSearch());
+
+    // the suggestion from an earlier parse is not kept
+    try {
+      parser.getSuggestedSearch();
+      fail("stale suggested search returned");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    suggester.close();
+  }
+
+  public void testSymSpellSuggester() throws IOException {
+    analyzer = new WhitespaceAnalyzer();
+
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, analyzer, true,
+        MaxFieldLength.UNLIMITED);
+    String[] texts = { "horse quick fox", "horse house motherfracker",
+        "hose horse", "receive" };
+
+    for (String text : texts) {
+      Document doc = new Document();
+      doc.add(new Field("allFields", text, Field.Store.NO,
+          Field.Index.ANALYZED));
+      writer.addDocument(doc);
+    }
+
+    writer.close();
+
+    IndexReader reader = IndexReader.open(directory);
+    SymSpellSuggester suggester = SymSpellSuggester.load(reader, "allFields");
+    reader.close();
+
+    assertEquals(7, suggester.size());
+    assertEquals(3, suggester.getFreq("horse"));
+    assertTrue(suggester.exists("hose"));
+    // horse and hose are both one edit away; horse is more frequent
+    assertEquals("horse", suggester.suggest("horke"));
+    // an adjacent swap is one edit
+    assertEquals("receive", suggester.suggest("recieve"));
+    assertEquals("motherfracker", suggester.suggest("motherfroker"));
+    assertEquals(null, suggester.suggest("zebra"));
+
+    parser.useSuggest(suggester);
+    parse("horke & motherfroker | fox");
+    assertEquals("horse & motherfracker | fox", parser.getSuggestedSearch());
+
+    // built from an exported dictionary
+    suggester = new SymSpellSuggester(new TermFreqIteratorWrapper(Arrays
+        .asList("colour", "color").iterator()));
+    assertEquals("color", suggester.suggest("colr"));
+  }
+
+  public void testParseAll() throws Exception {
+    List<BatchQuery> batch = new ArrayList<BatchQuery>();
+
+    for (int i = 0; i < 200; i++) {
+      batch.add(new BatchQuery("allFields", "horse" + i + " & (fox | dog)"));
+      batch.add(new BatchQuery("body", "\"quick brown\" ~3 fox" + i));
+    }
+
+    batch.set(7, new BatchQuery("allFields", "the"));
+    batch.set(100, new BatchQuery("allFields", "(horse & fox"));
+
+    List<BatchResult> serial = parser.parseAll(batch, analyzer);
+    assertEquals(batch.size(), serial.size());
+
+    for (int i = 0; i < batch.size(); i++) {
+      BatchResult result = serial.get(i);
+      assertSame(batch.get(i), result.getBatchQuery());
+
+      if ((i == 7) || (i == 100)) {
+        assertFalse(result.isParsed());
+        assertNull(result.getQuery());
+      } else {
+        assertTrue(result.isParsed());
+        assertEquals(parser.parse(batch.get(i).getField(),
+            batch.get(i).getText(), analyzer).toString(), result.getQuery()
+            .toString());
+      }
+    }
+
+    assertTrue(serial.get(7).getError() instanceof EmptyQueryException);
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    List<BatchResult> parallel = parser.parseAll(batch, analyzer, executor, 4);
+    executor.shutdown();
+
+    for (int i = 0; i < batch.size(); i++) {
+      assertEquals(serial.get(i).toString(), parallel.get(i).toString());
+    }
+  }
+
+  public void testParallelAnalysis() throws Exception {
+    final AtomicInteger analyzed = new AtomicInteger();
+    Analyzer counting = new Analyzer() {
+      public TokenStream tokenStream(String field, Reader reader) {
+        analyzed.incrementAndGet();
+
+        return analyzer.tokenStream(field, reader);
+      }
+    };
+
+    StringBuilder query = new StringBuilder("body(\"Quick Brown\" | fox^2)");
+
+    // every part number appears twice
+    for (int i = 0; i < 1000; i++) {
+      query.append(" | PN-").append(i % 500).append("-X");
+    }
+
+    query.append(" | (horse ~3 \"quick brown\") | bro*");
+
+    String expected = parser.parse("allFields", query.toString(), counting)
+        .toString();
+    assertEquals(1004, analyzed.get());
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    parser.setParallelAnalysis(executor, 4, 100);
+    analyzed.set(0);
+    assertEquals(expected, parser.parse("allFields", query.toString(),
+        counting).toString());
+    // each distinct token analyzed once, up front
+    assertEquals(504, analyzed.get());
+
+    // small queries are analyzed as they are built
+    analyzed.set(0);
+    parser.parse("allFields", "horse & horse", counting);
+    assertEquals(2, analyzed.get());
+
+    // a failure in a worker surfaces as it would in the calling thread
+    final Thread caller = Thread.currentThread();
+    final CountDownLatch failed = new CountDownLatch(1);
+    Analyzer failing = new Analyzer() {
+      public TokenStream tokenStream(String field, Reader reader) {
+        if (Thread.currentThread() != caller) {
+          failed.countDown();
+          throw new IllegalArgumentException("bad token");
+        }
+
+        try {
+          failed.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+
+        return analyzer.tokenStream(field, reader);
+      }
+    };
+
+    try {
+      parser.parse("allFields", query.toString(), failing);
+      fail("worker failure lost");
+    } catch (IllegalArgumentException e) {
+      assertEquals("bad token", e.getMessage());
+    }
+
+    executor.shutdown();
+  }
+
   public void testModifiedProximity() throws IOException {
     parser.addOperator(Operator.PROXIMITY, "%", false);
 
@@ -594,6 +1492,313 @@ public class QSolParserTest extends TestCase {
     assertEquals(expected, parse(example));
   }
 
+  public void testRewriteInPlace() {
+    QsolConfiguration config = new QsolConfiguration();
+    config.addOperator(Operator.PROXIMITY, "/");
+    config.addFindReplace(new FindReplace("NEAR", "~10", true, true));
+    config.addFindReplace(new FindReplace("AND", "&", false, true));
+    config.addFindReplace(new FindReplace("donut", "(coffee | cake)", false,
+        false));
+    config.addFindReplace(new FindReplace("bagel", "cream & cheese", false,
+        false));
+    config.add0PadField("wc", 6);
+    config.markDateField("date");
+
+    QsolParser stringParser = ParserFactory.getInstance(config).getParser(true);
+    config.setRewriteInPlace(true);
+    QsolParser treeParser = ParserFactory.getInstance(config).getParser(true);
+
+    String[] queries = { "mark miller", "mark miller | me", "mark NEAR dog ! cat",
+        "mark /4 dog | cat", "Mark AND Miller AND together",
+        "one two ~3 three four", "donut shop", "fresh bagel (with tea)",
+        "field1(test search) & field2(dfgdfg)", "wc(45) | wc(6 rng 10)",
+        "date(8/8/2008) & send(no)", "(qsol parser ~3 work fine) ~3 hose",
+        "horse || fish || cow !! car !! book", "aa && (b  || c) !! d !! e",
+        "\"big time\":2 ~10 \"small town\"", "the old heart^34.5",
+        "field1,field2((search & old) ~3 horse)", "*:* ! mark" };
+
+    for (String query : queries) {
+      assertEquals(query, parse(stringParser, query).toString(), parse(
+          treeParser, query).toString());
+    }
+  }
+
+  public void testCompiledConfiguration() {
+    QsolConfiguration config = new QsolConfiguration();
+    config.addOperator(Operator.PROXIMITY, "/");
+    config.addOperator(Operator.AND, "AND");
+    config.markDateField("date");
+
+    assertSame(config.compile(), config.compile());
+
+    QsolParser first = ParserFactory.getInstance(config).getParser(true);
+    QsolParser second = ParserFactory.getInstance(config).getParser(true);
+    first.addFindReplace(new FindReplace("donut", "(coffee | cake)", false,
+        false));
+
+    assertEquals("+allFields:mark +allFields:dog", parse(first, "mark AND dog")
+        .toString());
+    assertEquals("spanNear([allFields:mark, allFields:dog], 4, false)", parse(
+        first, "mark /4 dog").toString());
+    assertEquals("allFields:coffee allFields:cake", parse(first, "donut")
+        .toString());
+    assertEquals("allFields:donut", parse(second, "donut").toString());
+    assertFalse(config.findReplace.containsKey("donut"));
+
+    config.addFindReplace(new FindReplace("bagel", "cream", false, false));
+    assertEquals("allFields:cream", parse(
+        ParserFactory.getInstance(config).getParser(true), "bagel").toString());
+    assertEquals("allFields:bagel", parse(second, "bagel").toString());
+  }
+
+  public void testQueryCache() {
+    QsolConfiguration config = new QsolConfiguration();
+    QueryCache cache = new QueryCache(2);
+    config.setQueryCache(cache);
+
+    QsolParser first = ParserFactory.getInstance(config).getParser(true);
+    QsolParser second = ParserFactory.getInstance(config).getParser(true);
+
+    Query query = parse(first, "mark & miller");
+    query.setBoost(3);
+    assertEquals("+allFields:mark +allFields:miller", parse(second,
+        " mark & miller ").toString());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getHits());
+
+    second.setOrAsDefaultOp();
+    assertEquals("allFields:mark allFields:miller", parse(second,
+        "mark miller").toString());
+    assertEquals("+allFields:mark +allFields:miller", parse(first,
+        "mark miller").toString());
+    assertEquals(3, cache.getMisses());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(2, cache.size());
+  }
+
+  public void testAnalysisCache() {
+    QsolConfiguration config = new QsolConfiguration();
+    AnalysisCache cache = new AnalysisCache(10);
+    config.setAnalysisCache(cache);
+
+    QsolParser cached = ParserFactory.getInstance(config).getParser(true);
+    String[] queries = { "mark & miller", "mark ~3 miller", "miller | mark" };
+
+    for (int i = 0; i < queries.length; i++) {
+      assertEquals(parse(parser, queries[i]).toString(), parse(cached,
+          queries[i]).toString());
+    }
+
+    assertEquals(2, cache.getMisses());
+    assertEquals(4, cache.getHits());
+    assertEquals(2, cache.size());
+    assertEquals(4d / 6, cache.getHitRate(), 0.0001);
+  }
+
+  public void testAnalysisFailureNotCached() {
+    final boolean[] fail = { true };
+    Analyzer failing = new Analyzer() {
+      public TokenStream tokenStream(String fieldName, Reader reader) {
+        return new TokenFilter(new WhitespaceTokenizer(Version.LUCENE_33,
+            reader)) {
+          public boolean incrementToken() throws IOException {
+            if (fail[0]) {
+              throw new IOException("transient");
+            }
+
+            return input.incrementToken();
+          }
+        };
+      }
+    };
+
+    AnalysisCache cache = new AnalysisCache(10);
+    AnalyzedTerms terms = new AnalyzedTerms();
+    terms.setCache(cache);
+
+    try {
+      terms.analyze(failing, "allFields", "mark");
+      fail("analyzer failure swallowed");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+
+    assertEquals(0, cache.size());
+
+    fail[0] = false;
+    assertEquals(1, terms.analyze(failing, "allFields", "mark").size());
+    assertEquals("mark", terms.analyze(failing, "allFields", "mark").term(0));
+    assertEquals(1, cache.size());
+  }
+
+  public void testLexerReuse() {
+    StringBuilder longQuery = new StringBuilder();
+
+    for (int i = 0; i < 800; i++) {
+      longQuery.append("term").append(i).append(" | ");
+    }
+
+    longQuery.append("last");
+
+    Query query = parse(parser, longQuery.toString());
+    assertTrue(query.toString().endsWith("allFields:term799 allFields:last"));
+    assertEquals("+allFields:mark +allFields:miller", parse(parser,
+        "mark & miller").toString());
+    assertEquals("+allFields:mark +allFields:miller", parse(parser,
+        "mark & miller").toString());
+  }
+
+  public void testStringCharStream() {
+    String[] queries = { "mark & miller", "", "  one\ttwo\r\nthree ~3 four\n",
+        "\"big time\":2 | fish`", "m\\&m's & date(8/8/2008)", "a\rb\n\tc" };
+
+    for (String query : queries) {
+      QueryParser javaParser = new QueryParser(new StringReader(query));
+      QueryParser stringParser = new QueryParser(new StringCharStream(query));
+      javaParser.setOrderOfOps(new QsolConfiguration().orderOfOpsMap);
+      stringParser.setOrderOfOps(new QsolConfiguration().orderOfOpsMap);
+      com.mhs.qsol.queryparser.Token expected;
+      com.mhs.qsol.queryparser.Token actual;
+
+      do {
+        expected = javaParser.getNextToken();
+        actual = stringParser.getNextToken();
+        assertEquals(query, expected.kind, actual.kind);
+        assertEquals(query, expected.image, actual.image);
+        assertEquals(query, expected.beginLine, actual.beginLine);
+        assertEquals(query, expected.beginColumn, actual.beginColumn);
+        assertEquals(query, expected.endLine, actual.endLine);
+        assertEquals(query, expected.endColumn, actual.endColumn);
+      } while (expected.kind != QueryParserConstants.EOF);
+    }
+
+    // used through the JavaCharStream contract
+    for (String query : queries) {
+      JavaCharStream javaStream = new JavaCharStream(new StringReader(""));
+      JavaCharStream stringStream = new StringCharStream("");
+      javaStream.ReInit(new StringReader(query), 3, 5);
+      stringStream.ReInit(new StringReader(query), 3, 5);
+
+      for (int i = 0; i < query.length(); i++) {
+        try {
+          if (i % 4 == 0) {
+            assertEquals(query, javaStream.BeginToken(), stringStream
+                .BeginToken());
+          } else {
+            assertEquals(query, javaStream.readChar(), stringStream.readChar());
+          }
+        } catch (IOException e) {
+          fail(e.toString());
+        }
+
+        if (i == 5) {
+          javaStream.adjustBeginLineColumn(10, 2);
+          stringStream.adjustBeginLineColumn(10, 2);
+        }
+
+        assertEquals(query, javaStream.getBeginLine(), stringStream
+            .getBeginLine());
+        assertEquals(query, javaStream.getBeginColumn(), stringStream
+            .getBeginColumn());
+        assertEquals(query, javaStream.getEndLine(), stringStream.getEndLine());
+        assertEquals(query, javaStream.getEndColumn(), stringStream
+            .getEndColumn());
+      }
+    }
+
+    QsolParser noEscapes = ParserFactory.getInstance(new QsolConfiguration())
+        .getParser(false);
+    noEscapes.setDecodeUnicodeEscapes(false);
+    assertEquals("+allFields:mark +allFields:miller", parse(noEscapes,
+        "mark & miller").toString());
+  }
+
+  public void testSameTokenPositionInProximity() throws Exception {
+    Analyzer synonyms = new Analyzer() {
+      public TokenStream tokenStream(String fieldName, Reader reader) {
+        return new TokenFilter(new WhitespaceTokenizer(Version.LUCENE_33,
+            reader)) {
+          private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+          private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+          private State synonym;
+
+          public boolean incrementToken() throws IOException {
+            if (synonym != null) {
+              restoreState(synonym);
+              synonym = null;
+              termAtt.setEmpty().append("large");
+              posIncAtt.setPositionIncrement(0);
+
+              return true;
+            }
+
+            if (!input.incrementToken()) {
+              return false;
+            }
+
+            if (termAtt.toString().equals("big")) {
+              synonym = captureState();
+            }
+
+            return true;
+          }
+        };
+      }
+    };
+
+    assertEquals("allFields:big allFields:large", parser.parse("allFields",
+        "big", synonyms).toString());
+    assertEquals(
+        "spanNear([spanOr([allFields:big, allFields:large]), allFields:dog], 3, false)",
+        parser.parse("allFields", "big ~3 dog", synonyms).toString());
+  }
+
+  public void testSharedParser() throws InterruptedException {
+    QsolConfiguration config = new QsolConfiguration();
+    config.addFindReplace(new FindReplace("donut", "(coffee | cake)", false,
+        false));
+    config.markDateField("date");
+
+    final QsolParser sharedParser = ParserFactory.getInstance(config)
+        .getParser(true);
+    final String[] queries = { "mark miller", "donut shop ~3 town",
+        "\"big time\":2 ~10 \"small town\"", "the old heart^34.5",
+        "(qsol parser ~3 work fine) ~3 hose", "date(8/8/2008) & send(no)",
+        "horse || fish || cow !! car !! book" };
+    final String[] expected = new String[queries.length];
+
+    for (int i = 0; i < queries.length; i++) {
+      expected[i] = parse(sharedParser, queries[i]).toString();
+    }
+
+    final List<String> failures = new ArrayList<String>();
+    Thread[] threads = new Thread[4];
+
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 200; i++) {
+            int q = i % queries.length;
+            String result = parse(sharedParser, queries[q]).toString();
+
+            if (!expected[q].equals(result)) {
+              synchronized (failures) {
+                failures.add(queries[q] + " => " + result);
+              }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+  }
+
   public void testSameOpInARow() {
     example = "man | dog | cat";
     expected = "allFields:man allFields:dog allFields:cat";
@@ -1296,6 +2501,59 @@ public class QSolParserTest extends TestCase {
 
   }
 
+  public void testDefaultDateParser() throws InterruptedException {
+    final DateParser dateParser = new DefaultDateParser();
+
+    assertEquals("date:20040323", dateParser.buildDateQuery("date",
+        "2004-03-23", Locale.US).toString());
+    assertEquals("ConstantScore(date:[20040323 TO 20040601])", dateParser
+        .buildDateQuery("date", "2004-03-23 - 2004-06-01", Locale.US)
+        .toString());
+    assertEquals("date:20040323", dateParser.buildDateQuery("date",
+        "23.03.2004", Locale.GERMANY).toString());
+    assertEquals("date:20040323", dateParser.buildDateQuery("date",
+        "23/03/2004", Locale.UK).toString());
+
+    // not the locale's form, so left to its DateFormat
+    try {
+      dateParser.buildDateQuery("date", "1.2.03", Locale.US);
+      fail("1.2.03 is not a US date");
+    } catch (QsolParseException e) {
+      // expected
+    }
+
+    final String[] dates = { "8/5/82", "3/23/2004", "6/34/02", "2008-08-08" };
+    final String[] expected = { "date:19820805", "date:20040323",
+        "date:20020704", "date:20080808" };
+    final List<String> failures = new ArrayList<String>();
+    Thread[] threads = new Thread[4];
+
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 2000; i++) {
+            int d = i % dates.length;
+            String query = dateParser.buildDateQuery("date", dates[d],
+                Locale.US).toString();
+
+            if (!expected[d].equals(query)) {
+              synchronized (failures) {
+                failures.add(dates[d] + " -> " + query);
+              }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(new ArrayList<String>(), failures);
+  }
+
   public void testU() {
     example = "aa && (b  || c) !! d !! e";
     // expected = "+allFields:aa +(+(allFields:b allFields:c) -allFields:d
@@ -1376,4 +2634,102 @@ public class QSolParserTest extends TestCase {
       assertEquals(expected, parse(example));
   }
 
+  /**
+   * SpanWithinQuery as it was before it cached the exclude spans of each doc:
+   * the exclude spans are stepped through one at a time for each include
+   * span.
+   */
+  private static class MarkerScanWithinQuery extends SpanWithinQuery {
+    MarkerScanWithinQuery(SpanQuery include, SpanQuery exclude, int proximity) {
+      super(include, exclude, proximity);
+    }
+
+    public Spans getSpans(final IndexReader reader) throws IOException {
+      final SpanQuery include = getInclude();
+      final SpanQuery exclude = getExclude();
+      final int proximity = getProximity();
+
+      return new Spans() {
+        private Spans includeSpans = include.getSpans(reader);
+        private boolean moreInclude = true;
+        private Spans excludeSpans = exclude.getSpans(reader);
+        private boolean moreExclude = true;
+
+        public boolean next() throws IOException {
+          if (moreInclude) {
+            moreInclude = includeSpans.next();
+          }
+
+          while (moreInclude && moreExclude) {
+            if (includeSpans.doc() > excludeSpans.doc()) {
+              moreExclude = excludeSpans.skipTo(includeSpans.doc());
+            }
+
+            if (scan()) {
+              break;
+            }
+
+            moreInclude = includeSpans.next();
+          }
+
+          return moreInclude;
+        }
+
+        public boolean skipTo(int target) throws IOException {
+          if (moreInclude) {
+            moreInclude = includeSpans.skipTo(target);
+          }
+
+          if (!moreInclude) {
+            return false;
+          }
+
+          if (moreExclude && (includeSpans.doc() > excludeSpans.doc())) {
+            moreExclude = excludeSpans.skipTo(includeSpans.doc());
+          }
+
+          return scan() || next();
+        }
+
+        private boolean scan() throws IOException {
+          int count = 0;
+
+          while (moreExclude && (includeSpans.doc() == excludeSpans.doc())) {
+            if (!(excludeSpans.end() <= includeSpans.start())) {
+              count += 1;
+
+              if (count > proximity) {
+                break;
+              }
+            }
+
+            moreExclude = excludeSpans.next();
+          }
+
+          return !moreExclude || (includeSpans.doc() != excludeSpans.doc())
+              || (includeSpans.end() <= excludeSpans.start());
+        }
+
+        public int doc() {
+          return includeSpans.doc();
+        }
+
+        public int start() {
+          return includeSpans.start();
+        }
+
+        public int end() {
+          return includeSpans.end();
+        }
+
+        public Collection<byte[]> getPayload() throws IOException {
+          return includeSpans.getPayload();
+        }
+
+        public boolean isPayloadAvailable() {
+          return includeSpans.isPayloadAvailable();
+        }
+      };
+    }
+  }
 }